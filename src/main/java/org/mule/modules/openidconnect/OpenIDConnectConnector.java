@@ -28,34 +28,65 @@ import org.mule.api.annotations.display.FriendlyName;
 import org.mule.api.annotations.display.Password;
 import org.mule.api.annotations.lifecycle.OnException;
 import org.mule.api.annotations.lifecycle.Start;
+import org.mule.api.annotations.lifecycle.Stop;
 import org.mule.api.annotations.param.Default;
 import org.mule.api.callback.SourceCallback;
 import org.mule.api.store.ListableObjectStore;
 import org.mule.api.store.ObjectStoreException;
 import org.mule.module.http.api.HttpConstants;
+import org.mule.modules.openidconnect.client.CircuitBreaker;
 import org.mule.modules.openidconnect.client.OpenIdConnectClient;
+import org.mule.modules.openidconnect.client.relyingparty.RefreshAheadScheduler;
 import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyHandler;
+import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyProfile;
+import org.mule.modules.openidconnect.client.relyingparty.SessionCookieCodec;
 import org.mule.modules.openidconnect.client.relyingparty.TokenRequester;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.AlwaysRefreshPolicy;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.ExpiredRefreshPolicy;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.LifetimeRefreshPolicy;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.RateLimitedRefreshPolicy;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.RefreshPolicy;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.RefreshStrategy;
 import org.mule.modules.openidconnect.client.relyingparty.storage.RedirectData;
 import org.mule.modules.openidconnect.client.relyingparty.storage.Storage;
 import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+import org.mule.modules.openidconnect.client.tokenvalidation.IntrospectionProfile;
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenCache;
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenValidator;
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenVerifier;
 import org.mule.modules.openidconnect.config.ConnectorConfig;
+import org.mule.modules.openidconnect.config.MetaDataRefresher;
+import org.mule.modules.openidconnect.config.MetaDataSnapshotStore;
 import org.mule.modules.openidconnect.config.SingleSignOnConfig;
+import org.mule.modules.openidconnect.config.TenantRegistry;
 import org.mule.modules.openidconnect.exception.ExceptionHandler;
+import org.mule.modules.openidconnect.exception.HTTPConnectException;
 import org.mule.modules.openidconnect.exception.MetaDataInitializationException;
+import org.mule.modules.openidconnect.exception.MetaDataUnavailableException;
 import org.mule.modules.openidconnect.exception.TokenValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
+import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * This connector is used to filter invalid requests by validating bearer tokens obtained from the http 'Authorization'
@@ -75,6 +106,24 @@ public class OpenIDConnectConnector {
 
 	private OpenIdConnectClient client;
     private SingleSignOnConfig ssoConfig;
+    private MetaDataRefresher metaDataRefresher;
+    private ScheduledExecutorService metaDataRecovery;
+    private TenantRegistry tenantRegistry;
+    private TokenValidator tokenValidator;
+    private TokenRequester tokenRequester;
+    private TokenCache<TokenData> sessionCache;
+    private Storage<TokenData> tokenStorage;
+    private Storage<RedirectData> redirectDataStorage;
+    private SessionCookieCodec sessionCookieCodec;
+    private RefreshAheadScheduler refreshAheadScheduler;
+    private volatile TokenCache<Long> introspectionSchedule;
+    private final ConcurrentMap<List<String>, IntrospectionProfile> introspectionProfiles = new ConcurrentHashMap<>();
+    private static final int MAX_INTROSPECTION_PROFILES = 64;
+    private final ConcurrentMap<List<String>, RelyingPartyProfile> relyingPartyProfiles = new ConcurrentHashMap<>();
+    private static final int MAX_RELYING_PARTY_PROFILES = 64;
+    private final ConcurrentMap<List<Object>, RefreshPolicy> refreshPolicies = new ConcurrentHashMap<>();
+    private static final int MAX_REFRESH_POLICIES = 64;
+    private static final int MAX_RATE_LIMITED_SESSIONS = 10000;
     private static final String HTTP_STATUS = HttpConstants.ResponseProperties.HTTP_STATUS_PROPERTY;
 
     private static final Logger logger = LoggerFactory.getLogger(OpenIDConnectConnector.class);
@@ -89,23 +138,152 @@ public class OpenIDConnectConnector {
     public void init() throws MetaDataInitializationException, ObjectStoreException {
         logger.debug("Initializing OpenIDConnect Connector");
         ssoConfig = new SingleSignOnConfig(config);
-        try {
-            logger.debug("Building Identity-Provider metadata");
-            ssoConfig.buildProviderMetadata();
-        } catch (MetaDataInitializationException e) {
-            logger.error(e.getMessage());
+        if (config.getMetaDataRefreshInterval() <= 0) {
+            metaDataRecovery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oidc-metadata-recovery");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ssoConfig.setRecoveryScheduler(metaDataRecovery);
+        }
+        if (config.isConfigDiscovery() && config.getMetaDataSnapshotFile() != null) {
+            ssoConfig.setSnapshotStore(new MetaDataSnapshotStore(
+                    Paths.get(config.getMetaDataSnapshotFile()),
+                    TimeUnit.SECONDS.toMillis(config.getMetaDataSnapshotMaxAge())
+            ));
+        }
+        if (ssoConfig.restoreSnapshot()) {
+            logger.debug("Restored Identity-Provider metadata from snapshot file, revalidating in background");
+        } else {
+            try {
+                logger.debug("Building Identity-Provider metadata");
+                ssoConfig.buildProviderMetadata();
+            } catch (MetaDataInitializationException e) {
+                logger.error(e.getMessage());
+            }
+        }
+        if (config.getMetaDataRefreshInterval() > 0) {
+            logger.debug("Starting background refresh of Identity-Provider metadata");
+            metaDataRefresher = new MetaDataRefresher(
+                    ssoConfig,
+                    TimeUnit.SECONDS.toMillis(config.getMetaDataRefreshInterval()),
+                    TimeUnit.SECONDS.toMillis(config.getMetaDataRefreshJitter()),
+                    TimeUnit.SECONDS.toMillis(config.getMetaDataRefreshMaxBackoff())
+            );
+            ssoConfig.setKeyRefreshExecutor(metaDataRefresher);
+            metaDataRefresher.start();
         }
         TokenVerifier verifier = new TokenVerifier();
-        TokenValidator validator = new TokenValidator(verifier);
+        tokenValidator = new TokenValidator(verifier);
+        tokenValidator.setHttpTransport(ssoConfig.getHttpTransport());
+        if (config.getVerifiedTokenCacheSize() > 0) {
+            logger.debug("Enabling verified token cache");
+            tokenValidator.setVerifiedTokenCache(new TokenCache<>(
+                    config.getVerifiedTokenCacheSize(),
+                    TimeUnit.SECONDS.toMillis(config.getVerifiedTokenCacheTtl()),
+                    config.isVerifiedTokenCacheStatistics()
+            ));
+        }
+        if (config.getIntrospectionCacheSize() > 0) {
+            logger.debug("Enabling introspection cache");
+            tokenValidator.setIntrospectionCache(new TokenCache<>(
+                    config.getIntrospectionCacheSize(),
+                    TimeUnit.SECONDS.toMillis(config.getIntrospectionCacheTtl()),
+                    config.isIntrospectionCacheStatistics()
+            ), TimeUnit.SECONDS.toMillis(config.getIntrospectionCacheNegativeTtl()));
+        }
+        if (config.getIntrospectionMaxOutstanding() > 0) {
+            logger.debug("Limiting outstanding introspection requests");
+            tokenValidator.setMaxOutstandingIntrospections(config.getIntrospectionMaxOutstanding());
+        }
+        if (config.getCircuitBreakerWindowSize() > 0) {
+            logger.debug("Enabling circuit breaker for token introspection");
+            tokenValidator.setCircuitBreaker(new CircuitBreaker(
+                    config.getCircuitBreakerWindowSize(),
+                    config.getCircuitBreakerFailureRateThreshold(),
+                    config.getCircuitBreakerSlowCallThreshold(),
+                    TimeUnit.SECONDS.toMillis(config.getCircuitBreakerOpenDuration()),
+                    config.getCircuitBreakerHalfOpenProbes()
+            ), config.isCircuitBreakerLocalFallback());
+        }
+        tokenRequester = new TokenRequester();
+        tokenRequester.setHttpTransport(ssoConfig.getHttpTransport());
+        if (config.getSessionCookieKeys() != null && !config.getSessionCookieKeys().trim().isEmpty()) {
+            logger.debug("Enabling stateless relying party sessions");
+            sessionCookieCodec = SessionCookieCodec.fromBase64(
+                    config.getSessionCookieKeys(), TimeUnit.SECONDS.toMillis(config.getSessionCookieMaxAge())
+            );
+            if (config.getRefreshAheadMargin() > 0) {
+                logger.warn("Refresh ahead margin is ignored with session cookie keys, stateless sessions are only "
+                        + "refreshed on demand");
+            }
+        }
+        if (config.getRefreshAheadMargin() > 0 && sessionCookieCodec == null) {
+            logger.debug("Enabling refresh of relying party sessions ahead of expiration");
+            refreshAheadScheduler = new RefreshAheadScheduler(
+                    tokenRequester,
+                    new TokenVerifier(),
+                    ssoConfig,
+                    TimeUnit.SECONDS.toMillis(config.getRefreshAheadMargin()),
+                    config.getRefreshAheadMaxSessions(),
+                    TimeUnit.SECONDS.toMillis(config.getTokenStoreTtl())
+            );
+            refreshAheadScheduler.start();
+        }
+        if (config.getSessionCacheSize() > 0) {
+            logger.debug("Enabling session cache");
+            sessionCache = new TokenCache<>(
+                    config.getSessionCacheSize(),
+                    TimeUnit.SECONDS.toMillis(config.getSessionCacheTtl()),
+                    config.isSessionCacheStatistics()
+            );
+        }
+        tokenStorage = new Storage<>(objectStore(
+                "token-cookie-store", "Token store", config.getTokenStoreTtl(), config.getTokenStoreMaxEntries()
+        ));
+        if (sessionCache != null) tokenStorage.setLocalCache(sessionCache, TokenData::getAccessTokenExpiry);
+        redirectDataStorage = new Storage<>(objectStore(
+                "redirect-cookie-store", "Redirect store", config.getRedirectStoreTtl(),
+                config.getRedirectStoreMaxEntries()
+        ));
         logger.debug("Instantiating client");
-        client = new OpenIdConnectClient(ssoConfig, validator);
+        client = new OpenIdConnectClient(ssoConfig, tokenValidator);
+        if (config.getTrustedIssuers() != null && !config.getTrustedIssuers().trim().isEmpty()) {
+            logger.debug("Enabling multi issuer token validation");
+            tenantRegistry = new TenantRegistry(
+                    config,
+                    ssoConfig.getHttpTransport(),
+                    Arrays.stream(config.getTrustedIssuers().split(","))
+                            .map(String::trim)
+                            .filter(issuer -> !issuer.isEmpty())
+                            .collect(Collectors.toList()),
+                    config.getMaxLoadedIssuers(),
+                    TimeUnit.SECONDS.toMillis(config.getIssuerIdleTimeout())
+            );
+        }
+    }
+
+    @Stop
+    public void stop() {
+        if (metaDataRefresher != null) {
+            logger.debug("Stopping background refresh of Identity-Provider metadata");
+            metaDataRefresher.stop();
+        }
+        if (metaDataRecovery != null) {
+            metaDataRecovery.shutdownNow();
+        }
+        if (refreshAheadScheduler != null) {
+            logger.debug("Stopping refresh of relying party sessions ahead of expiration");
+            refreshAheadScheduler.stop();
+        }
     }
         
     /**
      * Uses token introspection specified by OAUTH 2.0 to validate the token. It calls an api endpoint at the sso with
      * the given bearer token from the request header. Throws exception handled by ExceptionHandler if token isn't
      * valid or if there are connection problems with the sso, otherwise it continues processing. If claim extraction
-     * is activated, set of id-token claims is added to the flow variables.
+     * is activated, set of id-token claims is added to the flow variables. If the maximum number of outstanding
+     * introspection requests is configured and reached, the validation fails immediately like a connection problem.
      * 
      * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:online-token-validation}
      *
@@ -127,12 +305,10 @@ public class OpenIDConnectConnector {
             @Password String clientSecret,
             @Default("false") boolean claimExtraction) throws Exception {
         MuleMessage muleMessage = muleEvent.getMessage();
-        ssoConfig.setIntrospectionUri(UriBuilder.fromUri(ssoConfig.getSsoUri()).path(introspectionEndpoint).build());
-        ssoConfig.setClientSecretBasic(new ClientSecretBasic(new ClientID(clientId), new Secret(clientSecret)));
-
-        if (!ssoConfig.isInitialized()) ssoConfig.buildProviderMetadata();
+        IntrospectionProfile profile = introspectionProfile(introspectionEndpoint, clientId, clientSecret);
+        ensureMetaData(muleMessage);
         logger.debug("Starting token introspection via identity provider");
-        Map<String, Object> claims = client.ssoTokenValidation(tokenHeader);
+        Map<String, Object> claims = client.ssoTokenValidation(tokenHeader, profile);
         if (claimExtraction) {
             logger.debug("Saving token claims as flowVar tokenClaims");
             muleMessage.setInvocationProperty("tokenClaims", claims);
@@ -169,12 +345,10 @@ public class OpenIDConnectConnector {
             @Password String clientSecret,
             @Default("false") boolean claimExtraction) throws Exception {
         MuleMessage muleMessage = muleEvent.getMessage();
-        ssoConfig.setIntrospectionUri(UriBuilder.fromUri(ssoConfig.getSsoUri()).path(introspectionEndpoint).build());
-        ssoConfig.setClientSecretBasic(new ClientSecretBasic(new ClientID(clientId), new Secret(clientSecret)));
-
-        if (!ssoConfig.isInitialized()) ssoConfig.buildProviderMetadata();
+        IntrospectionProfile profile = introspectionProfile(introspectionEndpoint, clientId, clientSecret);
+        ensureMetaData(muleMessage);
         logger.debug("Starting token introspection via identity provider and matching userId");
-        Map<String, Object> claims = client.ssoTokenValidation(tokenHeader);
+        Map<String, Object> claims = client.ssoTokenValidation(tokenHeader, profile);
         if(!claims.get("sub").equals(userId)) {
             throw new TokenValidationException("UserId does not match the token UserId");
         }
@@ -204,7 +378,7 @@ public class OpenIDConnectConnector {
             @Default("#[message.inboundProperties.'Authorization']")String tokenHeader,
             @Default("false") boolean claimExtraction) throws Exception {
         MuleMessage muleMessage = muleEvent.getMessage();
-        if (!ssoConfig.isInitialized()) ssoConfig.buildProviderMetadata();
+        ensureMetaData(muleMessage);
         logger.debug("Starting token validation via connector");
         Map<String, Object> claims = client.localTokenValidation(tokenHeader);
         if (claimExtraction) {
@@ -235,7 +409,7 @@ public class OpenIDConnectConnector {
             @Default("#[message.inboundProperties.'Authorization']")String tokenHeader,
             @Default("false") boolean claimExtraction) throws Exception {
         MuleMessage muleMessage = muleEvent.getMessage();
-        if (!ssoConfig.isInitialized()) ssoConfig.buildProviderMetadata();
+        ensureMetaData(muleMessage);
         logger.debug("Starting token validation with user id via connector");
         Map<String, Object> claims = client.localTokenValidation(tokenHeader);
         if(!claims.get("sub").equals(userId)) {
@@ -248,11 +422,101 @@ public class OpenIDConnectConnector {
     }
 
 
+    /**
+     * Validates the token locally like localTokenValidation, but with the metadata and keys of the token's issuer.
+     * The issuer has to be one of the trusted issuers of the connector config. The metadata of an issuer is loaded
+     * with its first token and evicted after the issuer idle timeout. Throws an exception handled by
+     * ExceptionHandler if validation fails. If claim extraction is activated, set of id-token claims is added to the
+     * flow variables.
+     *
+     * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:multi-issuer-token-validation}
+     *
+     * @param muleEvent The current MuleEvent Injected by the devkit
+     * @param tokenHeader Header with token to be validated ('Bearer TOKEN_STRING')
+     * @param claimExtraction Creates the FlowVar tokenClaims which contains a map with all claims of the given token
+     * @return The original payload if token is valid. If not, flow is intercepted and responses to the caller
+     */
+    @OnException(handler = ExceptionHandler.class)
+    @Processor
+    public void multiIssuerTokenValidation(
+            MuleEvent muleEvent,
+            @Default("#[message.inboundProperties.'Authorization']")String tokenHeader,
+            @Default("false") boolean claimExtraction) throws Exception {
+        MuleMessage muleMessage = muleEvent.getMessage();
+        if (tenantRegistry == null) {
+            throw new TokenValidationException("No trusted issuers configured");
+        }
+        logger.debug("Starting multi issuer token validation via connector");
+        Map<String, Object> claims;
+        try {
+            claims = client.multiIssuerTokenValidation(tokenHeader, tenantRegistry);
+        } catch (MetaDataUnavailableException e) {
+            serviceUnavailable(muleMessage, e);
+            throw e;
+        }
+        if (claimExtraction) {
+            logger.debug("Saving token claims as flowVar tokenClaims");
+            muleMessage.setInvocationProperty("tokenClaims", claims);
+        }
+    }
+
+
+    /**
+     * Validates the token locally on every request like localTokenValidation and additionally introspects it at the
+     * identity provider on first sight, after the introspection interval and for a random sample of the requests.
+     * A revoked token is rejected at the latest one interval after its revocation. If the identity provider is not
+     * reachable or the circuit breaker is open, a token whose interval has elapsed is rejected like a connection
+     * problem. With failOpen it is accepted for one more interval instead, so a revoked token may be accepted for up
+     * to two intervals. The processor is disabled if the hybrid validation cache size is 0. Throws an exception
+     * handled by ExceptionHandler if validation fails. If claim extraction is activated, set of id-token claims is
+     * added to the flow variables.
+     *
+     * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:hybrid-token-validation}
+     *
+     * @param muleEvent The current MuleEvent Injected by the devkit
+     * @param tokenHeader Header with token to be validated ('Bearer TOKEN_STRING')
+     * @param introspectionEndpoint The path of the introspection endpoint
+     * @param clientId Any Client-ID from the SSO to prevent token scanning attacks
+     * @param clientSecret The Secret of the given Client-ID
+     * @param introspectionInterval Time in seconds after which a token is introspected again
+     * @param samplingRate Probability (0 to 1) that a request is introspected although the interval hasn't elapsed
+     * @param failOpen Accept a token for one more interval if the identity provider is not reachable
+     * @param claimExtraction Creates the FlowVar tokenClaims which contains a map with all claims of the given token
+     * @return The original payload if token is valid. If not, flow is intercepted and responses to the caller
+     */
+    @OnException(handler = ExceptionHandler.class)
+    @Processor
+    public void hybridTokenValidation(
+            MuleEvent muleEvent,
+            @Default("#[message.inboundProperties.'Authorization']")String tokenHeader,
+            String introspectionEndpoint,
+            @FriendlyName("Client ID")String clientId,
+            @Password String clientSecret,
+            @Default("60") int introspectionInterval,
+            @Default("0") double samplingRate,
+            @Default("false") boolean failOpen,
+            @Default("false") boolean claimExtraction) throws Exception {
+        MuleMessage muleMessage = muleEvent.getMessage();
+        IntrospectionProfile profile = introspectionProfile(introspectionEndpoint, clientId, clientSecret);
+        ensureMetaData(muleMessage);
+        ensureIntrospectionSchedule();
+        logger.debug("Starting hybrid token validation");
+        Map<String, Object> claims = client.hybridTokenValidation(
+                tokenHeader, profile, TimeUnit.SECONDS.toMillis(introspectionInterval), samplingRate, failOpen
+        );
+        if (claimExtraction) {
+            logger.debug("Saving token claims as flowVar tokenClaims");
+            muleMessage.setInvocationProperty("tokenClaims", claims);
+        }
+    }
+
+
     /**
      * With this processor the connector works as a relying party specified by the OpenID Connect standard. Token
-     * management is realized via the mule object store. Redirects user to the identity provider if there isn't an
-     * active session. Otherwise it enhances the request with the Authorization header and continues processing of the
-     * current flow.
+     * management is realized via the mule object store or, if session cookie keys are configured, via encrypted
+     * cookies. Redirects user to the identity provider if there isn't an active session. Otherwise it enhances the
+     * request with the Authorization header and continues processing of the current flow. When the tokens are
+     * refreshed is decided by the refresh policy of the processor, so every flow can use its own policy.
      *
      * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:act-as-relying-party}
      *
@@ -261,7 +525,14 @@ public class OpenIDConnectConnector {
      * @param redirectUri URI which is registered at the Identity Provider
      * @param clientId SSO client ID for this application
      * @param clientSecret SSO client secret for this application
-     * @param instantRefresh Specifies if the tokens are refreshed at every request or only if they expire
+     * @param instantRefresh Deprecated, use the refresh strategy ALWAYS instead. If true, the tokens are refreshed at
+     *                       every request regardless of the refresh strategy
+     * @param refreshStrategy Specifies if the tokens are refreshed at every request (ALWAYS), once they are expired
+     *                        (EXPIRED) or once less than the given part of their lifetime remains (LIFETIME)
+     * @param refreshRemainingLifetime Remaining part of the access token lifetime in percent below which the tokens
+     *                                 are refreshed with the strategy LIFETIME, between 1 and 99
+     * @param refreshMinInterval Minimum time in seconds between two refreshes of a session. Expired tokens are
+     *                           always refreshed. 0 doesn't limit the refreshes
      * @return Intercepts the flow if redirecting or process with original content
      * @throws URISyntaxException If redirect URI isn't valid
      */
@@ -272,15 +543,19 @@ public class OpenIDConnectConnector {
             String redirectUri,
             String clientId,
             @Password String clientSecret,
-            @Default("false") boolean instantRefresh) throws Exception {
+            @Default("false") boolean instantRefresh,
+            @Default("EXPIRED") RefreshStrategy refreshStrategy,
+            @Default("20") int refreshRemainingLifetime,
+            @Default("0") int refreshMinInterval) throws Exception {
         MuleMessage muleMessage = muleEvent.getMessage();
-        ClientSecretBasic clientSecretBasic = new ClientSecretBasic(new ClientID(clientId), new Secret(clientSecret));
-        ssoConfig.setRedirectUri(new URI(redirectUri));
-        ssoConfig.setClientSecretBasic(clientSecretBasic);
-        RelyingPartyHandler handler = initializeRelyingParty(muleMessage, instantRefresh);
+        RelyingPartyProfile profile = relyingPartyProfile(redirectUri, clientId, clientSecret);
+        RefreshPolicy refreshPolicy = refreshPolicy(
+                instantRefresh ? RefreshStrategy.ALWAYS : refreshStrategy, refreshRemainingLifetime, refreshMinInterval
+        );
+        RelyingPartyHandler handler = initializeRelyingParty(muleMessage, profile, refreshPolicy);
 
         try {
-            if (!ssoConfig.isInitialized()) ssoConfig.buildProviderMetadata();
+            ensureMetaData(muleMessage);
             logger.debug("Handling request as relying party");
             client.actAsRelyingParty(handler);
 
@@ -292,6 +567,10 @@ public class OpenIDConnectConnector {
                 logger.debug("Continue processing flow. Access granted");
                 return callback.processEvent(muleEvent).getMessage().getPayload();
             }
+        } catch (MetaDataUnavailableException e) {
+            muleMessage.setPayload("OpenID provider is temporarily unavailable");
+            logger.debug(e.getMessage());
+            return muleMessage.getPayload();
         } catch (MetaDataInitializationException e) {
             changeResponseStatus(muleMessage, Response.Status.BAD_GATEWAY);
             muleMessage.setPayload("Could not connect to OpenID provider");
@@ -305,6 +584,204 @@ public class OpenIDConnectConnector {
         }
     }
 
+    /**
+     * Returns the size and the hit, miss and eviction counters of the token caches. The counters are only updated if
+     * statistics are enabled for the corresponding cache.
+     *
+     * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:token-cache-statistics}
+     *
+     * @return A map with the statistics of every enabled cache
+     */
+    @Processor
+    public Map<String, Object> tokenCacheStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        if (tokenValidator.getVerifiedTokenCache() != null) {
+            statistics.put("verifiedTokenCache", tokenValidator.getVerifiedTokenCache().getStatistics());
+        }
+        if (tokenValidator.getIntrospectionCache() != null) {
+            statistics.put("introspectionCache", tokenValidator.getIntrospectionCache().getStatistics());
+        }
+        if (sessionCache != null) {
+            statistics.put("sessionCache", sessionCache.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the size and the number of stored and removed entries of the relying party object stores. The
+     * counters only include the entries stored and removed by this node.
+     *
+     * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:session-store-statistics}
+     *
+     * @return A map with the statistics of the token and the redirect store
+     * @throws ObjectStoreException if the size of a store can't be read
+     */
+    @Processor
+    public Map<String, Object> sessionStoreStatistics() throws ObjectStoreException {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("tokenStore", tokenStorage.getStatistics());
+        statistics.put("redirectStore", redirectDataStorage.getStatistics());
+        return statistics;
+    }
+
+    /**
+     * Returns the state, the failure rate and the call counters of the circuit breaker for token introspection.
+     *
+     * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:circuit-breaker-statistics}
+     *
+     * @return A map with the statistics of the circuit breaker, empty if the circuit breaker is disabled
+     */
+    @Processor
+    public Map<String, Object> circuitBreakerStatistics() {
+        CircuitBreaker circuitBreaker = tokenValidator.getCircuitBreaker();
+        return circuitBreaker != null ? circuitBreaker.getStatistics() : new LinkedHashMap<>();
+    }
+
+    /**
+     * Returns the number of successful refreshes and avoided refreshes of every refresh policy used by a relying
+     * party processor. A refresh counts as avoided if the tokens would have been refreshed by refreshing on every request.
+     *
+     * {@sample.xml ../../../doc/open-id-connect.xml.sample open-id-connect:refresh-policy-statistics}
+     *
+     * @return A map with the statistics of every refresh policy by its name
+     */
+    @Processor
+    public Map<String, Object> refreshPolicyStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        refreshPolicies.values().forEach(policy -> statistics.put(policy.getName(), policy.getStatistics()));
+        return statistics;
+    }
+
+    /**
+     * Helper method to get the refresh policy of a processor configuration. Policies are shared by all processors
+     * with the same configuration, so their counters survive requests. If the parameters are dynamic expressions with
+     * many different values, one policy is evicted for every new one instead of growing without bounds
+     *
+     * @param strategy The refresh strategy
+     * @param remainingLifetime Remaining part of the lifetime in percent for the strategy LIFETIME
+     * @param minInterval Minimum time in seconds between two refreshes of a session, 0 for no limit
+     * @return The refresh policy
+     */
+    private RefreshPolicy refreshPolicy(RefreshStrategy strategy, int remainingLifetime, int minInterval) {
+        List<Object> key = Arrays.asList(
+                strategy, strategy == RefreshStrategy.LIFETIME ? remainingLifetime : 0, Math.max(0, minInterval)
+        );
+        RefreshPolicy policy = refreshPolicies.get(key);
+        if (policy != null) return policy;
+        if (refreshPolicies.size() >= MAX_REFRESH_POLICIES) evictOne(refreshPolicies);
+        return refreshPolicies.computeIfAbsent(key, k -> {
+            RefreshPolicy basePolicy;
+            switch (strategy) {
+                case ALWAYS:
+                    basePolicy = new AlwaysRefreshPolicy();
+                    break;
+                case LIFETIME:
+                    basePolicy = new LifetimeRefreshPolicy(remainingLifetime);
+                    break;
+                default:
+                    basePolicy = new ExpiredRefreshPolicy();
+            }
+            if (minInterval <= 0) return basePolicy;
+            return new RateLimitedRefreshPolicy(
+                    basePolicy, TimeUnit.SECONDS.toMillis(minInterval), MAX_RATE_LIMITED_SESSIONS
+            );
+        });
+    }
+
+    /**
+     * Helper method to get the introspection profile of a processor configuration. Profiles are built once per
+     * distinct endpoint and credentials, the secret is only kept as digest in the key. If the parameters are
+     * dynamic expressions with many different values, one profile is evicted for every new one instead of growing
+     * without bounds
+     *
+     * @param introspectionEndpoint The path of the introspection endpoint
+     * @param clientId Client-ID used for the introspection
+     * @param clientSecret The Secret of the given Client-ID
+     * @return The immutable introspection profile
+     */
+    private IntrospectionProfile introspectionProfile(String introspectionEndpoint, String clientId,
+                                                      String clientSecret) {
+        List<String> key = Arrays.asList(introspectionEndpoint, clientId, TokenCache.digest(clientSecret));
+        IntrospectionProfile profile = introspectionProfiles.get(key);
+        if (profile != null) return profile;
+        if (introspectionProfiles.size() >= MAX_INTROSPECTION_PROFILES) evictOne(introspectionProfiles);
+        return introspectionProfiles.computeIfAbsent(key, k -> new IntrospectionProfile(
+                UriBuilder.fromUri(ssoConfig.getSsoUri()).path(introspectionEndpoint).build(),
+                new ClientSecretBasic(new ClientID(clientId), new Secret(clientSecret))
+        ));
+    }
+
+    /**
+     * Helper method to get the client profile of a relying party processor configuration. Profiles are built once
+     * per distinct redirect URI and credentials, the secret is only kept as digest in the key. If the parameters are
+     * dynamic expressions with many different values, one profile is evicted for every new one instead of growing
+     * without bounds
+     *
+     * @param redirectUri URI which is registered at the Identity Provider
+     * @param clientId SSO client ID for this application
+     * @param clientSecret SSO client secret for this application
+     * @return The immutable relying party profile
+     * @throws URISyntaxException If redirect URI isn't valid
+     */
+    private RelyingPartyProfile relyingPartyProfile(String redirectUri, String clientId, String clientSecret)
+            throws URISyntaxException {
+        List<String> key = Arrays.asList(redirectUri, clientId, TokenCache.digest(clientSecret));
+        RelyingPartyProfile profile = relyingPartyProfiles.get(key);
+        if (profile != null) return profile;
+        profile = new RelyingPartyProfile(
+                new URI(redirectUri), new ClientSecretBasic(new ClientID(clientId), new Secret(clientSecret))
+        );
+        if (relyingPartyProfiles.size() >= MAX_RELYING_PARTY_PROFILES) evictOne(relyingPartyProfiles);
+        RelyingPartyProfile existing = relyingPartyProfiles.putIfAbsent(key, profile);
+        return existing != null ? existing : profile;
+    }
+
+    /**
+     * Removes one entry of a bounded map of processor configurations
+     */
+    private static void evictOne(ConcurrentMap<?, ?> map) {
+        Iterator<?> iterator = map.keySet().iterator();
+        if (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Helper method to make sure the identity provider metadata is available. Without background refresh the
+     * metadata is built by exactly one request thread, concurrent requests wait for it. After a failure or with
+     * background refresh the request fails immediately with 503 instead of waiting for the identity provider, the
+     * metadata is fetched again in the background
+     *
+     * @param message MuleMessage whose HTTP status is set if the metadata is not available
+     * @throws MetaDataInitializationException if the metadata is not available
+     */
+    private void ensureMetaData(MuleMessage message) throws MetaDataInitializationException {
+        if (ssoConfig.isInitialized()) return;
+        try {
+            if (metaDataRefresher != null) {
+                throw new MetaDataUnavailableException(
+                        "Identity provider metadata is not available yet", System.currentTimeMillis()
+                );
+            }
+            ssoConfig.initialize();
+        } catch (MetaDataUnavailableException e) {
+            serviceUnavailable(message, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Helper method to answer with 503 and the time after which the identity provider metadata is fetched again
+     *
+     * @param message MuleMessage where HTTP status properties are changed
+     * @param e The cause of the unavailability
+     */
+    private void serviceUnavailable(MuleMessage message, MetaDataUnavailableException e) {
+        changeResponseStatus(message, Response.Status.SERVICE_UNAVAILABLE);
+        message.setOutboundProperty(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+    }
+
     /**
      * Helper method to change the status code and reason phrase of the current request/mule message
      *
@@ -320,23 +797,84 @@ public class OpenIDConnectConnector {
         );
 	}
 
+    /**
+     * Creates the introspection schedule of the hybrid token validation with its first use, so connectors which
+     * don't use hybridTokenValidation don't hold it at all. Without cache size the hybrid token validation stays
+     * disabled
+     */
+    private void ensureIntrospectionSchedule() {
+        if (introspectionSchedule != null || config.getHybridValidationCacheSize() <= 0) return;
+        synchronized (this) {
+            if (introspectionSchedule != null) return;
+            logger.debug("Enabling hybrid token validation");
+            TokenCache<Long> schedule = new TokenCache<>(config.getHybridValidationCacheSize(), Long.MAX_VALUE, false);
+            tokenValidator.setIntrospectionSchedule(schedule);
+            introspectionSchedule = schedule;
+        }
+    }
+
+    /**
+     * Helper method to look up a relying party object store. Without time to live and maximum entries the default
+     * object store is used, otherwise a monitored in-memory store which expires entries in background
+     *
+     * @param name name of the object store
+     * @param label name of the store in configuration errors
+     * @param ttlSeconds time to live of an entry in seconds, 0 for no expiration
+     * @param maxEntries maximum number of entries, 0 for no limit
+     * @return the object store
+     * @throws IllegalArgumentException if the time to live or the expiration interval doesn't fit into the int
+     * milliseconds of the object store
+     */
+    private <T extends Serializable> ListableObjectStore<T> objectStore(String name, String label, int ttlSeconds,
+                                                                         int maxEntries) {
+        if (ttlSeconds <= 0 && maxEntries <= 0) {
+            return muleContext.getObjectStoreManager().getObjectStore(name);
+        }
+        return muleContext.getObjectStoreManager().getObjectStore(
+                name,
+                false,
+                maxEntries,
+                storeMillis(ttlSeconds, label + " time to live"),
+                storeMillis(config.getStoreExpirationInterval(), "Store expiration interval")
+        );
+    }
+
+    /**
+     * Helper method to convert a store setting from seconds to the int milliseconds of the Mule object store
+     *
+     * @param seconds the configured value in seconds
+     * @param setting name of the setting in the error message
+     * @return the value in milliseconds
+     * @throws IllegalArgumentException if the value is larger than Integer.MAX_VALUE milliseconds
+     */
+    private static int storeMillis(int seconds, String setting) {
+        try {
+            return Math.toIntExact(TimeUnit.SECONDS.toMillis(seconds));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(String.format(
+                    "%s must be at most %d seconds", setting, TimeUnit.MILLISECONDS.toSeconds(Integer.MAX_VALUE)
+            ), e);
+        }
+    }
+
     /**
      * Helper method to instantiate a RelyingPartyHandler
      *
      * @param muleMessage the current mule message
-     * @param instantRefresh token set instant refresh
+     * @param profile redirect URI and client credentials of the processor
+     * @param refreshPolicy policy deciding when the token set is refreshed
      * @return the relying party
      */
-    private RelyingPartyHandler initializeRelyingParty(MuleMessage muleMessage, boolean instantRefresh){
-        ListableObjectStore<TokenData> tokenStore = muleContext.getObjectStoreManager()
-                .getObjectStore("token-cookie-store");
-        Storage<TokenData> tStorage = new Storage<>(tokenStore);
-        ListableObjectStore<RedirectData> redirectStore = muleContext.getObjectStoreManager()
-                .getObjectStore("redirect-cookie-store");
-        Storage<RedirectData> rStorage= new Storage<>(redirectStore);
-        TokenRequester requester = new TokenRequester();
+    private RelyingPartyHandler initializeRelyingParty(MuleMessage muleMessage, RelyingPartyProfile profile,
+                                                       RefreshPolicy refreshPolicy){
         TokenVerifier verifier = new TokenVerifier();
-        return new RelyingPartyHandler(muleMessage, requester, tStorage, rStorage, ssoConfig, verifier, instantRefresh);
+        RelyingPartyHandler handler = new RelyingPartyHandler(
+                muleMessage, tokenRequester, tokenStorage, redirectDataStorage, ssoConfig, profile, verifier,
+                refreshPolicy
+        );
+        if (sessionCookieCodec != null) handler.setSessionCodec(sessionCookieCodec);
+        if (refreshAheadScheduler != null) handler.setRefreshScheduler(refreshAheadScheduler);
+        return handler;
     }
 
     public ConnectorConfig getConfig() {
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker for calls to the identity provider. The outcomes of the last calls are recorded in a sliding
+ * window, failed calls and calls slower than the slow call threshold count as failures. If the failure rate of a
+ * full window reaches the threshold, the circuit opens and calls are rejected without waiting for the identity
+ * provider. After the open duration a limited number of probe calls is permitted (half open). If all of them
+ * succeed the circuit closes again, otherwise it opens for another period. Every permitted call gets a permit which
+ * records the state it was admitted in, so calls which finish after a state change can't be mistaken for probes.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int windowSize;
+    private final int failureRateThreshold;
+    private final long slowCallThreshold;
+    private final long openDuration;
+    private final int halfOpenProbes;
+
+    private final boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long generation;
+
+    private final LongAdder successfulCalls = new LongAdder();
+    private final LongAdder failedCalls = new LongAdder();
+    private final LongAdder slowCalls = new LongAdder();
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder openedCount = new LongAdder();
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * @param windowSize Number of calls in the sliding window
+     * @param failureRateThreshold Failure rate in percent at which the circuit opens
+     * @param slowCallThreshold Duration in milliseconds from which on a call counts as failure, 0 disables it
+     * @param openDuration Time in milliseconds the circuit stays open before probe calls are permitted
+     * @param halfOpenProbes Number of probe calls in half open state
+     */
+    public CircuitBreaker(int windowSize, int failureRateThreshold, long slowCallThreshold, long openDuration,
+                          int halfOpenProbes) {
+        this.windowSize = Math.max(1, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        this.window = new boolean[this.windowSize];
+    }
+
+    /**
+     * Checks if a call is permitted. Every permitted call has to be reported with onResult()
+     *
+     * @return The permit of the call or null if the call has to be rejected
+     */
+    public synchronized Permit tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDuration) {
+                rejectedCalls.increment();
+                return null;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= halfOpenProbes) {
+                rejectedCalls.increment();
+                return null;
+            }
+            probesInFlight++;
+            return new Permit(generation, true);
+        }
+        return new Permit(generation, false);
+    }
+
+    /**
+     * Records the outcome of a permitted call. Only results of calls admitted in the current state change it, the
+     * results of older calls are just counted
+     *
+     * @param permit The permit of the call
+     * @param durationMillis Duration of the call
+     * @param error True if the call failed
+     */
+    public synchronized void onResult(Permit permit, long durationMillis, boolean error) {
+        boolean slow = slowCallThreshold > 0 && durationMillis >= slowCallThreshold;
+        boolean failure = error || slow;
+        if (error) failedCalls.increment(); else successfulCalls.increment();
+        if (slow) slowCalls.increment();
+        if (permit.generation != generation) return;
+
+        if (state == State.HALF_OPEN && permit.probe) {
+            probesInFlight--;
+            if (failure) {
+                transitionTo(State.OPEN);
+            } else if (++probeSuccesses >= halfOpenProbes) {
+                transitionTo(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            record(failure);
+            if (windowCount == windowSize && windowFailures * 100 >= failureRateThreshold * windowSize) {
+                transitionTo(State.OPEN);
+            }
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return State and counters of the circuit breaker as map
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("state", state.name());
+        statistics.put("failureRate", windowCount > 0 ? windowFailures * 100 / windowCount : 0);
+        statistics.put("successfulCalls", successfulCalls.sum());
+        statistics.put("failedCalls", failedCalls.sum());
+        statistics.put("slowCalls", slowCalls.sum());
+        statistics.put("rejectedCalls", rejectedCalls.sum());
+        statistics.put("opened", openedCount.sum());
+        return statistics;
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == windowSize) {
+            if (window[windowIndex]) windowFailures--;
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failure;
+        if (failure) windowFailures++;
+        windowIndex = (windowIndex + 1) % windowSize;
+    }
+
+    private void transitionTo(State newState) {
+        logger.info("Identity provider circuit breaker changes from {} to {}", state, newState);
+        state = newState;
+        generation++;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+            openedCount.increment();
+        } else if (newState == State.CLOSED) {
+            windowIndex = 0;
+            windowCount = 0;
+            windowFailures = 0;
+        }
+    }
+
+    /**
+     * Permission of a single call, issued by tryAcquirePermission()
+     */
+    public static final class Permit {
+        private final long generation;
+        private final boolean probe;
+
+        private Permit(long generation, boolean probe) {
+            this.generation = generation;
+            this.probe = probe;
+        }
+
+        public boolean isProbe() {
+            return probe;
+        }
+    }
+}
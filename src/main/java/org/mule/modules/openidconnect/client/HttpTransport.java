@@ -0,0 +1,292 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared HTTP transport for all requests to the identity provider. The transport doesn't pool connections itself,
+ * it limits the number of concurrent connections per route (scheme, host and port) and callers wait at most the
+ * connect timeout for a free connection. Idle connections are kept alive and reused by the keep-alive cache of the
+ * JVM, so response bodies are always read completely and closed. That cache holds at most http.maxConnections
+ * (default 5) idle connections per destination. It is a JVM wide system property which has to be set at startup,
+ * e.g. -Dhttp.maxConnections=20, otherwise connections above that number are closed after their request. By
+ * default the number of concurrent connections per route is limited to that number as well.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class HttpTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+    private static final int DEFAULT_KEEP_ALIVE_CONNECTIONS = 5;
+    private static final Logger logger = LoggerFactory.getLogger(HttpTransport.class);
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxConnectionsPerRoute;
+    private final ConcurrentMap<String, Semaphore> routes = new ConcurrentHashMap<>();
+
+    public HttpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, 0);
+    }
+
+    /**
+     * @param connectTimeout Connect timeout in milliseconds, also the maximum time to wait for a free connection.
+     *                       0 waits infinitely
+     * @param readTimeout Read timeout in milliseconds
+     * @param maxConnectionsPerRoute Maximum number of concurrent connections per route. 0 uses the number of idle
+     *                               connections the JVM keeps alive per destination (http.maxConnections)
+     */
+    public HttpTransport(int connectTimeout, int readTimeout, int maxConnectionsPerRoute) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        int keepAliveConnections = Math.max(1,
+                Integer.getInteger("http.maxConnections", DEFAULT_KEEP_ALIVE_CONNECTIONS));
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : keepAliveConnections;
+        if (this.maxConnectionsPerRoute > keepAliveConnections) {
+            logger.info("Only {} of {} connections per host are kept alive, set the system property "
+                    + "http.maxConnections to reuse all of them", keepAliveConnections, this.maxConnectionsPerRoute);
+        }
+    }
+
+    /**
+     * Sends a request built by the Nimbus SDK, e.g. a token or introspection request. All response headers are
+     * copied into the response, repeated headers are joined with commas
+     *
+     * @param request The request to send
+     * @return The response of the identity provider
+     * @throws IOException if connecting to the identity provider fails
+     */
+    public HTTPResponse send(HTTPRequest request) throws IOException {
+        URL url = request.getURL();
+        String body = null;
+        if (request.getMethod() == HTTPRequest.Method.GET || request.getMethod() == HTTPRequest.Method.DELETE) {
+            if (request.getQuery() != null) url = new URL(url + "?" + request.getQuery());
+        } else {
+            body = request.getQuery();
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (request.getAuthorization() != null) headers.put("Authorization", request.getAuthorization());
+        if (request.getContentType() != null) headers.put("Content-Type", request.getContentType().toString());
+
+        Response response = execute(request.getMethod().name(), url, headers, body);
+        HTTPResponse httpResponse = new HTTPResponse(response.status);
+        for (Map.Entry<String, List<String>> header : response.headers.entrySet()) {
+            // the status line has no name and the content type is parsed below
+            if (header.getKey() == null || "Content-Type".equalsIgnoreCase(header.getKey())) continue;
+            httpResponse.setHeader(header.getKey(), String.join(", ", header.getValue()));
+        }
+        if (response.contentType != null) {
+            try {
+                httpResponse.setContentType(response.contentType);
+            } catch (ParseException e) {
+                throw new IOException("Invalid content type " + response.contentType, e);
+            }
+        }
+        if (!response.content.isEmpty()) httpResponse.setContent(response.content);
+        return httpResponse;
+    }
+
+    /**
+     * Requests JSON from the given endpoint via HTTP GET. If a previous document is given, the request is
+     * conditional (If-None-Match / If-Modified-Since) and a 304 response returns the previous document marked as not
+     * modified. The freshness of the document is taken from the Cache-Control max-age or the Expires header
+     *
+     * @param uri Endpoint to obtain JSON from
+     * @param previous The document fetched before or null
+     * @return The fetched or revalidated document
+     * @throws IOException if connecting fails or the response status is neither 2xx nor 304
+     */
+    public JsonDocument requestJsonDocument(URI uri, JsonDocument previous) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Accept", "application/json");
+        if (previous != null && previous.getEtag() != null) headers.put("If-None-Match", previous.getEtag());
+        if (previous != null && previous.getLastModified() != null) {
+            headers.put("If-Modified-Since", previous.getLastModified());
+        }
+        Response response = execute("GET", uri.toURL(), headers, null);
+        long expiresAt = expiresAt(response, System.currentTimeMillis());
+        if (response.status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+            return previous.notModified(expiresAt);
+        }
+        if (response.status / 100 != 2) {
+            throw new IOException(String.format("Unexpected HTTP status %d from %s", response.status, uri));
+        }
+        return new JsonDocument(
+                response.content, response.header("ETag"), response.header("Last-Modified"), expiresAt
+        );
+    }
+
+    /**
+     * Freshness of a response as defined by RFC 7234. Cache-Control max-age (reduced by the Age header) takes
+     * precedence over Expires. no-cache and no-store make the response stale immediately
+     *
+     * @return Point in time (epoch millis) until which the response is fresh, now if it is stale immediately and 0
+     * if the response doesn't declare its freshness
+     */
+    static long expiresAt(Response response, long now) {
+        String cacheControl = response.header("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store")) return now;
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        long maxAge = Long.parseLong(directive.substring(8).replace("\"", ""));
+                        long age = parseSeconds(response.header("Age"));
+                        return maxAge > age ? now + TimeUnit.SECONDS.toMillis(maxAge - age) : now;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        String expires = response.header("Expires");
+        if (expires != null) {
+            try {
+                long expiresMillis = ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                return Math.max(expiresMillis, now);
+            } catch (DateTimeParseException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private Response execute(String method, URL url, Map<String, String> headers, String body)
+            throws IOException {
+        Semaphore route = routes.computeIfAbsent(routeOf(url), r -> new Semaphore(maxConnectionsPerRoute));
+        acquire(route, url);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            headers.forEach(connection::setRequestProperty);
+            if (body != null) {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            return new Response(status, connection.getContentType(), readFully(in), connection.getHeaderFields());
+        } finally {
+            route.release();
+        }
+    }
+
+    private void acquire(Semaphore route, URL url) throws IOException {
+        try {
+            if (connectTimeout <= 0) {
+                route.acquire();
+            } else if (!route.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException(String.format("No free connection to %s within %d ms", routeOf(url),
+                        connectTimeout));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + routeOf(url));
+        }
+    }
+
+    /**
+     * Reads and closes the stream, which returns the connection to the keep-alive cache
+     */
+    private String readFully(InputStream in) throws IOException {
+        if (in == null) return "";
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private String routeOf(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    static final class Response {
+        private final int status;
+        private final String contentType;
+        private final String content;
+        private final Map<String, List<String>> headers;
+
+        Response(int status, String contentType, String content, Map<String, List<String>> headers) {
+            this.status = status;
+            this.contentType = contentType;
+            this.content = content;
+            this.headers = headers;
+        }
+
+        /**
+         * @return The first value of the header with the given case insensitive name or null
+         */
+        String header(String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.client;
+
+/**
+ * A JSON document fetched from the identity provider together with its HTTP cache validators and freshness. A
+ * document returned for a 304 response is the previously fetched one with updated freshness and isNotModified()
+ * set, so callers can reuse what they parsed before.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public final class JsonDocument {
+
+    private final String content;
+    private final String etag;
+    private final String lastModified;
+    private final long expiresAt;
+    private final boolean notModified;
+
+    /**
+     * @param content JSON content
+     * @param etag Value of the ETag header or null
+     * @param lastModified Value of the Last-Modified header or null
+     * @param expiresAt Point in time (epoch millis) until which the document is fresh, the fetch time if it is stale
+     *                  immediately and 0 if unknown
+     */
+    public JsonDocument(String content, String etag, String lastModified, long expiresAt) {
+        this(content, etag, lastModified, expiresAt, false);
+    }
+
+    private JsonDocument(String content, String etag, String lastModified, long expiresAt, boolean notModified) {
+        this.content = content;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expiresAt = expiresAt;
+        this.notModified = notModified;
+    }
+
+    /**
+     * @param refreshedExpiresAt Freshness sent with the 304 response
+     * @return This document marked as not modified with the given freshness
+     */
+    public JsonDocument notModified(long refreshedExpiresAt) {
+        return new JsonDocument(content, etag, lastModified, refreshedExpiresAt, true);
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
+}
@@ -24,6 +24,7 @@ import com.nimbusds.oauth2.sdk.TokenResponse;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.token.AccessToken;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponseParser;
+import org.mule.modules.openidconnect.client.tokenvalidation.ParsedToken;
 
 /**
  * A utility class which wraps and provides static method calls from the nimbus OpenIDConnect and OAuth2 SDK. Helps
@@ -46,6 +47,11 @@ public class NimbusParserUtil {
         return AccessToken.parse(authHeader);
     }
 
+    public ParsedToken parseToken(AccessToken accessToken) throws java.text.ParseException {
+        SignedJWT signedJWT = SignedJWT.parse(accessToken.getValue());
+        return new ParsedToken(accessToken, signedJWT, signedJWT.getJWTClaimsSet());
+    }
+
     public TokenIntrospectionResponse parseIntrospectionResponse(HTTPResponse response) throws ParseException {
         return TokenIntrospectionResponse.parse(response);
     }
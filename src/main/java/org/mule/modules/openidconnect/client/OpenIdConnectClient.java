@@ -19,8 +19,12 @@ import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.oauth2.sdk.ParseException;
 import org.mule.api.store.ObjectStoreException;
 import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyHandler;
+import org.mule.modules.openidconnect.client.relyingparty.storage.RedirectData;
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+import org.mule.modules.openidconnect.client.tokenvalidation.IntrospectionProfile;
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenValidator;
 import org.mule.modules.openidconnect.config.SingleSignOnConfig;
+import org.mule.modules.openidconnect.config.TenantRegistry;
 import org.mule.modules.openidconnect.exception.HTTPConnectException;
 import org.mule.modules.openidconnect.exception.MetaDataInitializationException;
 import org.mule.modules.openidconnect.exception.TokenValidationException;
@@ -53,13 +57,14 @@ public class OpenIdConnectClient {
      * Calls the TokenValidator for identity provider based token validation
      *
      * @param authHeader Authorization header string from HTTP Request
+     * @param profile Introspection endpoint and client credentials
      * @return A map representing the claims of the submitted token
      * @throws TokenValidationException if the token is invalid
      * @throws HTTPConnectException if the connector can't connect to the identity provider
      */
-    public Map<String, Object> ssoTokenValidation(String authHeader)
+    public Map<String, Object> ssoTokenValidation(String authHeader, IntrospectionProfile profile)
             throws TokenValidationException, HTTPConnectException {
-        return tokenValidator.introspectionTokenValidation(authHeader, ssoConfig);
+        return tokenValidator.introspectionTokenValidation(authHeader, ssoConfig, profile);
     }
 
     /**
@@ -74,6 +79,43 @@ public class OpenIdConnectClient {
         return jwtClaimSet.toJSONObject();
     }
 
+    /**
+     * Calls the TokenValidator for connector based token validation with the config of the token's issuer
+     *
+     * @param authHeader Authorization header string from HTTP Request
+     * @param tenants Registry of the configs of all trusted issuers
+     * @return A map representing the claims of the submitted token
+     * @throws TokenValidationException if the token is invalid or its issuer is not trusted
+     * @throws MetaDataInitializationException if the metadata of the issuer is not available
+     */
+    public Map<String, Object> multiIssuerTokenValidation(String authHeader, TenantRegistry tenants)
+            throws TokenValidationException, MetaDataInitializationException {
+        JWTClaimsSet jwtClaimSet = tokenValidator.multiIssuerTokenValidation(authHeader, tenants);
+        return jwtClaimSet.toJSONObject();
+    }
+
+    /**
+     * Calls the TokenValidator for hybrid token validation, local verification with periodic introspection
+     *
+     * @param authHeader Authorization header string from HTTP Request
+     * @param profile Introspection endpoint and client credentials
+     * @param introspectionInterval Time in milliseconds after which a token is introspected again
+     * @param samplingRate Probability that a request is introspected although the interval hasn't elapsed
+     * @param failOpen Accept the token for one more interval if the identity provider is not reachable
+     * @return A map representing the claims of the submitted token
+     * @throws TokenValidationException if the token is invalid or revoked
+     * @throws HTTPConnectException if the connector can't connect to the identity provider
+     */
+    public Map<String, Object> hybridTokenValidation(String authHeader, IntrospectionProfile profile,
+                                                     long introspectionInterval, double samplingRate,
+                                                     boolean failOpen)
+            throws TokenValidationException, HTTPConnectException {
+        JWTClaimsSet jwtClaimSet = tokenValidator.hybridTokenValidation(
+                authHeader, ssoConfig, profile, introspectionInterval, samplingRate, failOpen
+        );
+        return jwtClaimSet.toJSONObject();
+    }
+
     /**
      * Calls the relying party handler to act as an OpenID Connect client
      *
@@ -84,12 +126,16 @@ public class OpenIdConnectClient {
      */
     public void actAsRelyingParty(RelyingPartyHandler relyingPartyHandler) throws
             ObjectStoreException, ParseException, java.text.ParseException {
-        if (relyingPartyHandler.hasCookieAndExistsInStore(RelyingPartyHandler.TOKEN_COOKIE_NAME)) {
+        TokenData tokenData = relyingPartyHandler.findTokenData();
+        if (tokenData != null) {
             logger.debug("Token cookie found in request and store. Handling resource request");
-            relyingPartyHandler.handleResourceRequest();
-        } else if (relyingPartyHandler.hasCookieAndExistsInStore(RelyingPartyHandler.REDIRECT_COOKIE_NAME)) {
+            relyingPartyHandler.handleResourceRequest(tokenData);
+            return;
+        }
+        RedirectData redirectData = relyingPartyHandler.findRedirectData();
+        if (redirectData != null) {
             logger.debug("Redirect cookie found in request and store. Handling token request");
-            relyingPartyHandler.handleTokenRequest();
+            relyingPartyHandler.handleTokenRequest(redirectData);
         } else {
             logger.debug("No matching cookies found in request and store. Handling redirect to identity provider");
             relyingPartyHandler.handleRedirect();
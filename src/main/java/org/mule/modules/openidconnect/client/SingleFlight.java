@@ -0,0 +1,79 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent calls with the same key. The first caller executes the call, all callers which arrive while
+ * the call is in flight wait for it and receive the same result or exception. Results are not cached, a caller
+ * arriving after the call completed starts a new one.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Executes the given call or waits for the call which is already in flight for the given key
+     *
+     * @param key Key of the call, e.g. the digest of a token
+     * @param call Call to be executed if no call with the same key is in flight
+     * @return The result of the call
+     * @throws Exception The exception thrown by the call
+     */
+    public V execute(K key, Callable<V> call) throws Exception {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> runningFlight = flights.putIfAbsent(key, flight);
+        if (runningFlight != null) {
+            return await(runningFlight);
+        }
+        try {
+            V result = call.call();
+            flight.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return Number of calls currently in flight
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private V await(CompletableFuture<V> flight) throws Exception {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import org.mule.api.store.ObjectStoreException;
+import org.mule.modules.openidconnect.client.relyingparty.storage.Storage;
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenVerifier;
+import org.mule.modules.openidconnect.config.SingleSignOnConfig;
+import org.mule.modules.openidconnect.exception.RequestTokenFromSsoException;
+import org.mule.modules.openidconnect.exception.TokenValidationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the token sets of relying party sessions in background threads shortly before their access tokens
+ * expire, so that resource requests almost never have to wait for the identity provider. Every session is scheduled
+ * on a delay queue ordered by the expiration time of its access token minus a configurable margin. Refreshed token
+ * sets are written back to the storage under the same entry id, so the cookie of the consumer stays valid. Sessions
+ * without resource requests since their previous refresh or for the maximum idle time are not refreshed again, they
+ * are left to the resource requests which refresh on demand. As every refresh stores the session again, this lets the
+ * time to live of the token store expire unused sessions.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class RefreshAheadScheduler {
+
+    private final TokenRequester tokenRequester;
+    private final TokenVerifier verifier;
+    private final SingleSignOnConfig ssoConfig;
+    private final long marginMillis;
+    private final int maxSessions;
+    private final long maxIdleMillis;
+    private final ConcurrentMap<String, Session> scheduled = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    private static final int REFRESH_THREADS = 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshAheadScheduler.class);
+
+    /**
+     * @param tokenRequester Requester used to refresh the token sets
+     * @param verifier Verifier used to check the refreshed ID tokens
+     * @param ssoConfig Config object with all necessary identity provider information
+     * @param marginMillis Time before the expiration of the access token at which the token set is refreshed
+     * @param maxSessions Maximum number of sessions scheduled at the same time
+     * @param maxIdleMillis Time without resource request after which a session is not refreshed anymore, 0 for no
+     *                      limit
+     */
+    public RefreshAheadScheduler(TokenRequester tokenRequester, TokenVerifier verifier, SingleSignOnConfig ssoConfig,
+                                 long marginMillis, int maxSessions, long maxIdleMillis) {
+        this.tokenRequester = tokenRequester;
+        this.verifier = verifier;
+        this.ssoConfig = ssoConfig;
+        this.marginMillis = marginMillis;
+        this.maxSessions = maxSessions;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Starts the background threads. A few threads refresh in parallel, so that one slow token request doesn't delay
+     * the refreshes of all other sessions
+     */
+    public synchronized void start() {
+        if (executor != null) return;
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(REFRESH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "oidc-session-refresher-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the background threads and drops all scheduled sessions. Running refreshes are not interrupted
+     */
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdown();
+        executor = null;
+        scheduled.clear();
+    }
+
+    /**
+     * Schedules the refresh of a session which was just used. An already scheduled refresh of the same session is
+     * replaced. Sessions without refresh token or without known expiration time of the access token are not scheduled
+     *
+     * @param tokenData Current token set of the session
+     * @param storage Storage the session is kept in
+     * @param profile Client of the relying party processor which refreshes the session
+     */
+    public void schedule(TokenData tokenData, Storage<TokenData> storage, RelyingPartyProfile profile) {
+        Session session = reschedule(tokenData, storage, profile);
+        if (session != null) session.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a resource request of a session. Sessions which are not scheduled yet, e.g. because they were created
+     * on another node or before a restart, are scheduled
+     *
+     * @param tokenData Current token set of the session
+     * @param storage Storage the session is kept in
+     * @param profile Client of the relying party processor which refreshes the session
+     */
+    public void recordAccess(TokenData tokenData, Storage<TokenData> storage, RelyingPartyProfile profile) {
+        if (tokenData.getCookieId() == null) return;
+        Session session = scheduled.get(tokenData.getCookieId());
+        if (session != null) {
+            session.lastAccess = System.currentTimeMillis();
+        } else {
+            schedule(tokenData, storage, profile);
+        }
+    }
+
+    /**
+     * Cancels the scheduled refresh of a session
+     *
+     * @param entryId Storage entry id of the session
+     */
+    public void cancel(String entryId) {
+        if (entryId == null) return;
+        Session session = scheduled.remove(entryId);
+        if (session != null) session.future.cancel(false);
+    }
+
+    public int size() {
+        return scheduled.size();
+    }
+
+    /**
+     * Schedules the refresh of a session without recording an access. The schedule is changed inside the lock, so a
+     * concurrent stop or reschedule of the same session can't leave a refresh behind which is not tracked
+     */
+    private Session reschedule(TokenData tokenData, Storage<TokenData> storage, RelyingPartyProfile profile) {
+        String entryId = tokenData.getCookieId();
+        long expiresAt = tokenData.getAccessTokenExpiry();
+        if (entryId == null || expiresAt <= 0 || tokenData.getRefreshToken() == null) return null;
+        long delay = Math.max(0, expiresAt - marginMillis - System.currentTimeMillis());
+        synchronized (this) {
+            if (executor == null) return null;
+            Session session = scheduled.get(entryId);
+            if (session == null && scheduled.size() >= maxSessions) {
+                logger.debug("Maximum number of scheduled sessions reached. Session is refreshed on demand");
+                return null;
+            }
+            ScheduledFuture<?> future = executor.schedule(
+                    () -> refresh(entryId, storage), delay, TimeUnit.MILLISECONDS
+            );
+            if (session == null) {
+                session = new Session(future, profile);
+                scheduled.put(entryId, session);
+            } else {
+                session.future.cancel(false);
+                session.future = future;
+                session.profile = profile;
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Refreshes the session with the current token set of the storage. Sessions which were removed or cancelled in
+     * the meantime are dropped, sessions which were refreshed by a resource request in the meantime are rescheduled.
+     * Sessions without resource request since their previous refresh or for the maximum idle time are dropped as well.
+     * If the refresh fails, the session is left to the resource requests which refresh on demand or redirect to the
+     * identity provider
+     */
+    void refresh(String entryId, Storage<TokenData> storage) {
+        Session session = scheduled.get(entryId);
+        if (session == null) return;
+        try {
+            TokenData current = storage.getData(entryId);
+            if (current == null) {
+                scheduled.remove(entryId);
+                return;
+            }
+            if (current.getAccessTokenExpiry() - marginMillis > System.currentTimeMillis()) {
+                reschedule(current, storage, session.profile);
+                return;
+            }
+            if (session.lastAccess < session.lastRefresh) {
+                scheduled.remove(entryId);
+                logger.debug("Session wasn't used since its previous refresh. Session is refreshed on demand");
+                return;
+            }
+            if (maxIdleMillis > 0 && System.currentTimeMillis() - session.lastAccess >= maxIdleMillis) {
+                scheduled.remove(entryId);
+                logger.debug("Session wasn't used for the maximum idle time. Session is left to the store expiration");
+                return;
+            }
+            logger.debug("Refreshing tokens of session ahead of expiration");
+            TokenData refreshed = tokenRequester.refreshTokenSet(current, ssoConfig, session.profile);
+            verifier.verifyRefreshedIdToken(current.getIdToken(), refreshed.getIdToken());
+            storage.storeData(entryId, refreshed);
+            session.lastRefresh = System.currentTimeMillis();
+            reschedule(refreshed, storage, session.profile);
+        } catch (ObjectStoreException | IOException | ParseException | RequestTokenFromSsoException |
+                TokenValidationException e) {
+            scheduled.remove(entryId);
+            logger.debug("Refresh ahead of expiration failed. Session is refreshed on demand. Reason: {}",
+                    e.getMessage());
+        } catch (RuntimeException e) {
+            scheduled.remove(entryId);
+            logger.error("Unexpected error during refresh ahead of expiration", e);
+        }
+    }
+
+    /**
+     * Scheduled refresh of a session, the client which refreshes it and the times of its last resource request and
+     * its last background refresh
+     */
+    private static class Session {
+        private volatile ScheduledFuture<?> future;
+        private volatile RelyingPartyProfile profile;
+        private volatile long lastAccess;
+        private volatile long lastRefresh;
+
+        private Session(ScheduledFuture<?> future, RelyingPartyProfile profile) {
+            this.future = future;
+            this.profile = profile;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+}
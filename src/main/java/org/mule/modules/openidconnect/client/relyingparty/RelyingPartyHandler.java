@@ -22,6 +22,7 @@ import org.mule.api.MuleMessage;
 import org.mule.api.store.ObjectStoreException;
 import org.mule.module.http.api.HttpConstants;
 import org.mule.module.http.api.HttpHeaders;
+import org.mule.modules.openidconnect.client.relyingparty.refresh.RefreshPolicy;
 import org.mule.modules.openidconnect.client.relyingparty.storage.RedirectData;
 import org.mule.modules.openidconnect.client.relyingparty.storage.Storage;
 import org.mule.modules.openidconnect.client.relyingparty.storage.StorageData;
@@ -35,7 +36,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -49,13 +53,17 @@ public class RelyingPartyHandler {
 
     public static final String TOKEN_COOKIE_NAME = "ESB-OIDC-TDID";
     public static final String REDIRECT_COOKIE_NAME = "ESB-OIDC-RDID";
+    private static final int MAX_COOKIE_CHUNK_LENGTH = 3800;
     private TokenRequester tokenRequester;
     private Storage<TokenData> tokenStorage;
     private Storage<RedirectData> redirectDataStorage;
     private MuleMessage muleMessage;
     private SingleSignOnConfig ssoConfig;
+    private RelyingPartyProfile profile;
     private TokenVerifier verifier;
-    private boolean instantRefresh;
+    private RefreshPolicy refreshPolicy;
+    private SessionCookieCodec sessionCodec;
+    private RefreshAheadScheduler refreshScheduler;
 
     private static final Logger logger = LoggerFactory.getLogger(RelyingPartyHandler.class);
 
@@ -66,54 +74,73 @@ public class RelyingPartyHandler {
             Storage<TokenData> tokenStorage,
             Storage<RedirectData> redirectDataStorage,
             SingleSignOnConfig ssoConfig,
+            RelyingPartyProfile profile,
             TokenVerifier verifier,
-            boolean instantRefresh) {
+            RefreshPolicy refreshPolicy) {
         this.tokenRequester = tokenRequester;
         this.tokenStorage = tokenStorage;
         this.redirectDataStorage = redirectDataStorage;
         this.muleMessage = muleMessage;
         this.ssoConfig = ssoConfig;
+        this.profile = profile;
         this.verifier = verifier;
-        this.instantRefresh = instantRefresh;
+        this.refreshPolicy = refreshPolicy;
     }
 
     /**
-     * Checks if a cookie with given name is in the current request and if this cookie is stored in the Mule ObjectStore
-     * @return True if it is stored, false if not
+     * Reads the token data referenced by the token cookie of the current request with a single store operation. With
+     * stateless sessions the token data is decrypted from the token cookies without accessing the store
+     * @return The stored token data or null if there is no cookie or no matching entry
      * @throws ObjectStoreException if there is a problem reading data from Mule ObjectStore
      */
-    public boolean hasCookieAndExistsInStore(String cookieName) throws ObjectStoreException {
+    public TokenData findTokenData() throws ObjectStoreException {
         String cookieHeader = muleMessage.getInboundProperty("cookie");
-        if (cookieName.equals(TOKEN_COOKIE_NAME)){
-            return tokenStorage.containsData(cookieExtractor(cookieHeader, cookieName));
-        } else {
-            return redirectDataStorage.containsData(cookieExtractor(cookieHeader, cookieName));
-        }
+        if (sessionCodec != null) return sessionCodec.decode(chunkedCookieExtractor(cookieHeader, TOKEN_COOKIE_NAME));
+        return tokenStorage.getData(cookieExtractor(cookieHeader, TOKEN_COOKIE_NAME));
+    }
+
+    /**
+     * Reads the redirect data referenced by the redirect cookie of the current request with a single store operation
+     * @return The stored redirect data or null if there is no cookie or no matching entry
+     * @throws ObjectStoreException if there is a problem reading data from Mule ObjectStore
+     */
+    public RedirectData findRedirectData() throws ObjectStoreException {
+        String cookieHeader = muleMessage.getInboundProperty("cookie");
+        return redirectDataStorage.getData(cookieExtractor(cookieHeader, REDIRECT_COOKIE_NAME));
     }
 
     /**
-     * Handles the resource request if tokens are available and active. If not active the method try's to refresh
-     * them
+     * Handles the resource request if tokens are available. The tokens are refreshed first if the refresh policy
+     * demands it
      *
+     * @param tokenData Token set read with findTokenData()
      * @throws ObjectStoreException If refreshed tokens can't be stored
      * @throws ParseException If tokens can't be parsed
      * @throws java.text.ParseException
      */
-    public void handleResourceRequest() throws ObjectStoreException, ParseException, java.text.ParseException {
-        String cookieHeader = muleMessage.getInboundProperty("cookie");
-        String tokenStorageEntryId = cookieExtractor(cookieHeader, TOKEN_COOKIE_NAME);
-        TokenData tokenData = tokenStorage.getData(tokenStorageEntryId);
-        if (instantRefresh || !verifier.isActive(tokenData.getAccessToken())) {
+    public void handleResourceRequest(TokenData tokenData) throws
+            ObjectStoreException, ParseException, java.text.ParseException {
+        if (refreshPolicy.shouldRefresh(tokenData)) {
             try {
                 logger.debug("Refreshing tokens from Identity-Provider");
                 tokenData = refreshTokens(tokenData);
                 storeAndSetCookie(tokenData, tokenStorage, TOKEN_COOKIE_NAME);
+                refreshPolicy.onRefreshed(tokenData);
             } catch (IOException | TokenValidationException | RequestTokenFromSsoException e) {
                 logger.debug("Could not refresh tokens from identity provider. Redirecting to Identity-Provider");
-                tokenStorage.removeData(tokenStorageEntryId);
+                String cookieHeader = muleMessage.getInboundProperty("cookie");
+                if (sessionCodec != null) {
+                    expireCookieChunks(cookieHeader, TOKEN_COOKIE_NAME, 0);
+                } else {
+                    String tokenStorageEntryId = cookieExtractor(cookieHeader, TOKEN_COOKIE_NAME);
+                    if (refreshScheduler != null) refreshScheduler.cancel(tokenStorageEntryId);
+                    tokenStorage.removeData(tokenStorageEntryId);
+                }
                 handleRedirect();
                 return;
             }
+        } else if (refreshScheduler != null && sessionCodec == null) {
+            refreshScheduler.recordAccess(tokenData, tokenStorage, profile);
         }
         muleMessage.setOutboundProperty(
                 HttpHeaders.Names.AUTHORIZATION, "Bearer " + tokenData.getAccessToken().getValue()
@@ -132,7 +159,7 @@ public class RelyingPartyHandler {
      */
     public TokenData refreshTokens(TokenData tokenData) throws
             TokenValidationException, ParseException, RequestTokenFromSsoException, IOException {
-        TokenData refreshedTokenData = tokenRequester.refreshTokenSet(tokenData, ssoConfig);
+        TokenData refreshedTokenData = tokenRequester.refreshTokenSet(tokenData, ssoConfig, profile);
         verifier.verifyRefreshedIdToken(tokenData.getIdToken(), refreshedTokenData.getIdToken());
         return refreshedTokenData;
     }
@@ -142,12 +169,10 @@ public class RelyingPartyHandler {
      * authorization code. The Code is included in the query parameters of the current request. Calls the TokenVerifier
      * to request the tokens with the authorization code.
      *
+     * @param redirectData Redirect data read with findRedirectData()
      * @throws ObjectStoreException If the requested tokens can't be stored in Mule ObjectStore
      */
-    public void handleTokenRequest() throws ObjectStoreException {
-        String cookieHeader = muleMessage.getInboundProperty("cookie");
-        String redirectEntryId = cookieExtractor(cookieHeader, REDIRECT_COOKIE_NAME);
-        RedirectData redirectData = redirectDataStorage.getData(redirectEntryId);
+    public void handleTokenRequest(RedirectData redirectData) throws ObjectStoreException {
         Map<String, String> queryParams = muleMessage.getInboundProperty("http.query.params");
         String queryState = queryParams.get("state");
         String authCode = queryParams.get("code");
@@ -156,11 +181,14 @@ public class RelyingPartyHandler {
             handleRedirect();
         } else {
             try {
-                TokenData tokenData = tokenRequester.requestTokensFromSso(authCode, ssoConfig);
-                verifier.verifyIdToken(tokenData.getIdToken(), ssoConfig, redirectData.getNonce());
+                TokenData tokenData = tokenRequester.requestTokensFromSso(authCode, ssoConfig, profile);
+                verifier.verifyIdToken(
+                        tokenData.getIdToken(), ssoConfig, profile.getClientSecretBasic().getClientID(),
+                        redirectData.getNonce()
+                );
                 storeAndSetCookie(tokenData, tokenStorage, TOKEN_COOKIE_NAME);
                 logger.debug("Redirecting to origin to clear uri");
-                redirectToUri(ssoConfig.getRedirectUri());
+                redirectToUri(profile.getRedirectUri());
             } catch (RequestTokenFromSsoException | TokenValidationException e) {
                 logger.debug("Could not request tokens from identity provider. Redirecting to Identity-Provider");
                 handleRedirect();
@@ -175,7 +203,7 @@ public class RelyingPartyHandler {
      * @throws ObjectStoreException if redirect data can't be stored in Mule ObjectStore
      */
     public void handleRedirect() throws ObjectStoreException {
-        AuthenticationRequest authRequest = tokenRequester.buildAuthenticationRequest(ssoConfig);
+        AuthenticationRequest authRequest = tokenRequester.buildAuthenticationRequest(ssoConfig, profile);
         RedirectData redirectData = new RedirectData(authRequest.getNonce(), authRequest.getState());
         storeAndSetCookie(redirectData, redirectDataStorage, REDIRECT_COOKIE_NAME);
         redirectToUri(authRequest.toURI());
@@ -184,7 +212,8 @@ public class RelyingPartyHandler {
     /**
      * Stores given data in given storage. If old data exists in storage they are removed first. After storing data a
      * cookie with given name is generated and attached to the current MuleMessage. The cookie is readable for http
-     * only and not for scripts.
+     * only and not for scripts. With stateless sessions token data is not stored, it is encrypted into the cookie and
+     * split into several cookies if it is too large for one.
      *
      * @param storageData Data to be stored
      * @param storage Storage where the data should stored in
@@ -193,13 +222,105 @@ public class RelyingPartyHandler {
      */
     public void storeAndSetCookie(StorageData storageData, Storage storage, String cookieName) throws
             ObjectStoreException {
-        logger.debug("Storing data and setting the cookie");
         String cookieHeader = muleMessage.getInboundProperty("cookie");
+        if (sessionCodec != null && TOKEN_COOKIE_NAME.equals(cookieName)) {
+            logger.debug("Encrypting data into the cookie");
+            setChunkedCookie(cookieHeader, cookieName, sessionCodec.encode((TokenData) storageData));
+            return;
+        }
+        logger.debug("Storing data and setting the cookie");
         String storageId = cookieExtractor(cookieHeader, cookieName);
         if (storageId != null) storage.removeData(storageId);
         storage.storeData(storageData.getCookieId(), storageData);
-        Cookie cookie = new Cookie(ssoConfig.getRedirectUri().toString(), cookieName, storageData.getCookieId());
-        muleMessage.setOutboundProperty(HttpHeaders.Names.SET_COOKIE, cookie + "; HttpOnly");
+        if (refreshScheduler != null && TOKEN_COOKIE_NAME.equals(cookieName)) {
+            if (storageId != null && !storageId.equals(storageData.getCookieId())) refreshScheduler.cancel(storageId);
+            refreshScheduler.schedule((TokenData) storageData, tokenStorage, profile);
+        }
+        addCookie(cookieName, storageData.getCookieId());
+    }
+
+    /**
+     * Sets a cookie value which is split into chunks of at most MAX_COOKIE_CHUNK_LENGTH characters. The first chunk
+     * has the given cookie name, the following ones the name with the chunk index appended. Chunks of a previous and
+     * longer value are expired
+     *
+     * @param cookieHeader Cookie header of the current request
+     * @param cookieName Name of the cookie
+     * @param value Value to be set
+     */
+    private void setChunkedCookie(String cookieHeader, String cookieName, String value) {
+        int chunks = 0;
+        for (int start = 0; start < value.length(); start += MAX_COOKIE_CHUNK_LENGTH) {
+            int end = Math.min(value.length(), start + MAX_COOKIE_CHUNK_LENGTH);
+            addCookie(chunkName(cookieName, chunks++), value.substring(start, end));
+        }
+        expireCookieChunks(cookieHeader, cookieName, chunks);
+    }
+
+    /**
+     * Reads and joins the chunks of a cookie value
+     *
+     * @param header Cookie header of the current request
+     * @param cookieName Name of the cookie
+     * @return The joined value or null if the cookie doesn't exist
+     */
+    public String chunkedCookieExtractor(String header, String cookieName) {
+        StringBuilder value = new StringBuilder();
+        String chunk;
+        for (int i = 0; (chunk = cookieExtractor(header, chunkName(cookieName, i))) != null; i++) {
+            value.append(chunk);
+        }
+        return value.length() > 0 ? value.toString() : null;
+    }
+
+    /**
+     * Expires all chunks of a cookie which are sent by the consumer, beginning at the given chunk index
+     *
+     * @param cookieHeader Cookie header of the current request
+     * @param cookieName Name of the cookie
+     * @param from Index of the first chunk to be expired
+     */
+    private void expireCookieChunks(String cookieHeader, String cookieName, int from) {
+        for (int i = from; cookieExtractor(cookieHeader, chunkName(cookieName, i)) != null; i++) {
+            addSetCookieHeader(chunkName(cookieName, i) + "=; Max-Age=0; HttpOnly");
+        }
+    }
+
+    private static String chunkName(String cookieName, int index) {
+        return index == 0 ? cookieName : cookieName + "-" + index;
+    }
+
+    /**
+     * Attaches a http only cookie to the current MuleMessage
+     *
+     * @param cookieName Name of the cookie
+     * @param value Value of the cookie
+     */
+    private void addCookie(String cookieName, String value) {
+        Cookie cookie = new Cookie(profile.getRedirectUri().toString(), cookieName, value);
+        addSetCookieHeader(cookie + "; HttpOnly");
+    }
+
+    /**
+     * Adds a Set-Cookie header to the current MuleMessage. Several cookies are set as a list, which results in one
+     * header per cookie
+     *
+     * @param setCookie Value of the header
+     */
+    private void addSetCookieHeader(String setCookie) {
+        Object existing = muleMessage.getOutboundProperty(HttpHeaders.Names.SET_COOKIE);
+        if (existing == null) {
+            muleMessage.setOutboundProperty(HttpHeaders.Names.SET_COOKIE, setCookie);
+            return;
+        }
+        List<Object> cookies = new ArrayList<>();
+        if (existing instanceof Collection) {
+            cookies.addAll((Collection<?>) existing);
+        } else {
+            cookies.add(existing);
+        }
+        cookies.add(setCookie);
+        muleMessage.setOutboundProperty(HttpHeaders.Names.SET_COOKIE, cookies);
     }
 
     /**
@@ -236,7 +357,25 @@ public class RelyingPartyHandler {
         } else return null;
     }
 
-    public void setInstantRefresh(boolean instantRefresh) {
-        this.instantRefresh = instantRefresh;
+    public void setRefreshPolicy(RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+
+    /**
+     * Enables stateless sessions. Token data is kept in encrypted cookies instead of the token storage
+     *
+     * @param sessionCodec Codec which encrypts and decrypts the token cookies
+     */
+    public void setSessionCodec(SessionCookieCodec sessionCodec) {
+        this.sessionCodec = sessionCodec;
+    }
+
+    /**
+     * Enables the refresh of stored token sets ahead of the expiration of their access tokens
+     *
+     * @param refreshScheduler Scheduler which refreshes the token sets in background
+     */
+    public void setRefreshScheduler(RefreshAheadScheduler refreshScheduler) {
+        this.refreshScheduler = refreshScheduler;
     }
 }
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty;
+
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+
+import java.net.URI;
+
+/**
+ * Immutable client parameters of one relying party processor configuration. The redirect URI and the client
+ * credentials are passed with every request instead of being written to the shared identity provider config, so
+ * different flows can't overwrite each other's client.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public final class RelyingPartyProfile {
+
+    private final URI redirectUri;
+    private final ClientSecretBasic clientSecretBasic;
+
+    /**
+     * @param redirectUri URI which is registered at the identity provider
+     * @param clientSecretBasic Credentials of the client
+     */
+    public RelyingPartyProfile(URI redirectUri, ClientSecretBasic clientSecretBasic) {
+        this.redirectUri = redirectUri;
+        this.clientSecretBasic = clientSecretBasic;
+    }
+
+    public URI getRedirectUri() {
+        return redirectUri;
+    }
+
+    public ClientSecretBasic getClientSecretBasic() {
+        return clientSecretBasic;
+    }
+}
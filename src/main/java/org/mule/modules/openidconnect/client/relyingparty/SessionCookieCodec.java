@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty;
+
+import com.nimbusds.jose.CompressionAlgorithm;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.DirectDecrypter;
+import com.nimbusds.jose.crypto.DirectEncrypter;
+import com.nimbusds.jwt.JWTParser;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
+import net.minidev.json.JSONObject;
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Encodes token sets as encrypted and authenticated cookie values, so that relying party sessions can be kept by the
+ * browser instead of the Mule ObjectStore. The values are compact JWE objects with direct AES-256-GCM encryption of
+ * the deflated token set. The first key encrypts, all keys decrypt, which allows rotating keys without dropping the
+ * sessions of the old key. Every value carries its issue and expiration time, so that a copied cookie can't be
+ * replayed after the maximum age, even if the browser keeps it.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class SessionCookieCodec {
+
+    private static final int KEY_LENGTH = 32;
+    private static final long MAX_CLOCK_SKEW_SECONDS = 60;
+    private final long maxAgeMillis;
+    private final String encryptionKeyId;
+    private final DirectEncrypter encrypter;
+    private final Map<String, DirectDecrypter> decrypters = new LinkedHashMap<>();
+
+    /**
+     * @param keys 256 bit AES keys, the first one is used to encrypt new cookies
+     * @param maxAgeMillis Time after which an encoded value is not accepted anymore
+     * @throws IllegalArgumentException if no key is given, a key has the wrong length or the maximum age is not
+     * positive
+     */
+    public SessionCookieCodec(List<byte[]> keys, long maxAgeMillis) {
+        if (keys.isEmpty()) throw new IllegalArgumentException("At least one session cookie key is required");
+        if (maxAgeMillis <= 0) throw new IllegalArgumentException("Session cookie maximum age must be positive");
+        this.maxAgeMillis = maxAgeMillis;
+        try {
+            for (byte[] key : keys) {
+                if (key.length != KEY_LENGTH) {
+                    throw new IllegalArgumentException("Session cookie keys must be 256 bit long");
+                }
+                decrypters.put(keyId(key), new DirectDecrypter(new SecretKeySpec(key, "AES")));
+            }
+            SecretKey encryptionKey = new SecretKeySpec(keys.get(0), "AES");
+            this.encryptionKeyId = keyId(keys.get(0));
+            this.encrypter = new DirectEncrypter(encryptionKey);
+        } catch (JOSEException e) {
+            throw new IllegalArgumentException("Invalid session cookie key", e);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of base64 encoded keys
+     *
+     * @param keys Comma separated keys, the first one is used to encrypt new cookies
+     * @param maxAgeMillis Time after which an encoded value is not accepted anymore
+     * @return The codec
+     * @throws IllegalArgumentException if a key or the maximum age is not valid
+     */
+    public static SessionCookieCodec fromBase64(String keys, long maxAgeMillis) {
+        return new SessionCookieCodec(Arrays.stream(keys.split(","))
+                .map(String::trim)
+                .filter(key -> !key.isEmpty())
+                .map(key -> Base64.getDecoder().decode(key))
+                .collect(Collectors.toList()), maxAgeMillis);
+    }
+
+    /**
+     * Encrypts the id token, the access token and the refresh token of a token set together with the issue time and
+     * the expiration time after the maximum age
+     *
+     * @param tokenData Token set to be encoded
+     * @return The cookie value
+     */
+    public String encode(TokenData tokenData) {
+        long now = System.currentTimeMillis();
+        JSONObject session = new JSONObject();
+        session.put("iat", TimeUnit.MILLISECONDS.toSeconds(now));
+        session.put("exp", TimeUnit.MILLISECONDS.toSeconds(now + maxAgeMillis));
+        session.put("cid", tokenData.getCookieId());
+        if (tokenData.getIdToken() != null) session.put("id", tokenData.getIdToken().serialize());
+        if (tokenData.getAccessToken() != null) session.put("at", tokenData.getAccessToken().getValue());
+        if (tokenData.getRefreshToken() != null) session.put("rt", tokenData.getRefreshToken().getValue());
+        JWEHeader header = new JWEHeader.Builder(JWEAlgorithm.DIR, EncryptionMethod.A256GCM)
+                .keyID(encryptionKeyId)
+                .compressionAlgorithm(CompressionAlgorithm.DEF)
+                .build();
+        JWEObject jwe = new JWEObject(header, new Payload(session));
+        try {
+            jwe.encrypt(encrypter);
+        } catch (JOSEException e) {
+            throw new IllegalStateException("Session cookie could not be encrypted", e);
+        }
+        return jwe.serialize();
+    }
+
+    /**
+     * Decrypts a cookie value. Values which are tampered, encrypted with an unknown key, expired, issued in the
+     * future or otherwise invalid are treated as missing session
+     *
+     * @param value The cookie value
+     * @return The token set or null
+     */
+    public TokenData decode(String value) {
+        if (value == null) return null;
+        try {
+            JWEObject jwe = JWEObject.parse(value);
+            DirectDecrypter decrypter = decrypters.get(jwe.getHeader().getKeyID());
+            if (decrypter == null) return null;
+            jwe.decrypt(decrypter);
+            JSONObject session = jwe.getPayload().toJSONObject();
+            if (session == null || !isCurrent(session)) return null;
+            String idToken = (String) session.get("id");
+            String accessToken = (String) session.get("at");
+            String refreshToken = (String) session.get("rt");
+            OIDCTokens tokens = new OIDCTokens(
+                    idToken != null ? JWTParser.parse(idToken) : null,
+                    new BearerAccessToken(accessToken),
+                    refreshToken != null ? new RefreshToken(refreshToken) : null
+            );
+            return new TokenData(tokens, (String) session.get("cid"));
+        } catch (java.text.ParseException | JOSEException | IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks the issue and expiration time of a decrypted value. Values without them are not accepted
+     *
+     * @param session Decrypted cookie payload
+     * @return True if the value was issued and isn't expired yet
+     */
+    private static boolean isCurrent(JSONObject session) {
+        Number issuedAt = (Number) session.get("iat");
+        Number expiresAt = (Number) session.get("exp");
+        if (issuedAt == null || expiresAt == null) return false;
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        return issuedAt.longValue() <= now + MAX_CLOCK_SKEW_SECONDS && now < expiresAt.longValue();
+    }
+
+    /**
+     * Builds the id of a key which is sent in the JWE header. The id does not reveal the key
+     *
+     * @param key The raw key
+     * @return Base64url encoded first eight bytes of the SHA-256 digest of the key
+     */
+    private static String keyId(byte[] key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+}
@@ -25,7 +25,9 @@ import com.nimbusds.openid.connect.sdk.AuthenticationRequest;
 import com.nimbusds.openid.connect.sdk.Nonce;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
 import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
+import org.mule.modules.openidconnect.client.HttpTransport;
 import org.mule.modules.openidconnect.client.NimbusParserUtil;
+import org.mule.modules.openidconnect.client.SingleFlight;
 import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
 import org.mule.modules.openidconnect.config.SingleSignOnConfig;
 import org.mule.modules.openidconnect.exception.RequestTokenFromSsoException;
@@ -45,12 +47,15 @@ public class TokenRequester {
 
     private TokenRequestFactory tokenRequestFactory;
     private NimbusParserUtil parser;
+    private HttpTransport httpTransport;
+    private final SingleFlight<String, TokenData> refreshFlight = new SingleFlight<>();
 
     private static final Logger logger = LoggerFactory.getLogger(TokenRequester.class);
 
     public TokenRequester(){
         this.tokenRequestFactory = new TokenRequestFactory();
         this.parser = new NimbusParserUtil();
+        this.httpTransport = new HttpTransport();
     }
 
     /**
@@ -58,18 +63,20 @@ public class TokenRequester {
      * Creates the state and nonce values specified by OpenID Connect by using the Nimbus OIDC OAuth2 SDK
      *
      * @param ssoConfig Config object with all necessary identity provider information
+     * @param profile Redirect URI and client credentials of the relying party
      * @return AuthenticationRequest object
      */
-    public AuthenticationRequest buildAuthenticationRequest(SingleSignOnConfig ssoConfig) {
+    public AuthenticationRequest buildAuthenticationRequest(SingleSignOnConfig ssoConfig,
+                                                           RelyingPartyProfile profile) {
         State state = new State();
         Nonce nonce = new Nonce();
         Scope scope = Scope.parse("openid");
-        ClientID clientId = ssoConfig.getClientSecretBasic().getClientID();
+        ClientID clientId = profile.getClientSecretBasic().getClientID();
 
         return new AuthenticationRequest(
                 ssoConfig.getProviderMetadata().getAuthorizationEndpointURI(),
                 new ResponseType(ResponseType.Value.CODE),
-                scope, clientId, ssoConfig.getRedirectUri(), state, nonce);
+                scope, clientId, profile.getRedirectUri(), state, nonce);
     }
 
     /**
@@ -77,22 +84,23 @@ public class TokenRequester {
      *
      * @param authCode Authorization code to request the token set
      * @param ssoConfig Config object with all necessary identity provider information
+     * @param profile Redirect URI and client credentials of the relying party
      * @return The token set
      * @throws RequestTokenFromSsoException if connection fails or request is invalid
      */
-    public TokenData requestTokensFromSso(String authCode, SingleSignOnConfig ssoConfig) throws
-            RequestTokenFromSsoException {
+    public TokenData requestTokensFromSso(String authCode, SingleSignOnConfig ssoConfig,
+                                          RelyingPartyProfile profile) throws RequestTokenFromSsoException {
         try {
             AuthorizationCodeGrant authCodeGrant = new AuthorizationCodeGrant(
-                    new AuthorizationCode(authCode), ssoConfig.getRedirectUri()
+                    new AuthorizationCode(authCode), profile.getRedirectUri()
             );
             TokenRequest tokenReq = tokenRequestFactory.getTokenRequest(
                     ssoConfig.getProviderMetadata().getTokenEndpointURI(),
-                    ssoConfig.getClientSecretBasic(),
+                    profile.getClientSecretBasic(),
                     authCodeGrant
             );
             logger.debug("Sending token HTTP request to identity provider");
-            HTTPResponse tokenHTTPResp = tokenReq.toHTTPRequest().send();
+            HTTPResponse tokenHTTPResp = httpTransport.send(tokenReq.toHTTPRequest());
             TokenResponse tokenResponse = parser.parseTokenResponse(tokenHTTPResp);
             if (tokenResponse instanceof TokenErrorResponse) {
                 logger.debug("Received an error response from token request");
@@ -108,28 +116,48 @@ public class TokenRequester {
     }
 
     /**
-     * Request a new token set by sending a request with a given refresh token to the OpenID provider
+     * Request a new token set by sending a request with a given refresh token to the OpenID provider. Concurrent
+     * refreshes of the same session (cookie ID) are coalesced into one request, all callers receive the same token
+     * set
      *
      * @param tokenData Current token data
      * @param ssoConfig Config object with all necessary identity provider information
+     * @param profile Redirect URI and client credentials of the relying party
      * @return Refreshed token set
      * @throws RequestTokenFromSsoException if request is invalid
      * @throws IOException if connection fails
      * @throws ParseException if tokens can't be parsed
      */
-    public TokenData refreshTokenSet(TokenData tokenData, SingleSignOnConfig ssoConfig) throws
+    public TokenData refreshTokenSet(TokenData tokenData, SingleSignOnConfig ssoConfig, RelyingPartyProfile profile)
+            throws RequestTokenFromSsoException, IOException, ParseException {
+        if (tokenData.getCookieId() == null) {
+            return requestRefreshedTokenSet(tokenData, ssoConfig, profile);
+        }
+        try {
+            return refreshFlight.execute(
+                    tokenData.getCookieId(), () -> requestRefreshedTokenSet(tokenData, ssoConfig, profile)
+            );
+        } catch (RequestTokenFromSsoException | IOException | ParseException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RequestTokenFromSsoException(e.getMessage());
+        }
+    }
+
+    private TokenData requestRefreshedTokenSet(TokenData tokenData, SingleSignOnConfig ssoConfig,
+                                               RelyingPartyProfile profile) throws
             RequestTokenFromSsoException, IOException, ParseException {
         RefreshToken refreshToken = tokenData.getRefreshToken();
         AuthorizationGrant refreshTokenGrant = new RefreshTokenGrant(refreshToken);
 
-        ClientAuthentication clientAuth = ssoConfig.getClientSecretBasic();
+        ClientAuthentication clientAuth = profile.getClientSecretBasic();
 
         URI tokenEndpoint = ssoConfig.getProviderMetadata().getTokenEndpointURI();
 
         TokenRequest request = tokenRequestFactory.getTokenRequest(tokenEndpoint, clientAuth, refreshTokenGrant);
 
         logger.debug("Sending token refresh HTTP request to identity provider");
-        TokenResponse response = parser.parseTokenResponse(request.toHTTPRequest().send());
+        TokenResponse response = parser.parseTokenResponse(httpTransport.send(request.toHTTPRequest()));
         if(response instanceof TokenErrorResponse) {
             logger.debug("Received an error response from token refresh request");
             throw new RequestTokenFromSsoException("Refresh tokens from SSO failed");
@@ -147,4 +175,8 @@ public class TokenRequester {
     public void setParser(NimbusParserUtil parser) {
         this.parser = parser;
     }
+
+    public void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
 }
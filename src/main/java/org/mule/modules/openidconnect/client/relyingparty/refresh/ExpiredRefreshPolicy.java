@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty.refresh;
+
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+
+/**
+ * Refreshes the token set only if the access token isn't active anymore
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class ExpiredRefreshPolicy extends RefreshPolicy {
+
+    @Override
+    protected boolean evaluate(TokenData tokenData) {
+        return !tokenData.isAccessTokenActive(System.currentTimeMillis());
+    }
+
+    @Override
+    public String getName() {
+        return "expired";
+    }
+}
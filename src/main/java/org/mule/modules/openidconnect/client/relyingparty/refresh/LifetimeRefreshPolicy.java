@@ -0,0 +1,58 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty.refresh;
+
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+
+/**
+ * Refreshes the token set once less than the given part of the lifetime of the access token remains. Access tokens
+ * without issue time are refreshed once they are expired
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class LifetimeRefreshPolicy extends RefreshPolicy {
+
+    private final int remainingPercentage;
+
+    /**
+     * @param remainingPercentage Remaining part of the lifetime in percent below which the token set is refreshed
+     * @throws IllegalArgumentException if the percentage is not between 1 and 99
+     */
+    public LifetimeRefreshPolicy(int remainingPercentage) {
+        if (remainingPercentage < 1 || remainingPercentage > 99) {
+            throw new IllegalArgumentException(String.format(
+                    "Remaining lifetime must be between 1 and 99 percent but was %d", remainingPercentage
+            ));
+        }
+        this.remainingPercentage = remainingPercentage;
+    }
+
+    @Override
+    protected boolean evaluate(TokenData tokenData) {
+        long expiresAt = tokenData.getAccessTokenExpiry();
+        long issuedAt = tokenData.getAccessTokenIssuedAt();
+        long now = System.currentTimeMillis();
+        if (!tokenData.isAccessTokenActive(now)) return true;
+        if (issuedAt <= 0 || issuedAt >= expiresAt) return false;
+        return (expiresAt - now) * 100 < (expiresAt - issuedAt) * remainingPercentage;
+    }
+
+    @Override
+    public String getName() {
+        return "lifetime(" + remainingPercentage + "%)";
+    }
+}
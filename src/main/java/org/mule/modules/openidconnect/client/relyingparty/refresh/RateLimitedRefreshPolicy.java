@@ -0,0 +1,68 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty.refresh;
+
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenCache;
+
+import java.text.ParseException;
+
+/**
+ * Limits the refreshes of another policy to one per session within the given interval. Inactive access tokens are
+ * always refreshed. Only successful refreshes start the interval, a failed refresh is retried by the next request.
+ * The time of the last refresh is kept for a bounded number of sessions, older sessions are not limited anymore. The
+ * delegate only decides, its counters are not touched.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class RateLimitedRefreshPolicy extends RefreshPolicy {
+
+    private final RefreshPolicy delegate;
+    private final long minIntervalMillis;
+    private final TokenCache<Boolean> recentRefreshes;
+
+    /**
+     * @param delegate Policy whose refreshes are limited
+     * @param minIntervalMillis Minimum time between two refreshes of a session
+     * @param maxSessions Maximum number of sessions whose last refresh is kept
+     */
+    public RateLimitedRefreshPolicy(RefreshPolicy delegate, long minIntervalMillis, int maxSessions) {
+        this.delegate = delegate;
+        this.minIntervalMillis = minIntervalMillis;
+        this.recentRefreshes = new TokenCache<>(maxSessions, minIntervalMillis, false);
+    }
+
+    @Override
+    protected boolean evaluate(TokenData tokenData) throws ParseException {
+        if (!delegate.evaluate(tokenData)) return false;
+        if (!tokenData.isAccessTokenActive(System.currentTimeMillis())) return true;
+        String sessionId = tokenData.getCookieId();
+        if (sessionId == null) return true;
+        return recentRefreshes.get(sessionId) == null;
+    }
+
+    @Override
+    public void onRefreshed(TokenData tokenData) {
+        super.onRefreshed(tokenData);
+        if (tokenData.getCookieId() != null) recentRefreshes.put(tokenData.getCookieId(), Boolean.TRUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName() + " at most every " + minIntervalMillis / 1000 + "s";
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.relyingparty.refresh;
+
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether the token set of a relying party session is refreshed before a resource request is passed on.
+ * Counts the successful refreshes and the avoided ones, so that the load on the identity provider can be weighed
+ * against the freshness of the tokens. A refresh counts as avoided if the tokens would have been refreshed by
+ * refreshing on every request.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public abstract class RefreshPolicy {
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder avoided = new LongAdder();
+
+    /**
+     * Decides whether the given token set is refreshed and counts the decision if the refresh is avoided
+     *
+     * @param tokenData Current token set of the session
+     * @return True if the token set has to be refreshed
+     * @throws ParseException if the access token can't be parsed
+     */
+    public final boolean shouldRefresh(TokenData tokenData) throws ParseException {
+        boolean refresh = evaluate(tokenData);
+        if (!refresh) avoided.increment();
+        return refresh;
+    }
+
+    /**
+     * Decides whether the given token set is refreshed without counting the decision
+     *
+     * @param tokenData Current token set of the session
+     * @return True if the token set has to be refreshed
+     * @throws ParseException if the access token can't be parsed
+     */
+    protected abstract boolean evaluate(TokenData tokenData) throws ParseException;
+
+    /**
+     * Called after the token set of a session was refreshed and stored successfully and counts the refresh.
+     * Overriding policies have to call this method
+     *
+     * @param tokenData Refreshed token set of the session
+     */
+    public void onRefreshed(TokenData tokenData) {
+        refreshes.increment();
+    }
+
+    /**
+     * @return Name of the policy including its parameters
+     */
+    public abstract String getName();
+
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    public long getAvoidedCount() {
+        return avoided.sum();
+    }
+
+    /**
+     * @return Counters of the policy as map
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("refreshes", getRefreshCount());
+        statistics.put("avoided", getAvoidedCount());
+        return statistics;
+    }
+}
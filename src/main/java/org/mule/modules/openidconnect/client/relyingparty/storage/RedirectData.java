@@ -18,21 +18,33 @@ package org.mule.modules.openidconnect.client.relyingparty.storage;
 import com.nimbusds.oauth2.sdk.id.State;
 import com.nimbusds.openid.connect.sdk.Nonce;
 
-import java.io.Serializable;
-import java.util.UUID;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
- * Simple POJO to represent the redirect data saved in the Mule ObjectStore
+ * Simple POJO to represent the redirect data saved in the Mule ObjectStore. Redirect data is stored in a compact and
+ * versioned binary format which contains the raw values only.
  *
  * @author Moritz Möller, AOE GmbH
  *
  */
-public class RedirectData extends StorageData {
+public class RedirectData extends StorageData implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    private static final int FORMAT_VERSION = 1;
 
     private Nonce nonce;
     private State state;
     private String jsonTokens;
 
+    /**
+     * Only used to read stored redirect data
+     */
+    public RedirectData() {
+        super(null);
+    }
+
     public RedirectData(Nonce nonce, State state) {
         this.nonce = nonce;
         this.state = state;
@@ -54,4 +66,36 @@ public class RedirectData extends StorageData {
         this.jsonTokens = jsonTokens;
     }
 
+    /**
+     * Writes the format version and the raw values
+     *
+     * @param out Output to write to
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        writeString(out, cookieId);
+        writeString(out, nonce != null ? nonce.getValue() : null);
+        writeString(out, state != null ? state.getValue() : null);
+        writeString(out, jsonTokens);
+    }
+
+    /**
+     * Reads data written by writeExternal
+     *
+     * @param in Input to read from
+     * @throws IOException if reading fails or the format version is not supported
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readVersion(in, FORMAT_VERSION);
+        cookieId = readString(in);
+        String nonceValue = readString(in);
+        String stateValue = readString(in);
+        nonce = nonceValue != null ? new Nonce(nonceValue) : null;
+        state = stateValue != null ? new State(stateValue) : null;
+        jsonTokens = readString(in);
+    }
+
 }
@@ -15,13 +15,28 @@
  */
 package org.mule.modules.openidconnect.client.relyingparty.storage;
 
+import org.mule.api.store.ListableObjectStore;
+import org.mule.api.store.ObjectAlreadyExistsException;
+import org.mule.api.store.ObjectDoesNotExistException;
 import org.mule.api.store.ObjectStore;
 import org.mule.api.store.ObjectStoreException;
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
 
 /**
- * Provides an Mule ObjectStore to store, read and remove data in it. Also allows to check availability of data.
+ * Provides an Mule ObjectStore to store, read and remove data in it.
+ * Optionally a local cache is kept in front of the store. It is written through on every store and invalidated on
+ * every remove, reads are only passed to the store on a cache miss. Counts the entries stored and removed through
+ * this storage. Entries which can't be read anymore, e.g. because they were written in the format of a previous
+ * version, are treated as missing and removed.
  *
  * @author Moritz Möller, AOE GmbH
  *
@@ -29,54 +44,147 @@ import java.io.Serializable;
 public class Storage<T extends Serializable>{
 
     private ObjectStore<T> store;
+    private TokenCache<T> localCache;
+    private ToLongFunction<T> expiry;
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+
+    private static final Logger logger = LoggerFactory.getLogger(Storage.class);
 
     public Storage(ObjectStore<T> store) {
         this.store = store;
     }
 
     /**
-     * Stores given data with given id. If data already exists, it will be overwritten
+     * Enables the local cache in front of the store
+     *
+     * @param localCache Cache holding the data by entry id
+     * @param expiry Returns the point in time (epoch millis) at which an entry is not valid anymore
+     */
+    public void setLocalCache(TokenCache<T> localCache, ToLongFunction<T> expiry) {
+        this.localCache = localCache;
+        this.expiry = expiry;
+    }
+
+    public TokenCache<T> getLocalCache() {
+        return localCache;
+    }
+
+    /**
+     * Stores given data with given id. If data already exists, it will be overwritten. The store is written directly,
+     * only an already existing entry causes an additional remove and store, as the Mule ObjectStore can't replace
+     * entries atomically. The new data is put into the local cache before, so reads on this node never miss the
+     * entry in between. If the new data can't be stored, the local cache entry is dropped
      * @param entryId ID of the storage entry
      * @param storeData Data to be stored
      * @throws ObjectStoreException if data cant be stored
      */
     public void storeData(String entryId, T storeData) throws ObjectStoreException {
-        if (store.contains(entryId)) {
-            store.remove(entryId);
+        try {
+            store.store(entryId, storeData);
+            stored.increment();
+        } catch (ObjectAlreadyExistsException e) {
+            cache(entryId, storeData);
+            try {
+                store.remove(entryId);
+                store.store(entryId, storeData);
+            } catch (ObjectStoreException | RuntimeException storeException) {
+                if (localCache != null) localCache.invalidate(entryId);
+                throw storeException;
+            }
         }
-        store.store(entryId, storeData);
+        cache(entryId, storeData);
     }
 
     /**
-     * Reads and returns data from store
+     * Reads and returns data from the local cache or otherwise from store with a single retrieve operation. Entries
+     * which can't be deserialized are removed and treated as missing
      * @param entryId ID of the storage entry
      * @return The stored data or null
      * @throws ObjectStoreException if data cant be read
      */
     public T getData(String entryId) throws ObjectStoreException {
-        if (store.contains(entryId)){
-            return store.retrieve(entryId);
-        } else return null;
+        if (entryId == null) return null;
+        if (localCache != null) {
+            T cached = localCache.get(entryId);
+            if (cached != null) return cached;
+        }
+        T data;
+        try {
+            data = store.retrieve(entryId);
+        } catch (ObjectDoesNotExistException e) {
+            return null;
+        } catch (ObjectStoreException e) {
+            if (!isUnreadable(e)) throw e;
+            logger.debug("Removing storage entry which can't be read. Reason: {}", e.getMessage());
+            removeUnreadable(entryId);
+            return null;
+        }
+        cache(entryId, data);
+        return data;
     }
 
     /**
-     * Checks if data exists in store
+     * Removes data by given id from store if it exists
      * @param entryId ID of the storage entry
-     * @return True if exists, false if not
-     * @throws ObjectStoreException if data cant be read
+     * @throws ObjectStoreException if data cant be deleted
      */
-    public boolean containsData(String entryId) throws ObjectStoreException {
-        return entryId != null && store.contains(entryId);
+    public void removeData(String entryId) throws ObjectStoreException {
+        if (entryId == null) return;
+        if (localCache != null) localCache.invalidate(entryId);
+        try {
+            store.remove(entryId);
+            removed.increment();
+        } catch (ObjectDoesNotExistException e) {
+            // nothing to remove
+        }
     }
 
     /**
-     * Removes data by given id from store
-     * @param entryId ID of the storage entry
-     * @throws ObjectStoreException if data cant be deleted
+     * Returns the number of entries in the store. Lists all keys, so it should not be called on the request path
+     *
+     * @return The number of entries or -1 if the store can't be listed
+     * @throws ObjectStoreException if the keys can't be read
      */
-    public void removeData(String entryId) throws ObjectStoreException {
-        if (store.contains(entryId)){
-            store.remove(entryId);
+    public int size() throws ObjectStoreException {
+        if (!(store instanceof ListableObjectStore)) return -1;
+        return ((ListableObjectStore<T>) store).allKeys().size();
+    }
+
+    /**
+     * Returns the size of the store and the number of entries stored and removed through this storage. The size
+     * includes the entries of other nodes if the store is shared, the counters only apply to this node
+     *
+     * @return Size and counters of the storage as map
+     * @throws ObjectStoreException if the size can't be read
+     */
+    public Map<String, Object> getStatistics() throws ObjectStoreException {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", size());
+        statistics.put("stored", stored.sum());
+        statistics.put("removed", removed.sum());
+        return statistics;
+    }
+
+    /**
+     * @return True if the store failed to deserialize the entry, e.g. because its class or format version changed
+     */
+    private static boolean isUnreadable(ObjectStoreException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ObjectStreamException || cause instanceof ClassNotFoundException) return true;
+        }
+        return false;
+    }
+
+    private void removeUnreadable(String entryId) {
+        try {
+            removeData(entryId);
+        } catch (ObjectStoreException e) {
+            logger.debug("Could not remove storage entry which can't be read. Reason: {}", e.getMessage());
         }
     }
+
+    private void cache(String entryId, T data) {
+        if (localCache != null && data != null) localCache.put(entryId, data, expiry.applyAsLong(data));
+    }
 }
@@ -15,11 +15,17 @@
  */
 package org.mule.modules.openidconnect.client.relyingparty.storage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidClassException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 /**
- * Abstract class for the different data types stored in the Mule ObjectStore
+ * Abstract class for the different data types stored in the Mule ObjectStore. Provides the helpers for the compact
+ * binary format of the subclasses.
  *
  * @author Moritz Möller, AOE GmbH
  *
@@ -31,7 +37,59 @@ public abstract class StorageData implements Serializable {
         this.cookieId = UUID.randomUUID().toString();
     }
 
+    StorageData(String cookieId) {
+        this.cookieId = cookieId;
+    }
+
     public String getCookieId() {
         return cookieId;
     }
+
+    /**
+     * Writes a string which may be null as length prefixed UTF-8 bytes
+     *
+     * @param out Output to write to
+     * @param value String to be written
+     * @throws IOException if writing fails
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString
+     *
+     * @param in Input to read from
+     * @return The string or null
+     * @throws IOException if reading fails
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the format version and fails if it is newer than the supported one
+     *
+     * @param in Input to read from
+     * @param supportedVersion Latest format version known by this class
+     * @return The format version of the data
+     * @throws IOException if reading fails or the version is not supported
+     */
+    static int readVersion(DataInput in, int supportedVersion) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > supportedVersion) {
+            throw new InvalidClassException("Unsupported storage data format version " + version);
+        }
+        return version;
+    }
 }
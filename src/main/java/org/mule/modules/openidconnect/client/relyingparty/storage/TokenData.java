@@ -16,28 +16,60 @@
 package org.mule.modules.openidconnect.client.relyingparty.storage;
 
 import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.JWTParser;
 import com.nimbusds.oauth2.sdk.token.AccessToken;
+import com.nimbusds.oauth2.sdk.token.AccessTokenType;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
 import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.oauth2.sdk.token.TypelessAccessToken;
 import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
 
-import java.io.Serializable;
-import java.util.UUID;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Date;
 
 /**
- * Simple POJO to represent the token data saved in the Mule ObjectStore
+ * Simple POJO to represent the token data saved in the Mule ObjectStore. The lifetime of the access token and the
+ * subject are read once when the tokens are set and kept as plain fields, so that session checks don't have to parse
+ * the tokens on every request.
+ *
+ * Token data is stored in a compact and versioned binary format which contains the raw token strings and the
+ * lifetime fields only. The token objects are created again on first access after reading.
  *
  * @author Moritz Möller, AOE GmbH
  *
  */
-public class TokenData extends StorageData {
-    private JWT idToken;
-    private AccessToken accessToken;
-    private RefreshToken refreshToken;
+public class TokenData extends StorageData implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    private static final int FORMAT_VERSION = 1;
+
+    private transient JWT idToken;
+    private transient AccessToken accessToken;
+    private transient RefreshToken refreshToken;
+    private String idTokenValue;
+    private String accessTokenValue;
+    private String accessTokenType;
+    private String refreshTokenValue;
+    private long accessTokenExpiry;
+    private long accessTokenNotBefore;
+    private long accessTokenIssuedAt;
+    private String subject;
+
+    /**
+     * Only used to read stored token data
+     */
+    public TokenData() {
+        super(null);
+    }
 
     public TokenData(OIDCTokens tokens) {
         this.idToken = tokens.getIDToken();
         this.accessToken = tokens.getAccessToken();
         this.refreshToken = tokens.getRefreshToken();
+        readClaims();
     }
 
     public TokenData(OIDCTokens tokens, String cookieId) {
@@ -46,27 +78,180 @@ public class TokenData extends StorageData {
     }
 
     public JWT getIdToken() {
+        if (idToken == null && idTokenValue != null) {
+            try {
+                idToken = JWTParser.parse(idTokenValue);
+            } catch (java.text.ParseException e) {
+                throw new IllegalStateException("Stored ID token can't be parsed", e);
+            }
+        }
         return idToken;
     }
 
     public void setIdToken(JWT idToken) {
         this.idToken = idToken;
+        this.idTokenValue = null;
+        readClaims();
     }
 
     public AccessToken getAccessToken() {
+        if (accessToken == null && accessTokenValue != null) {
+            accessToken = AccessTokenType.BEARER.getValue().equals(accessTokenType)
+                    ? new BearerAccessToken(accessTokenValue)
+                    : new TypelessAccessToken(accessTokenValue);
+        }
         return accessToken;
     }
 
     public void setAccessToken(AccessToken accessToken) {
         this.accessToken = accessToken;
+        this.accessTokenValue = null;
+        this.accessTokenType = null;
+        readClaims();
     }
 
     public RefreshToken getRefreshToken() {
+        if (refreshToken == null && refreshTokenValue != null) {
+            refreshToken = new RefreshToken(refreshTokenValue);
+        }
         return refreshToken;
     }
 
     public void setRefreshToken(RefreshToken refreshToken) {
         this.refreshToken = refreshToken;
+        this.refreshTokenValue = null;
+    }
+
+    /**
+     * Expiration time of the access token. Access tokens which are not a JWT or have no expiration time are treated
+     * as already expired
+     *
+     * @return Expiration time of the access token as epoch millis, 0 if unknown
+     */
+    public long getAccessTokenExpiry() {
+        return accessTokenExpiry;
+    }
+
+    /**
+     * @return Not before time of the access token as epoch millis, 0 if unknown
+     */
+    public long getAccessTokenNotBefore() {
+        return accessTokenNotBefore;
+    }
+
+    /**
+     * @return Issue time of the access token as epoch millis, 0 if unknown
+     */
+    public long getAccessTokenIssuedAt() {
+        return accessTokenIssuedAt;
+    }
+
+    /**
+     * @return Subject of the ID token or, if there is none, of the access token
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * Checks if the access token is active at the given time. Access tokens without expiration time are not active
+     *
+     * @param now Current time as epoch millis
+     * @return True if active, false if not
+     */
+    public boolean isAccessTokenActive(long now) {
+        return now < accessTokenExpiry && now >= accessTokenNotBefore;
+    }
+
+    /**
+     * Writes the format version, the raw tokens and the lifetime fields
+     *
+     * @param out Output to write to
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        writeString(out, cookieId);
+        writeString(out, idTokenValue());
+        writeString(out, accessTokenValue());
+        writeString(out, accessTokenType());
+        writeString(out, refreshTokenValue());
+        out.writeLong(accessTokenExpiry);
+        out.writeLong(accessTokenNotBefore);
+        out.writeLong(accessTokenIssuedAt);
+        writeString(out, subject);
     }
 
+    /**
+     * Reads data written by writeExternal. The token objects are created on first access
+     *
+     * @param in Input to read from
+     * @throws IOException if reading fails or the format version is not supported
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readVersion(in, FORMAT_VERSION);
+        cookieId = readString(in);
+        idTokenValue = readString(in);
+        accessTokenValue = readString(in);
+        accessTokenType = readString(in);
+        refreshTokenValue = readString(in);
+        accessTokenExpiry = in.readLong();
+        accessTokenNotBefore = in.readLong();
+        accessTokenIssuedAt = in.readLong();
+        subject = readString(in);
+    }
+
+    /**
+     * Reads the lifetime of the access token and the subject into plain fields
+     */
+    private void readClaims() {
+        JWTClaimsSet accessClaims = parseClaims(getAccessToken());
+        accessTokenExpiry = time(accessClaims != null ? accessClaims.getExpirationTime() : null);
+        accessTokenNotBefore = time(accessClaims != null ? accessClaims.getNotBeforeTime() : null);
+        accessTokenIssuedAt = time(accessClaims != null ? accessClaims.getIssueTime() : null);
+        subject = null;
+        try {
+            if (getIdToken() != null) subject = getIdToken().getJWTClaimsSet().getSubject();
+        } catch (java.text.ParseException e) {
+            subject = null;
+        }
+        if (subject == null && accessClaims != null) subject = accessClaims.getSubject();
+    }
+
+    private static JWTClaimsSet parseClaims(AccessToken token) {
+        if (token == null) return null;
+        try {
+            return JWTParser.parse(token.getValue()).getJWTClaimsSet();
+        } catch (java.text.ParseException e) {
+            return null;
+        }
+    }
+
+    private String idTokenValue() {
+        if (idTokenValue == null && idToken != null) idTokenValue = idToken.serialize();
+        return idTokenValue;
+    }
+
+    private String accessTokenValue() {
+        if (accessTokenValue == null && accessToken != null) accessTokenValue = accessToken.getValue();
+        return accessTokenValue;
+    }
+
+    private String accessTokenType() {
+        if (accessTokenType == null && accessToken != null && accessToken.getType() != null) {
+            accessTokenType = accessToken.getType().getValue();
+        }
+        return accessTokenType;
+    }
+
+    private String refreshTokenValue() {
+        if (refreshTokenValue == null && refreshToken != null) refreshTokenValue = refreshToken.getValue();
+        return refreshTokenValue;
+    }
+
+    private static long time(Date date) {
+        return date != null ? date.getTime() : 0;
+    }
 }
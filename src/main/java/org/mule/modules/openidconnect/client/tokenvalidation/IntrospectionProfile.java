@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.tokenvalidation;
+
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
+import com.nimbusds.oauth2.sdk.http.CommonContentTypes;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.token.AccessToken;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Immutable introspection parameters of one processor configuration. The introspection URL and the Basic
+ * authorization header are built once, so the request of a token is created without encoding the client
+ * credentials again. Profiles are shared between threads and never change, so different flows can't overwrite
+ * each other's credentials.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public final class IntrospectionProfile {
+
+    private final URI introspectionUri;
+    private final URL introspectionUrl;
+    private final ClientSecretBasic clientSecretBasic;
+    private final String authorizationHeader;
+
+    /**
+     * @param introspectionUri URI of the introspection endpoint
+     * @param clientSecretBasic Credentials of the client which introspects the tokens
+     */
+    public IntrospectionProfile(URI introspectionUri, ClientSecretBasic clientSecretBasic) {
+        this.introspectionUri = introspectionUri;
+        this.clientSecretBasic = clientSecretBasic;
+        this.authorizationHeader = clientSecretBasic.toHTTPAuthorizationHeader();
+        try {
+            this.introspectionUrl = introspectionUri.toURL();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid introspection URI " + introspectionUri, e);
+        }
+    }
+
+    /**
+     * Builds the introspection request of the given token as defined by RFC7662
+     *
+     * @param accessToken Token which has to be introspected
+     * @return The HTTP request
+     * @see <a href="https://tools.ietf.org/html/rfc7662">RFC7662</a>
+     */
+    public HTTPRequest toHTTPRequest(AccessToken accessToken) {
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.POST, introspectionUrl);
+        request.setAuthorization(authorizationHeader);
+        request.setContentType(CommonContentTypes.APPLICATION_URLENCODED);
+        try {
+            request.setQuery("token=" + URLEncoder.encode(accessToken.getValue(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return request;
+    }
+
+    public URI getIntrospectionUri() {
+        return introspectionUri;
+    }
+
+    public ClientSecretBasic getClientSecretBasic() {
+        return clientSecretBasic;
+    }
+
+    public String getAuthorizationHeader() {
+        return authorizationHeader;
+    }
+}
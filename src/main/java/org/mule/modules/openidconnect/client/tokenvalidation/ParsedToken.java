@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.tokenvalidation;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.token.AccessToken;
+
+/**
+ * Holds an access token together with its parsed JWT and claims set. It is created once per request, so the token
+ * is parsed only once no matter how many checks are done during validation.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class ParsedToken {
+
+    private final AccessToken accessToken;
+    private final SignedJWT signedJWT;
+    private final JWTClaimsSet claimsSet;
+
+    public ParsedToken(AccessToken accessToken, SignedJWT signedJWT, JWTClaimsSet claimsSet) {
+        this.accessToken = accessToken;
+        this.signedJWT = signedJWT;
+        this.claimsSet = claimsSet;
+    }
+
+    public AccessToken getAccessToken() {
+        return accessToken;
+    }
+
+    public SignedJWT getSignedJWT() {
+        return signedJWT;
+    }
+
+    public JWTClaimsSet getClaimsSet() {
+        return claimsSet;
+    }
+}
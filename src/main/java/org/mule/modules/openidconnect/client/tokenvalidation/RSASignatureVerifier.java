@@ -0,0 +1,88 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.tokenvalidation;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jwt.SignedJWT;
+
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verifies RSA signatures of signed JWTs with one public key. The JCA Signature objects are looked up and initialized
+ * once per worker thread and algorithm and reused for every following verification on this thread, so an instance
+ * can be shared safely between all Mule worker threads.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class RSASignatureVerifier {
+
+    private final RSAPublicKey publicKey;
+    private final ThreadLocal<Map<JWSAlgorithm, Signature>> signatures =
+            ThreadLocal.withInitial(() -> new HashMap<>(4));
+
+    public RSASignatureVerifier(RSAPublicKey publicKey) {
+        this.publicKey = publicKey;
+    }
+
+    /**
+     * Verifies the signature of the given JWT. RS256, RS384 and RS512 are verified with the thread confined
+     * Signature objects, all other algorithms are delegated to the RSASSAVerifier of the Nimbus SDK
+     *
+     * @param signedJWT The signed JWT
+     * @return True if the signature is valid, false if not
+     * @throws JOSEException if the signature can't be verified
+     */
+    public boolean verify(SignedJWT signedJWT) throws JOSEException {
+        JWSAlgorithm algorithm = signedJWT.getHeader().getAlgorithm();
+        String jcaAlgorithm = toJcaAlgorithm(algorithm);
+        if (jcaAlgorithm == null) {
+            return signedJWT.verify(new RSASSAVerifier(publicKey));
+        }
+        Map<JWSAlgorithm, Signature> threadSignatures = signatures.get();
+        try {
+            Signature signature = threadSignatures.get(algorithm);
+            if (signature == null) {
+                signature = Signature.getInstance(jcaAlgorithm);
+                signature.initVerify(publicKey);
+                threadSignatures.put(algorithm, signature);
+            }
+            signature.update(signedJWT.getSigningInput());
+            return signature.verify(signedJWT.getSignature().decode());
+        } catch (GeneralSecurityException e) {
+            // the state of the signature object is undefined after a failure, so it is not reused
+            threadSignatures.remove(algorithm);
+            throw new JOSEException("RSA signature verification failed: " + e.getMessage(), e);
+        }
+    }
+
+    public RSAPublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    private static String toJcaAlgorithm(JWSAlgorithm algorithm) {
+        if (JWSAlgorithm.RS256.equals(algorithm)) return "SHA256withRSA";
+        if (JWSAlgorithm.RS384.equals(algorithm)) return "SHA384withRSA";
+        if (JWSAlgorithm.RS512.equals(algorithm)) return "SHA512withRSA";
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.tokenvalidation;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jwt.SignedJWT;
+import org.mule.modules.openidconnect.config.PublicKeySet;
+import org.mule.modules.openidconnect.exception.TokenValidationException;
+
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the signature verifiers of the identity provider public keys, indexed by key ID (kid). A verifier is built
+ * once per public key and the whole set is swapped atomically if the keys change, so concurrent verifications always
+ * see a consistent key set. Tokens signed with an unknown key ID trigger a rate limited refresh of the keys, which is
+ * done by exactly one thread while concurrent requests for unknown keys wait for its result.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class SignatureVerifierRegistry {
+
+    private final AtomicReference<Verifiers> verifiers = new AtomicReference<>(Verifiers.EMPTY);
+    private final Runnable keyRefresher;
+    private final long minRefreshIntervalMillis;
+    private final Object refreshLock = new Object();
+    private long lastRefresh;
+
+    public SignatureVerifierRegistry() {
+        this(null, 0);
+    }
+
+    /**
+     * @param keyRefresher Callback which fetches the keys again and calls update(), may be null
+     * @param minRefreshIntervalMillis Minimum time between two refreshes triggered by unknown key IDs
+     */
+    public SignatureVerifierRegistry(Runnable keyRefresher, long minRefreshIntervalMillis) {
+        this.keyRefresher = keyRefresher;
+        this.minRefreshIntervalMillis = minRefreshIntervalMillis;
+    }
+
+    /**
+     * Replaces the current verifiers with verifiers for the given keys. Verifiers of keys which did not change are
+     * reused
+     *
+     * @param publicKeys The current public keys of the identity provider
+     */
+    public void update(PublicKeySet publicKeys) {
+        Verifiers current = verifiers.get();
+        if (publicKeys == null) {
+            verifiers.set(Verifiers.EMPTY);
+            return;
+        }
+        Map<String, RSASignatureVerifier> byId = new HashMap<>();
+        for (Map.Entry<String, RSAPublicKey> key : publicKeys.getKeysById().entrySet()) {
+            RSASignatureVerifier existing = current.byId.get(key.getKey());
+            byId.put(key.getKey(), existing != null && existing.getPublicKey().equals(key.getValue()) ?
+                    existing : new RSASignatureVerifier(key.getValue()));
+        }
+        List<RSASignatureVerifier> withoutId = new ArrayList<>();
+        for (RSAPublicKey key : publicKeys.getKeysWithoutId()) {
+            RSASignatureVerifier existing = current.findWithoutId(key);
+            withoutId.add(existing != null ? existing : new RSASignatureVerifier(key));
+        }
+        verifiers.set(new Verifiers(byId, withoutId));
+    }
+
+    /**
+     * Verifies the signature of the given JWT. If the JWS header contains a key ID the matching key is used, all keys
+     * are only tried if the token has no key ID or the identity provider publishes keys without ID
+     *
+     * @param signedJWT The signed JWT
+     * @return True if the signature is valid, false if not
+     * @throws TokenValidationException if there is no public key available or the key ID is unknown
+     * @throws JOSEException if the signature can't be verified
+     */
+    public boolean verify(SignedJWT signedJWT) throws TokenValidationException, JOSEException {
+        Verifiers current = verifiers.get();
+        if (current.all.isEmpty()) throw new TokenValidationException("RSA public key is null");
+        String keyId = signedJWT.getHeader().getKeyID();
+        if (keyId == null) return verifyWithAny(current.all, signedJWT);
+
+        RSASignatureVerifier verifier = current.byId.get(keyId);
+        if (verifier != null) return verifier.verify(signedJWT);
+        if (!current.withoutId.isEmpty()) return verifyWithAny(current.withoutId, signedJWT);
+
+        verifier = refreshAndLookup(keyId);
+        if (verifier == null) throw new TokenValidationException("Unknown key ID " + keyId);
+        return verifier.verify(signedJWT);
+    }
+
+    /**
+     * @param keyId The key ID (kid)
+     * @return The verifier of the key with the given ID or null
+     */
+    public RSASignatureVerifier getVerifier(String keyId) {
+        return verifiers.get().byId.get(keyId);
+    }
+
+    public List<RSASignatureVerifier> getVerifiers() {
+        return verifiers.get().all;
+    }
+
+    /**
+     * Refreshes the keys if the minimum refresh interval has passed. Threads which are waiting for the lock check
+     * again first, so they use the result of a refresh which was done while they were waiting
+     */
+    private RSASignatureVerifier refreshAndLookup(String keyId) {
+        if (keyRefresher == null) return null;
+        synchronized (refreshLock) {
+            RSASignatureVerifier verifier = verifiers.get().byId.get(keyId);
+            if (verifier != null) return verifier;
+            long now = System.currentTimeMillis();
+            if (lastRefresh != 0 && now - lastRefresh < minRefreshIntervalMillis) return null;
+            lastRefresh = now;
+            keyRefresher.run();
+            return verifiers.get().byId.get(keyId);
+        }
+    }
+
+    private static boolean verifyWithAny(List<RSASignatureVerifier> candidates, SignedJWT signedJWT)
+            throws JOSEException {
+        for (RSASignatureVerifier verifier : candidates) {
+            if (verifier.verify(signedJWT)) return true;
+        }
+        return false;
+    }
+
+    private static final class Verifiers {
+        private static final Verifiers EMPTY = new Verifiers(
+                Collections.<String, RSASignatureVerifier>emptyMap(), Collections.<RSASignatureVerifier>emptyList()
+        );
+
+        private final Map<String, RSASignatureVerifier> byId;
+        private final List<RSASignatureVerifier> withoutId;
+        private final List<RSASignatureVerifier> all;
+
+        private Verifiers(Map<String, RSASignatureVerifier> byId, List<RSASignatureVerifier> withoutId) {
+            this.byId = Collections.unmodifiableMap(byId);
+            this.withoutId = Collections.unmodifiableList(withoutId);
+            List<RSASignatureVerifier> allVerifiers = new ArrayList<>(byId.values());
+            allVerifiers.addAll(withoutId);
+            this.all = Collections.unmodifiableList(allVerifiers);
+        }
+
+        private RSASignatureVerifier findWithoutId(RSAPublicKey publicKey) {
+            for (RSASignatureVerifier verifier : withoutId) {
+                if (verifier.getPublicKey().equals(publicKey)) return verifier;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.client.tokenvalidation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread safe cache for token related data. Every entry expires at an individual point in time which is
+ * capped by the configured time to live. Raw tokens are never used as keys, callers should use digest() to build
+ * the key of a token.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class TokenCache<V> {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    });
+
+    private final Map<String, Entry<V>> entries;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final boolean statistics;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of entries held by the cache
+     * @param ttlMillis Maximum time to live of an entry in milliseconds
+     * @param statistics Enables the hit, miss and eviction counters
+     */
+    public TokenCache(int maxSize, long ttlMillis, boolean statistics) {
+        this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the cached value for the given key if it exists and is not expired
+     *
+     * @param key Cache key built with digest()
+     * @return The cached value or null
+     */
+    public V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            count(misses);
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            if (entries.remove(key, entry)) count(evictions);
+            count(misses);
+            return null;
+        }
+        count(hits);
+        return entry.value;
+    }
+
+    /**
+     * Puts a value into the cache. The entry expires at the given time or after the configured time to live,
+     * whichever comes first. If the cache is full, expired entries are purged first and afterwards arbitrary entries
+     * are evicted until there is enough space again.
+     *
+     * @param key Cache key built with digest()
+     * @param value Value to be cached
+     * @param expiresAt Point in time (epoch millis) at which the value is not valid anymore
+     */
+    public void put(String key, V value, long expiresAt) {
+        long now = System.currentTimeMillis();
+        long maxExpiry = ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
+        long entryExpiry = Math.min(expiresAt, maxExpiry);
+        if (entryExpiry <= now) return;
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            makeRoom(now);
+        }
+        entries.put(key, new Entry<>(value, entryExpiry));
+    }
+
+    /**
+     * Removes the entry with the given key
+     *
+     * @param key Cache key built with digest()
+     */
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public boolean isStatisticsEnabled() {
+        return statistics;
+    }
+
+    /**
+     * @return Size and counters of the cache as map
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statisticsMap = new LinkedHashMap<>();
+        statisticsMap.put("size", size());
+        statisticsMap.put("hits", getHitCount());
+        statisticsMap.put("misses", getMissCount());
+        statisticsMap.put("evictions", getEvictionCount());
+        return statisticsMap;
+    }
+
+    /**
+     * Builds the cache key of a token. The key is the base64url encoded SHA-256 digest of the raw token string
+     *
+     * @param token Raw token string
+     * @return The cache key
+     */
+    public static String digest(String token) {
+        MessageDigest digest = SHA_256.get();
+        digest.reset();
+        byte[] hash = digest.digest(token.getBytes(StandardCharsets.US_ASCII));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    /**
+     * Purges expired entries. If that is not enough, arbitrary entries are evicted until the cache is filled to 90%
+     * so that not every following put has to scan the whole cache again
+     */
+    private void makeRoom(long now) {
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+                count(evictions);
+            }
+        }
+        int target = maxSize - Math.max(1, maxSize / 10);
+        iterator = entries.values().iterator();
+        while (entries.size() > target && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            count(evictions);
+        }
+    }
+
+    private void count(LongAdder counter) {
+        if (statistics) counter.increment();
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -18,17 +18,29 @@ package org.mule.modules.openidconnect.client.tokenvalidation;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.oauth2.sdk.*;
 import com.nimbusds.oauth2.sdk.http.CommonContentTypes;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.token.AccessToken;
 import net.minidev.json.JSONObject;
+import org.mule.modules.openidconnect.client.CircuitBreaker;
+import org.mule.modules.openidconnect.client.HttpTransport;
 import org.mule.modules.openidconnect.client.NimbusParserUtil;
+import org.mule.modules.openidconnect.client.SingleFlight;
 import org.mule.modules.openidconnect.config.SingleSignOnConfig;
+import org.mule.modules.openidconnect.config.TenantRegistry;
+import org.mule.modules.openidconnect.exception.CircuitOpenException;
 import org.mule.modules.openidconnect.exception.HTTPConnectException;
+import org.mule.modules.openidconnect.exception.MetaDataInitializationException;
 import org.mule.modules.openidconnect.exception.TokenValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * This class provides the functionality to validate tokens. Local with the TokenVerifier or with sending a http
@@ -41,59 +53,64 @@ public class TokenValidator {
 
 	private TokenVerifier verifier;
 	private NimbusParserUtil parser;
+	private HttpTransport httpTransport;
+	private TokenCache<JWTClaimsSet> verifiedTokenCache;
+	private TokenCache<JSONObject> introspectionCache;
+	private long inactiveTokenCacheTtl;
+	private final SingleFlight<String, JSONObject> introspectionFlight = new SingleFlight<>();
+	private Semaphore outstandingIntrospections;
+	private CircuitBreaker circuitBreaker;
+	private boolean circuitBreakerFallback;
 
+	private volatile TokenCache<Long> introspectionSchedule;
+
+	private static final long REVOKED = -1;
 	private static final Logger logger = LoggerFactory.getLogger(TokenValidator.class);
 
 	public TokenValidator(TokenVerifier verifier) {
 		this.verifier = verifier;
         this.parser = new NimbusParserUtil();
+        this.httpTransport = new HttpTransport();
 	}
 
     /**
      * Validates a token from authHeader by sending an http request to the introspection endpoint of an identity
-     * provider
+     * provider. Concurrent introspections of the same token are coalesced into one request. If the introspection
+     * cache is enabled, active results are cached until the token expires and inactive results for a short negative
+     * time to live. If the circuit breaker is open and the local fallback is enabled, JWT access tokens are
+     * validated locally instead. If the maximum number of outstanding introspection requests is reached, the
+     * validation fails immediately with a HTTPConnectException
      *
      * @param authHeader Authorization header string from HTTP Request
      * @param ssoConfig Config object with all necessary identity provider information
+     * @param profile Introspection endpoint and client credentials
      * @return JSONObject including the token claims
      * @throws TokenValidationException if introspection fails
      * @throws HTTPConnectException if connecting to the identity provider fails
      */
-	public JSONObject introspectionTokenValidation(String authHeader, SingleSignOnConfig ssoConfig)
-			throws TokenValidationException, HTTPConnectException {
+	public JSONObject introspectionTokenValidation(String authHeader, SingleSignOnConfig ssoConfig,
+			IntrospectionProfile profile) throws TokenValidationException, HTTPConnectException {
 		try {
 			AccessToken accessToken = parser.parseAccessToken(authHeader);
-
-			TokenIntrospectionRequest introspectionRequest = createTokenIntrospectionRequest(accessToken, ssoConfig);
-			logger.debug("Sending token introspection HTTP request to identity provider");
-			HTTPResponse httpResponse = introspectionRequest.toHTTPRequest().send();
-
-            // ******** Workaround because Keycloak SSO does not set the content type in introspection response yet
-            httpResponse.setContentType(CommonContentTypes.APPLICATION_JSON);
-            // ********
-
-            TokenIntrospectionResponse introspectionResponse = parser.parseIntrospectionResponse(httpResponse);
-
-			if (introspectionResponse instanceof TokenIntrospectionErrorResponse) {
-				logger.debug("Received an error response from introspection request");
-				ErrorObject errorResponse = ((TokenIntrospectionErrorResponse) introspectionResponse)
-						.getErrorObject();
-				throw new TokenValidationException(errorResponse.getDescription());
+			String tokenKey = introspectionKey(accessToken, profile);
+			JSONObject claims = cachedIntrospection(tokenKey);
+			if (claims == null) {
+				try {
+					claims = introspectCoalesced(accessToken, profile, tokenKey);
+				} catch (CircuitOpenException e) {
+					if (!circuitBreakerFallback || !isJwt(accessToken)) throw e;
+					return localFallback(accessToken, ssoConfig);
+				}
 			}
-
-            TokenIntrospectionSuccessResponse successResponse =
-					(TokenIntrospectionSuccessResponse) introspectionResponse;
-			JSONObject claims = successResponse.toJSONObject();
-			if (!(boolean)claims.get("active")) {
-				logger.debug("Token validation with introspection failed. Token isn't active");
-				throw new TokenValidationException("Token is not active");
-			}
-			return claims;
+			return activeClaims(claims);
 		} catch (IOException e) {
 			logger.debug("Could not connect to identity provider for token introspection");
 			throw new HTTPConnectException(String.format("Could not connect to the identity provider %s - Error: %s",
                             ssoConfig.getSsoUri(), e.getMessage())
 			);
+		} catch (CircuitOpenException e) {
+			logger.debug("Token introspection rejected. Message: {}", e.getMessage());
+			throw e;
 		} catch (Exception e) {
 			logger.debug("Error during token introspection. Message: {}", e.getMessage());
             throw new TokenValidationException(e.getMessage());
@@ -101,7 +118,9 @@ public class TokenValidator {
 	}
 
     /**
-     * Calls the TokenVerifier to verify the given token
+     * Calls the TokenVerifier to verify the given token. The token is parsed once and passed through the whole
+     * verification. If the verified token cache is enabled, tokens which were already verified are served from the
+     * cache until they expire
      *
      * @param authHeader Authorization header string from HTTP Request
      * @param ssoConfig Config object with all necessary identity provider information
@@ -111,33 +130,380 @@ public class TokenValidator {
 	public JWTClaimsSet localTokenValidation(String authHeader, SingleSignOnConfig ssoConfig)
 			throws TokenValidationException {
 		try {
-			AccessToken accessToken = parser.parseAccessToken(authHeader);
-			return verifier.verifyAccessToken(
-					accessToken, ssoConfig.getRsaPublicKey(), ssoConfig.getSsoUri().toString()
+			return verifyLocally(parser.parseAccessToken(authHeader), ssoConfig);
+		} catch (Exception e) {
+			logger.debug("Error during local token validation. Message: {}", e.getMessage());
+			throw new TokenValidationException(e.getMessage());
+		}
+	}
+
+    /**
+     * Verifies the token locally with the config of its issuer. The unverified iss claim selects the config in the
+     * tenant registry, whose metadata is loaded on the first token of the issuer. Tokens of issuers which are not
+     * trusted are rejected before any request to an identity provider is made
+     *
+     * @param authHeader Authorization header string from HTTP Request
+     * @param tenants Registry of the configs of all trusted issuers
+     * @return The JWTClaimsSet of the given token
+     * @throws TokenValidationException if token validation fails or the issuer is not trusted
+     * @throws MetaDataInitializationException if the metadata of the issuer is not available
+     */
+	public JWTClaimsSet multiIssuerTokenValidation(String authHeader, TenantRegistry tenants)
+			throws TokenValidationException, MetaDataInitializationException {
+		try {
+			return verifyLocally(
+					parser.parseAccessToken(authHeader),
+					token -> tenants.resolve(token.getClaimsSet().getIssuer()),
+					tenants.getTrustedIssuers()::contains
 			);
+		} catch (TokenValidationException | MetaDataInitializationException e) {
+			throw e;
+		} catch (Exception e) {
+			logger.debug("Error during multi issuer token validation. Message: {}", e.getMessage());
+			throw new TokenValidationException(e.getMessage());
+		}
+	}
+
+    /**
+     * Verifies the token locally on every call and additionally introspects it at the identity provider on first
+     * sight, after the introspection interval and for a random sample of the calls. A revoked token is rejected at
+     * the latest one interval after its revocation. If an introspection fails because the identity provider is not
+     * reachable or the circuit breaker is open, the token is rejected once its interval has elapsed. Only if failing
+     * open is enabled, it is accepted for one more interval and the introspection is retried with the next call. The
+     * introspection schedule is kept per introspection endpoint and client, like the introspection cache
+     *
+     * @param authHeader Authorization header string from HTTP Request
+     * @param ssoConfig Config object with all necessary identity provider information
+     * @param profile Introspection endpoint and client credentials
+     * @param introspectionInterval Time in milliseconds after which a token is introspected again
+     * @param samplingRate Probability (0 to 1) that a call is introspected although the interval hasn't elapsed
+     * @param failOpen Accept the token for one more interval if the identity provider is not reachable
+     * @return The JWTClaimsSet of the given token
+     * @throws TokenValidationException if token validation fails, the token was revoked or no introspection schedule
+     * is set
+     * @throws HTTPConnectException if a due introspection fails and the token can't be accepted without it
+     */
+	public JWTClaimsSet hybridTokenValidation(String authHeader, SingleSignOnConfig ssoConfig,
+			IntrospectionProfile profile, long introspectionInterval, double samplingRate, boolean failOpen)
+			throws TokenValidationException, HTTPConnectException {
+		TokenCache<Long> introspectionSchedule = this.introspectionSchedule;
+		if (introspectionSchedule == null) {
+			throw new TokenValidationException("Hybrid token validation is not enabled");
+		}
+		AccessToken accessToken;
+		JWTClaimsSet claims;
+		try {
+			accessToken = parser.parseAccessToken(authHeader);
+			claims = verifyLocally(accessToken, ssoConfig);
 		} catch (Exception e) {
 			logger.debug("Error during local token validation. Message: {}", e.getMessage());
 			throw new TokenValidationException(e.getMessage());
 		}
+
+		String scheduleKey = introspectionKey(accessToken, profile);
+		Long lastIntrospection = introspectionSchedule.get(scheduleKey);
+		if (lastIntrospection != null && lastIntrospection == REVOKED) {
+			logger.debug("Token validation failed. Token was revoked");
+			throw new TokenValidationException("Token is not active");
+		}
+		long now = System.currentTimeMillis();
+		boolean introspectionDue = lastIntrospection == null || now - lastIntrospection >= introspectionInterval
+				|| samplingRate > 0 && ThreadLocalRandom.current().nextDouble() < samplingRate;
+		if (!introspectionDue) return claims;
+
+		JSONObject introspectionClaims;
+		try {
+			introspectionClaims = introspectCoalesced(accessToken, profile, scheduleKey);
+		} catch (IOException | CircuitOpenException e) {
+			long sinceIntrospection = lastIntrospection != null ? now - lastIntrospection : Long.MAX_VALUE;
+			if (sinceIntrospection < introspectionInterval
+					|| failOpen && sinceIntrospection - introspectionInterval < introspectionInterval) {
+				logger.warn("Periodic token introspection failed, accepting locally verified token. Reason: {}",
+						e.getMessage());
+				return claims;
+			}
+			logger.debug("Could not connect to identity provider for token introspection");
+			throw new HTTPConnectException(String.format("Could not connect to the identity provider %s - Error: %s",
+					ssoConfig.getSsoUri(), e.getMessage()));
+		} catch (Exception e) {
+			logger.debug("Error during token introspection. Message: {}", e.getMessage());
+			throw new TokenValidationException(e.getMessage());
+		}
+
+		Date expirationTime = claims.getExpirationTime();
+		long expiresAt = expirationTime != null ? expirationTime.getTime() : Long.MAX_VALUE;
+		if (!isActive(introspectionClaims)) {
+			logger.debug("Token validation with introspection failed. Token isn't active");
+			introspectionSchedule.put(scheduleKey, REVOKED, expiresAt);
+			throw new TokenValidationException("Token is not active");
+		}
+		introspectionSchedule.put(scheduleKey, now, expiresAt);
+		return claims;
+	}
+
+    /**
+     * Verifies the given token locally. If the verified token cache is enabled, tokens which were already verified
+     * are served from the cache until they expire
+     */
+	private JWTClaimsSet verifyLocally(AccessToken accessToken, SingleSignOnConfig ssoConfig) throws Exception {
+		String issuer = ssoConfig.getSsoUri().toString();
+		return verifyLocally(accessToken, token -> ssoConfig, issuer::equals);
+	}
+
+    /**
+     * Verifies the given token locally with the config selected by the resolver. The verified token cache is shared
+     * by all processors, so a cached token is only accepted if its verified issuer is trusted by the calling
+     * processor as well. Otherwise it is verified again, with the keys and the issuer of the resolved config
+     */
+	private JWTClaimsSet verifyLocally(AccessToken accessToken, ConfigResolver resolver,
+			Predicate<String> trustedIssuer) throws Exception {
+		String cacheKey = null;
+		if (verifiedTokenCache != null) {
+			cacheKey = TokenCache.digest(accessToken.getValue());
+			JWTClaimsSet cachedClaims = verifiedTokenCache.get(cacheKey);
+			if (cachedClaims != null && trustedIssuer.test(cachedClaims.getIssuer())) {
+				logger.debug("Token found in verified token cache");
+				return cachedClaims;
+			}
+		}
+		ParsedToken token = parser.parseToken(accessToken);
+		SingleSignOnConfig ssoConfig = resolver.resolve(token);
+		JWTClaimsSet claims = verifier.verifyAccessToken(
+				token, ssoConfig.getVerifierRegistry(), ssoConfig.getSsoUri().toString()
+		);
+		if (cacheKey != null) {
+			Date expirationTime = claims.getExpirationTime();
+			verifiedTokenCache.put(
+					cacheKey, claims, expirationTime != null ? expirationTime.getTime() : Long.MAX_VALUE
+			);
+		}
+		return claims;
 	}
 
     /**
-     * Builds and returns a valid token introspection request defined by RFC7662
+     * Sends the introspection request to the identity provider and returns the claims of the response
      *
      * @param accessToken Token which has to be introspected
-     * @param ssoConfig Config object with all necessary identity provider information
-     * @return The introspection request
-     * @see <a href="https://tools.ietf.org/html/rfc7662">RFC7662</a>
+     * @param profile Introspection endpoint and client credentials
+     * @return The claims of the introspection response, active or not
+     * @throws IOException if connecting to the identity provider fails or too many introspections are outstanding
+     * @throws ParseException if the response can't be parsed
+     * @throws TokenValidationException if the identity provider responds with an error
+     * @throws CircuitOpenException if the circuit breaker rejects the request
      */
-	public TokenIntrospectionRequest createTokenIntrospectionRequest(
-			AccessToken accessToken, SingleSignOnConfig ssoConfig) {
-		return new TokenIntrospectionRequest(
-				ssoConfig.getIntrospectionUri(),
-				ssoConfig.getClientSecretBasic(),
-				accessToken);
+	private JSONObject introspect(AccessToken accessToken, IntrospectionProfile profile)
+			throws IOException, ParseException, TokenValidationException, CircuitOpenException {
+		Semaphore outstandingIntrospections = this.outstandingIntrospections;
+		if (outstandingIntrospections != null && !outstandingIntrospections.tryAcquire()) {
+			logger.debug("Maximum number of outstanding introspection requests reached");
+			throw new IOException("Maximum number of outstanding introspection requests reached");
+		}
+		HTTPResponse httpResponse;
+		try {
+			logger.debug("Sending token introspection HTTP request to identity provider");
+			httpResponse = send(profile.toHTTPRequest(accessToken));
+		} finally {
+			if (outstandingIntrospections != null) outstandingIntrospections.release();
+		}
+
+        // ******** Workaround because Keycloak SSO does not set the content type in introspection response yet
+        httpResponse.setContentType(CommonContentTypes.APPLICATION_JSON);
+        // ********
+
+        TokenIntrospectionResponse introspectionResponse = parser.parseIntrospectionResponse(httpResponse);
+
+		if (introspectionResponse instanceof TokenIntrospectionErrorResponse) {
+			logger.debug("Received an error response from introspection request");
+			ErrorObject errorResponse = ((TokenIntrospectionErrorResponse) introspectionResponse)
+					.getErrorObject();
+			throw new TokenValidationException(errorResponse.getDescription());
+		}
+
+		return ((TokenIntrospectionSuccessResponse) introspectionResponse).toJSONObject();
+	}
+
+    /**
+     * Sends the request through the circuit breaker if it is enabled. Connection failures, server errors and slow
+     * responses count as failures
+     *
+     * @param request The request to send
+     * @return The response of the identity provider
+     * @throws IOException if connecting to the identity provider fails
+     * @throws CircuitOpenException if the circuit breaker rejects the request
+     */
+	private HTTPResponse send(HTTPRequest request) throws IOException, CircuitOpenException {
+		if (circuitBreaker == null) return httpTransport.send(request);
+		CircuitBreaker.Permit permit = circuitBreaker.tryAcquirePermission();
+		if (permit == null) {
+			throw new CircuitOpenException("Circuit breaker for the identity provider is open");
+		}
+		long start = System.nanoTime();
+		boolean error = true;
+		try {
+			HTTPResponse response = httpTransport.send(request);
+			error = response.getStatusCode() >= 500;
+			return response;
+		} finally {
+			circuitBreaker.onResult(permit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error);
+		}
+	}
+
+    /**
+     * Validates a JWT access token locally while the circuit breaker is open. The claims are returned in the format
+     * of an introspection response
+     */
+	private JSONObject localFallback(AccessToken accessToken, SingleSignOnConfig ssoConfig) throws Exception {
+		logger.debug("Circuit breaker is open. Validating token locally");
+		JSONObject claims = verifyLocally(accessToken, ssoConfig).toJSONObject();
+		claims.put("active", true);
+		return claims;
+	}
+
+	private boolean isJwt(AccessToken accessToken) {
+		String value = accessToken.getValue();
+		int firstDot = value.indexOf('.');
+		int secondDot = value.indexOf('.', firstDot + 1);
+		return firstDot > 0 && secondDot > firstDot && value.indexOf('.', secondDot + 1) == -1;
+	}
+
+    /**
+     * Caches an introspection result. Active results expire with the token, inactive results after the negative
+     * time to live. Error responses are never cached
+     *
+     * @param cacheKey Cache key of the token
+     * @param claims Claims of the introspection response
+     */
+	private void cacheIntrospectionResult(String cacheKey, JSONObject claims) {
+		if (isActive(claims)) {
+			Object expirationTime = claims.get("exp");
+			introspectionCache.put(cacheKey, claims, expirationTime instanceof Number
+					? TimeUnit.SECONDS.toMillis(((Number) expirationTime).longValue()) : Long.MAX_VALUE);
+		} else if (inactiveTokenCacheTtl > 0) {
+			introspectionCache.put(cacheKey, claims, System.currentTimeMillis() + inactiveTokenCacheTtl);
+		}
+	}
+
+    /**
+     * Sends the introspection request, coalesced with concurrent introspections of the same token, and fills the
+     * introspection cache if it is enabled
+     */
+	private JSONObject introspectCoalesced(AccessToken accessToken, IntrospectionProfile profile, String tokenKey)
+			throws Exception {
+		return introspectionFlight.execute(tokenKey, () -> {
+			JSONObject result = introspect(accessToken, profile);
+			if (introspectionCache != null) {
+				cacheIntrospectionResult(tokenKey, result);
+			}
+			return result;
+		});
+	}
+
+    /**
+     * Builds the cache key of an introspection result. The identity provider may answer differently per client, so
+     * results are only shared between profiles with the same endpoint and client
+     */
+	private String introspectionKey(AccessToken accessToken, IntrospectionProfile profile) {
+		return TokenCache.digest(profile.getIntrospectionUri() + " "
+				+ profile.getClientSecretBasic().getClientID().getValue() + " " + accessToken.getValue());
+	}
+
+	private JSONObject cachedIntrospection(String tokenKey) {
+		JSONObject claims = introspectionCache != null ? introspectionCache.get(tokenKey) : null;
+		if (claims != null) {
+			logger.debug("Introspection result found in introspection cache");
+		}
+		return claims;
+	}
+
+    /**
+     * Returns a copy of the given claims, so the shared result can't be modified by the flow
+     *
+     * @param claims Claims of an introspection response
+     * @return Copy of the claims
+     * @throws TokenValidationException if the token isn't active
+     */
+	private JSONObject activeClaims(JSONObject claims) throws TokenValidationException {
+		if (!isActive(claims)) {
+			logger.debug("Token validation with introspection failed. Token isn't active");
+			throw new TokenValidationException("Token is not active");
+		}
+		return new JSONObject(claims);
+	}
+
+	private boolean isActive(JSONObject claims) {
+		return Boolean.TRUE.equals(claims.get("active"));
 	}
 
     public void setParser(NimbusParserUtil parser) {
         this.parser = parser;
     }
+
+	public void setHttpTransport(HttpTransport httpTransport) {
+		this.httpTransport = httpTransport;
+	}
+
+	public TokenCache<JWTClaimsSet> getVerifiedTokenCache() {
+		return verifiedTokenCache;
+	}
+
+	public void setVerifiedTokenCache(TokenCache<JWTClaimsSet> verifiedTokenCache) {
+		this.verifiedTokenCache = verifiedTokenCache;
+	}
+
+	public TokenCache<JSONObject> getIntrospectionCache() {
+		return introspectionCache;
+	}
+
+    /**
+     * Enables the introspection cache
+     *
+     * @param introspectionCache Cache for introspection results
+     * @param inactiveTokenCacheTtl Time to live of inactive results in milliseconds, 0 disables caching of them
+     */
+	public void setIntrospectionCache(TokenCache<JSONObject> introspectionCache, long inactiveTokenCacheTtl) {
+		this.introspectionCache = introspectionCache;
+		this.inactiveTokenCacheTtl = inactiveTokenCacheTtl;
+	}
+
+    /**
+     * Limits the number of introspection requests which are in flight at the same time
+     *
+     * @param maxOutstandingIntrospections Maximum number of introspection requests in flight, 0 doesn't limit them
+     */
+	public void setMaxOutstandingIntrospections(int maxOutstandingIntrospections) {
+		this.outstandingIntrospections = maxOutstandingIntrospections > 0
+				? new Semaphore(maxOutstandingIntrospections) : null;
+	}
+
+    /**
+     * Enables the hybrid token validation
+     *
+     * @param introspectionSchedule Cache which holds the time of the last introspection of every token validated
+     *                              with hybridTokenValidation()
+     */
+	public void setIntrospectionSchedule(TokenCache<Long> introspectionSchedule) {
+		this.introspectionSchedule = introspectionSchedule;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+    /**
+     * Enables the circuit breaker for introspection requests
+     *
+     * @param circuitBreaker The circuit breaker
+     * @param localFallback Validates JWT access tokens locally while the circuit is open
+     */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker, boolean localFallback) {
+		this.circuitBreaker = circuitBreaker;
+		this.circuitBreakerFallback = localFallback;
+	}
+
+    /**
+     * Selects the identity provider config a parsed token is verified with
+     */
+	private interface ConfigResolver {
+		SingleSignOnConfig resolve(ParsedToken token) throws Exception;
+	}
 }
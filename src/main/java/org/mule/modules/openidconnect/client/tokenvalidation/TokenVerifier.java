@@ -15,13 +15,11 @@
  */
 package org.mule.modules.openidconnect.client.tokenvalidation;
 
-import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.crypto.RSASSAVerifier;
 import com.nimbusds.jwt.JWT;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 import com.nimbusds.jwt.proc.JWTClaimsVerifier;
-import com.nimbusds.oauth2.sdk.token.AccessToken;
+import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.openid.connect.sdk.Nonce;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 import com.nimbusds.openid.connect.sdk.validators.IDTokenClaimsVerifier;
@@ -31,9 +29,6 @@ import org.mule.modules.openidconnect.exception.TokenValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.interfaces.RSAPublicKey;
-import java.text.ParseException;
-
 /**
  * Provides methods to verify OpenID Connect Access-, Refresh- and ID-Tokens.
  *
@@ -51,29 +46,27 @@ public class TokenVerifier {
 	}
 
     /**
-     * Verifies that a given AccessToken is valid by comparing the issuer with the origin, checking if its active and
-     * verifying the token signature with a given public key
+     * Verifies that a given parsed token is valid. The cheap checks of the issuer and the token lifetime are done
+     * first, so tokens which are expired or issued by someone else are rejected without verifying the signature. The
+     * signature is verified with the shared signature verifier of the current public key
      *
-     * @param accessToken AccessToken which has to be verified
-     * @param publicKey The public key to verify the signature of the token
+     * @param token The parsed access token which has to be verified
+     * @param verifierRegistry Registry which provides the signature verifier of the current public key
      * @param origin The origin which provided the token
      * @return The claims set of the given token
      * @throws TokenValidationException if verifying fails
      */
-	public JWTClaimsSet verifyAccessToken(AccessToken accessToken, RSAPublicKey publicKey, String origin) throws
+	public JWTClaimsSet verifyAccessToken(
+			ParsedToken token, SignatureVerifierRegistry verifierRegistry, String origin) throws
 			TokenValidationException {
 		try {
+			JWTClaimsSet claimSet = token.getClaimsSet();
 
-			SignedJWT signedJWT = parser.parseSignedJWT(accessToken.getValue());
-			JWSVerifier verifier = new RSASSAVerifier(publicKey);
-            JWTClaimsSet claimSet = signedJWT.getJWTClaimsSet();
-
-            String issuer = claimSet.getIssuer();
+			verifyClaims(claimSet, origin);
+			if (!verifierRegistry.verify(token.getSignedJWT())) {
+				throw new TokenValidationException("Wrong token signature");
+			}
 
-			if (!signedJWT.verify(verifier)) throw new TokenValidationException("Wrong token signature");
-			if (!issuer.equals(origin)) throw new TokenValidationException("Token has wrong issuer");
-			if (!isActive(accessToken)) throw new TokenValidationException("Token isn't active");
-			
 			return claimSet;
 		} catch (Exception e) {
 			logger.debug("Error during access token verification. Message: {}", e.getMessage());
@@ -87,25 +80,23 @@ public class TokenVerifier {
      *
      * @param idToken IDToken which has to be verified
      * @param ssoConfig Config object with all necessary identity provider information
+     * @param clientId Client the token has to be issued to
      * @param nonce Nonce from the initial authentication redirect
      * @throws TokenValidationException if verifying fails
      */
-	public void verifyIdToken(JWT idToken, SingleSignOnConfig ssoConfig, Nonce nonce) throws TokenValidationException {
+	public void verifyIdToken(JWT idToken, SingleSignOnConfig ssoConfig, ClientID clientId, Nonce nonce)
+			throws TokenValidationException {
 		try {
 			OIDCProviderMetadata metaData = ssoConfig.getProviderMetadata();
 			JWTClaimsSet claimSet = idToken.getJWTClaimsSet();
-			JWTClaimsVerifier verifier = new IDTokenClaimsVerifier(
-					metaData.getIssuer(), ssoConfig.getClientSecretBasic().getClientID(), nonce, 0
-			);
+			JWTClaimsVerifier verifier = new IDTokenClaimsVerifier(metaData.getIssuer(), clientId, nonce, 0);
 			verifier.verify(claimSet);
 
-            if(ssoConfig.getRsaPublicKey() != null) {
-                SignedJWT signedJWT = parser.parseSignedJWT(idToken.getParsedString());
-                JWSVerifier jwsVerifier = new RSASSAVerifier(ssoConfig.getRsaPublicKey());
-                if (!signedJWT.verify(jwsVerifier)){
-                    throw new TokenValidationException("Wrong token signature");
-                }
-            } else throw new TokenValidationException("RSA public key is null");
+            SignedJWT signedJWT = idToken instanceof SignedJWT ?
+                    (SignedJWT) idToken : parser.parseSignedJWT(idToken.getParsedString());
+            if (!ssoConfig.getVerifierRegistry().verify(signedJWT)){
+                throw new TokenValidationException("Wrong token signature");
+            }
 
 		} catch (Exception e) {
 			logger.debug("Error during id token verification. Message: {}", e.getMessage());
@@ -145,14 +136,13 @@ public class TokenVerifier {
     }
 
     /**
-     * Helper method to check if a given AccessToken is active
+     * Helper method to check if a given claims set is active. Claims sets without expiration time are not active
      *
-     * @param accessToken AccessToken to be checked
+     * @param claimsSet Claims set to be checked
      * @return True if active, false if not
-     * @throws ParseException if token can't be parsed
      */
-	public boolean isActive(AccessToken accessToken) throws ParseException {
-        JWTClaimsSet claimsSet = parser.parseJWT(accessToken.getValue()).getJWTClaimsSet();
+	public boolean isActive(JWTClaimsSet claimsSet) {
+		if (claimsSet.getExpirationTime() == null) return false;
 		long expTime = claimsSet.getExpirationTime().getTime();
 		long notBeforeTime = 0;
 		if(claimsSet.getClaims().containsKey("nbf")){
@@ -161,6 +151,18 @@ public class TokenVerifier {
 		return System.currentTimeMillis() < expTime && System.currentTimeMillis() >= notBeforeTime;
 	}
 
+    /**
+     * Checks the issuer and the lifetime of the given claims set
+     *
+     * @param claimSet Claims set to be checked
+     * @param origin The origin which provided the token
+     * @throws TokenValidationException if one of the checks fails
+     */
+	private void verifyClaims(JWTClaimsSet claimSet, String origin) throws TokenValidationException {
+		if (!origin.equals(claimSet.getIssuer())) throw new TokenValidationException("Token has wrong issuer");
+		if (!isActive(claimSet)) throw new TokenValidationException("Token isn't active");
+	}
+
 	public void setParser(NimbusParserUtil parser) {
 		this.parser = parser;
 	}
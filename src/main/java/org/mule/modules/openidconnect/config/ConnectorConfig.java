@@ -18,6 +18,7 @@ package org.mule.modules.openidconnect.config;
 import org.mule.api.annotations.Configurable;
 import org.mule.api.annotations.components.Configuration;
 import org.mule.api.annotations.display.FriendlyName;
+import org.mule.api.annotations.display.Password;
 import org.mule.api.annotations.display.Placement;
 import org.mule.api.annotations.param.Default;
 import org.mule.api.annotations.param.Optional;
@@ -185,4 +186,700 @@ public class ConnectorConfig {
 	public void setPublicKey(String publicKey) {
 		this.publicKey = publicKey;
 	}
+
+	/**
+	 * Maximum number of verified tokens held in the cache of the local token validation. 0 disables the cache. A
+	 * cached token is not verified again until it expires or its time to live ends, so it stays valid for that time
+	 * even if its signing key is removed from the key set of the identity provider
+	 */
+	@Configurable
+	@FriendlyName("Verified token cache size")
+	@Default("0")
+	@Placement(tab="Performance", group="Verified Token Cache", order = 0)
+	private int verifiedTokenCacheSize;
+
+	public int getVerifiedTokenCacheSize() {
+		return verifiedTokenCacheSize;
+	}
+
+	public void setVerifiedTokenCacheSize(int verifiedTokenCacheSize) {
+		this.verifiedTokenCacheSize = verifiedTokenCacheSize;
+	}
+
+	/**
+	 * Maximum time in seconds a verified token is cached. Tokens are never cached beyond their expiration time
+	 */
+	@Configurable
+	@FriendlyName("Verified token cache TTL (seconds)")
+	@Default("300")
+	@Placement(tab="Performance", group="Verified Token Cache", order = 1)
+	private int verifiedTokenCacheTtl;
+
+	public int getVerifiedTokenCacheTtl() {
+		return verifiedTokenCacheTtl;
+	}
+
+	public void setVerifiedTokenCacheTtl(int verifiedTokenCacheTtl) {
+		this.verifiedTokenCacheTtl = verifiedTokenCacheTtl;
+	}
+
+	/**
+	 * Enables the hit, miss and eviction counters of the verified token cache
+	 */
+	@Configurable
+	@FriendlyName("Verified token cache statistics")
+	@Default("false")
+	@Placement(tab="Performance", group="Verified Token Cache", order = 2)
+	private boolean verifiedTokenCacheStatistics;
+
+	public boolean isVerifiedTokenCacheStatistics() {
+		return verifiedTokenCacheStatistics;
+	}
+
+	public void setVerifiedTokenCacheStatistics(boolean verifiedTokenCacheStatistics) {
+		this.verifiedTokenCacheStatistics = verifiedTokenCacheStatistics;
+	}
+
+	/**
+	 * Minimum time in seconds between two JWK set requests triggered by tokens signed with an unknown key ID
+	 */
+	@Configurable
+	@FriendlyName("JWK set refresh rate limit (seconds)")
+	@Default("30")
+	@Placement(tab="Performance", group="Key Rotation", order = 0)
+	private int jwkSetRefreshRateLimit;
+
+	public int getJwkSetRefreshRateLimit() {
+		return jwkSetRefreshRateLimit;
+	}
+
+	public void setJwkSetRefreshRateLimit(int jwkSetRefreshRateLimit) {
+		this.jwkSetRefreshRateLimit = jwkSetRefreshRateLimit;
+	}
+
+	/**
+	 * Interval in seconds in which the identity provider metadata and keys are refreshed in the background. 0
+	 * disables the background refresh
+	 */
+	@Configurable
+	@FriendlyName("Metadata refresh interval (seconds)")
+	@Default("0")
+	@Placement(tab="Performance", group="Metadata Refresh", order = 0)
+	private int metaDataRefreshInterval;
+
+	public int getMetaDataRefreshInterval() {
+		return metaDataRefreshInterval;
+	}
+
+	public void setMetaDataRefreshInterval(int metaDataRefreshInterval) {
+		this.metaDataRefreshInterval = metaDataRefreshInterval;
+	}
+
+	/**
+	 * Maximum random delay in seconds added to every background refresh
+	 */
+	@Configurable
+	@FriendlyName("Metadata refresh jitter (seconds)")
+	@Default("30")
+	@Placement(tab="Performance", group="Metadata Refresh", order = 1)
+	private int metaDataRefreshJitter;
+
+	public int getMetaDataRefreshJitter() {
+		return metaDataRefreshJitter;
+	}
+
+	public void setMetaDataRefreshJitter(int metaDataRefreshJitter) {
+		this.metaDataRefreshJitter = metaDataRefreshJitter;
+	}
+
+	/**
+	 * Maximum delay in seconds between retries of failed background refreshes
+	 */
+	@Configurable
+	@FriendlyName("Metadata refresh maximum backoff (seconds)")
+	@Default("300")
+	@Placement(tab="Performance", group="Metadata Refresh", order = 2)
+	private int metaDataRefreshMaxBackoff;
+
+	public int getMetaDataRefreshMaxBackoff() {
+		return metaDataRefreshMaxBackoff;
+	}
+
+	public void setMetaDataRefreshMaxBackoff(int metaDataRefreshMaxBackoff) {
+		this.metaDataRefreshMaxBackoff = metaDataRefreshMaxBackoff;
+	}
+
+	/**
+	 * Maximum number of cached introspection results. 0 disables the introspection cache
+	 */
+	@Configurable
+	@FriendlyName("Introspection cache size")
+	@Default("0")
+	@Placement(tab="Performance", group="Introspection Cache", order = 0)
+	private int introspectionCacheSize;
+
+	public int getIntrospectionCacheSize() {
+		return introspectionCacheSize;
+	}
+
+	public void setIntrospectionCacheSize(int introspectionCacheSize) {
+		this.introspectionCacheSize = introspectionCacheSize;
+	}
+
+	/**
+	 * Maximum time in seconds an active introspection result is cached. Results are never cached beyond the
+	 * expiration time of the token
+	 */
+	@Configurable
+	@FriendlyName("Introspection cache time to live (seconds)")
+	@Default("60")
+	@Placement(tab="Performance", group="Introspection Cache", order = 1)
+	private int introspectionCacheTtl;
+
+	public int getIntrospectionCacheTtl() {
+		return introspectionCacheTtl;
+	}
+
+	public void setIntrospectionCacheTtl(int introspectionCacheTtl) {
+		this.introspectionCacheTtl = introspectionCacheTtl;
+	}
+
+	/**
+	 * Time in seconds an inactive introspection result is cached. 0 disables caching of inactive results
+	 */
+	@Configurable
+	@FriendlyName("Introspection cache negative time to live (seconds)")
+	@Default("5")
+	@Placement(tab="Performance", group="Introspection Cache", order = 2)
+	private int introspectionCacheNegativeTtl;
+
+	public int getIntrospectionCacheNegativeTtl() {
+		return introspectionCacheNegativeTtl;
+	}
+
+	public void setIntrospectionCacheNegativeTtl(int introspectionCacheNegativeTtl) {
+		this.introspectionCacheNegativeTtl = introspectionCacheNegativeTtl;
+	}
+
+	/**
+	 * Enables hit, miss and eviction counters of the introspection cache
+	 */
+	@Configurable
+	@FriendlyName("Introspection cache statistics")
+	@Default("false")
+	@Placement(tab="Performance", group="Introspection Cache", order = 3)
+	private boolean introspectionCacheStatistics;
+
+	public boolean isIntrospectionCacheStatistics() {
+		return introspectionCacheStatistics;
+	}
+
+	public void setIntrospectionCacheStatistics(boolean introspectionCacheStatistics) {
+		this.introspectionCacheStatistics = introspectionCacheStatistics;
+	}
+
+	/**
+	 * Maximum number of relying party sessions held in memory in front of the token cookie store. 0 disables the
+	 * session cache
+	 */
+	@Configurable
+	@FriendlyName("Session cache size")
+	@Default("0")
+	@Placement(tab="Performance", group="Session Cache", order = 0)
+	private int sessionCacheSize;
+
+	public int getSessionCacheSize() {
+		return sessionCacheSize;
+	}
+
+	public void setSessionCacheSize(int sessionCacheSize) {
+		this.sessionCacheSize = sessionCacheSize;
+	}
+
+	/**
+	 * Maximum time in seconds a session is held in memory. Sessions are never held beyond the expiration time of
+	 * their access token. Sessions removed on another node of a cluster or expired and evicted from the token store
+	 * stay visible on this node for at most this time
+	 */
+	@Configurable
+	@FriendlyName("Session cache time to live (seconds)")
+	@Default("60")
+	@Placement(tab="Performance", group="Session Cache", order = 1)
+	private int sessionCacheTtl;
+
+	public int getSessionCacheTtl() {
+		return sessionCacheTtl;
+	}
+
+	public void setSessionCacheTtl(int sessionCacheTtl) {
+		this.sessionCacheTtl = sessionCacheTtl;
+	}
+
+	/**
+	 * Enables hit, miss and eviction counters of the session cache
+	 */
+	@Configurable
+	@FriendlyName("Session cache statistics")
+	@Default("false")
+	@Placement(tab="Performance", group="Session Cache", order = 2)
+	private boolean sessionCacheStatistics;
+
+	public boolean isSessionCacheStatistics() {
+		return sessionCacheStatistics;
+	}
+
+	public void setSessionCacheStatistics(boolean sessionCacheStatistics) {
+		this.sessionCacheStatistics = sessionCacheStatistics;
+	}
+
+	/**
+	 * Timeout in milliseconds for connecting to the identity provider. Also the maximum time a request waits for a
+	 * free connection. 0 waits infinitely
+	 */
+	@Configurable
+	@FriendlyName("HTTP connect timeout (milliseconds)")
+	@Default("5000")
+	@Placement(tab="Performance", group="HTTP Client", order = 0)
+	private int httpConnectTimeout;
+
+	public int getHttpConnectTimeout() {
+		return httpConnectTimeout;
+	}
+
+	public void setHttpConnectTimeout(int httpConnectTimeout) {
+		this.httpConnectTimeout = httpConnectTimeout;
+	}
+
+	/**
+	 * Timeout in milliseconds for reading a response of the identity provider. 0 waits infinitely
+	 */
+	@Configurable
+	@FriendlyName("HTTP read timeout (milliseconds)")
+	@Default("10000")
+	@Placement(tab="Performance", group="HTTP Client", order = 1)
+	private int httpReadTimeout;
+
+	public int getHttpReadTimeout() {
+		return httpReadTimeout;
+	}
+
+	public void setHttpReadTimeout(int httpReadTimeout) {
+		this.httpReadTimeout = httpReadTimeout;
+	}
+
+	/**
+	 * Maximum number of concurrent connections to one identity provider host. This is a concurrency limit, not a
+	 * connection pool. Idle connections are kept alive by the JVM, at most as many per host as the JVM wide system
+	 * property http.maxConnections allows (default 5). 0 uses exactly that number. To allow more connections, set
+	 * the system property at startup, e.g. -Dhttp.maxConnections=20, so all connections are reused
+	 */
+	@Configurable
+	@FriendlyName("HTTP maximum connections per host")
+	@Default("0")
+	@Placement(tab="Performance", group="HTTP Client", order = 2)
+	private int httpMaxConnectionsPerRoute;
+
+	public int getHttpMaxConnectionsPerRoute() {
+		return httpMaxConnectionsPerRoute;
+	}
+
+	public void setHttpMaxConnectionsPerRoute(int httpMaxConnectionsPerRoute) {
+		this.httpMaxConnectionsPerRoute = httpMaxConnectionsPerRoute;
+	}
+
+	/**
+	 * Maximum number of introspection requests which are in flight at the same time. Further introspections fail
+	 * immediately instead of piling up requests to a slow identity provider. 0 doesn't limit them
+	 */
+	@Configurable
+	@FriendlyName("Introspection maximum outstanding requests")
+	@Default("0")
+	@Placement(tab="Performance", group="Introspection Limit", order = 0)
+	private int introspectionMaxOutstanding;
+
+	public int getIntrospectionMaxOutstanding() {
+		return introspectionMaxOutstanding;
+	}
+
+	public void setIntrospectionMaxOutstanding(int introspectionMaxOutstanding) {
+		this.introspectionMaxOutstanding = introspectionMaxOutstanding;
+	}
+
+	/**
+	 * Maximum number of tokens whose last introspection time is remembered by the hybrid token validation. The cache
+	 * is created with the first hybrid token validation. 0 disables the hybrid token validation, it rejects all
+	 * tokens then
+	 */
+	@Configurable
+	@FriendlyName("Hybrid validation cache size")
+	@Default("10000")
+	@Placement(tab="Performance", group="Hybrid Validation", order = 0)
+	private int hybridValidationCacheSize;
+
+	public int getHybridValidationCacheSize() {
+		return hybridValidationCacheSize;
+	}
+
+	public void setHybridValidationCacheSize(int hybridValidationCacheSize) {
+		this.hybridValidationCacheSize = hybridValidationCacheSize;
+	}
+
+	/**
+	 * Number of introspection requests in the sliding window of the circuit breaker. 0 disables the circuit
+	 * breaker
+	 */
+	@Configurable
+	@FriendlyName("Circuit breaker window size")
+	@Default("0")
+	@Placement(tab="Performance", group="Circuit Breaker", order = 0)
+	private int circuitBreakerWindowSize;
+
+	public int getCircuitBreakerWindowSize() {
+		return circuitBreakerWindowSize;
+	}
+
+	public void setCircuitBreakerWindowSize(int circuitBreakerWindowSize) {
+		this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+	}
+
+	/**
+	 * Failure rate in percent of a full window at which the circuit opens
+	 */
+	@Configurable
+	@FriendlyName("Circuit breaker failure rate threshold (%)")
+	@Default("50")
+	@Placement(tab="Performance", group="Circuit Breaker", order = 1)
+	private int circuitBreakerFailureRateThreshold;
+
+	public int getCircuitBreakerFailureRateThreshold() {
+		return circuitBreakerFailureRateThreshold;
+	}
+
+	public void setCircuitBreakerFailureRateThreshold(int circuitBreakerFailureRateThreshold) {
+		this.circuitBreakerFailureRateThreshold = circuitBreakerFailureRateThreshold;
+	}
+
+	/**
+	 * Duration in milliseconds from which on an introspection request counts as failure. 0 disables it
+	 */
+	@Configurable
+	@FriendlyName("Circuit breaker slow call threshold (milliseconds)")
+	@Default("2000")
+	@Placement(tab="Performance", group="Circuit Breaker", order = 2)
+	private int circuitBreakerSlowCallThreshold;
+
+	public int getCircuitBreakerSlowCallThreshold() {
+		return circuitBreakerSlowCallThreshold;
+	}
+
+	public void setCircuitBreakerSlowCallThreshold(int circuitBreakerSlowCallThreshold) {
+		this.circuitBreakerSlowCallThreshold = circuitBreakerSlowCallThreshold;
+	}
+
+	/**
+	 * Time in seconds the circuit stays open before probe requests are sent to the identity provider
+	 */
+	@Configurable
+	@FriendlyName("Circuit breaker open duration (seconds)")
+	@Default("30")
+	@Placement(tab="Performance", group="Circuit Breaker", order = 3)
+	private int circuitBreakerOpenDuration;
+
+	public int getCircuitBreakerOpenDuration() {
+		return circuitBreakerOpenDuration;
+	}
+
+	public void setCircuitBreakerOpenDuration(int circuitBreakerOpenDuration) {
+		this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+	}
+
+	/**
+	 * Number of successful probe requests needed to close the circuit again
+	 */
+	@Configurable
+	@FriendlyName("Circuit breaker half open probes")
+	@Default("3")
+	@Placement(tab="Performance", group="Circuit Breaker", order = 4)
+	private int circuitBreakerHalfOpenProbes;
+
+	public int getCircuitBreakerHalfOpenProbes() {
+		return circuitBreakerHalfOpenProbes;
+	}
+
+	public void setCircuitBreakerHalfOpenProbes(int circuitBreakerHalfOpenProbes) {
+		this.circuitBreakerHalfOpenProbes = circuitBreakerHalfOpenProbes;
+	}
+
+	/**
+	 * Validates JWT access tokens locally while the circuit is open
+	 */
+	@Configurable
+	@FriendlyName("Circuit breaker local fallback")
+	@Default("false")
+	@Placement(tab="Performance", group="Circuit Breaker", order = 5)
+	private boolean circuitBreakerLocalFallback;
+
+	public boolean isCircuitBreakerLocalFallback() {
+		return circuitBreakerLocalFallback;
+	}
+
+	public void setCircuitBreakerLocalFallback(boolean circuitBreakerLocalFallback) {
+		this.circuitBreakerLocalFallback = circuitBreakerLocalFallback;
+	}
+
+	/**
+	 * File in which the last good discovery metadata and JWK set are persisted. On start the connector validates
+	 * tokens with the persisted snapshot right away and revalidates it in the background. Only used with config
+	 * discovery
+	 */
+	@Configurable
+	@Optional
+	@FriendlyName("Metadata snapshot file")
+	@Placement(tab="Performance", group="Metadata Refresh", order = 3)
+	private String metaDataSnapshotFile;
+
+	public String getMetaDataSnapshotFile() {
+		return metaDataSnapshotFile;
+	}
+
+	public void setMetaDataSnapshotFile(String metaDataSnapshotFile) {
+		this.metaDataSnapshotFile = metaDataSnapshotFile;
+	}
+
+	/**
+	 * Maximum age in seconds of a persisted metadata snapshot which is restored on start. Older snapshots are
+	 * ignored, so keys which were rotated while the connector was down are never trusted. 0 accepts any age
+	 */
+	@Configurable
+	@FriendlyName("Metadata snapshot maximum age (seconds)")
+	@Default("86400")
+	@Placement(tab="Performance", group="Metadata Refresh", order = 4)
+	private int metaDataSnapshotMaxAge;
+
+	public int getMetaDataSnapshotMaxAge() {
+		return metaDataSnapshotMaxAge;
+	}
+
+	public void setMetaDataSnapshotMaxAge(int metaDataSnapshotMaxAge) {
+		this.metaDataSnapshotMaxAge = metaDataSnapshotMaxAge;
+	}
+
+	/**
+	 * Comma separated issuers (iss claim) whose tokens are accepted by multiIssuerTokenValidation, e.g. the URLs of
+	 * several Keycloak realms. The metadata of every issuer is obtained with config discovery, so config discovery
+	 * has to be enabled. The connector doesn't start otherwise
+	 */
+	@Configurable
+	@Optional
+	@FriendlyName("Trusted issuers")
+	@Placement(tab="Multi Issuer", group="Issuers", order = 0)
+	private String trustedIssuers;
+
+	public String getTrustedIssuers() {
+		return trustedIssuers;
+	}
+
+	public void setTrustedIssuers(String trustedIssuers) {
+		this.trustedIssuers = trustedIssuers;
+	}
+
+	/**
+	 * Maximum number of issuers whose metadata and keys are held at the same time
+	 */
+	@Configurable
+	@FriendlyName("Maximum loaded issuers")
+	@Default("100")
+	@Placement(tab="Multi Issuer", group="Issuers", order = 1)
+	private int maxLoadedIssuers;
+
+	public int getMaxLoadedIssuers() {
+		return maxLoadedIssuers;
+	}
+
+	public void setMaxLoadedIssuers(int maxLoadedIssuers) {
+		this.maxLoadedIssuers = maxLoadedIssuers;
+	}
+
+	/**
+	 * Time without tokens after which the metadata and keys of an issuer are evicted
+	 */
+	@Configurable
+	@FriendlyName("Issuer idle timeout (seconds)")
+	@Default("3600")
+	@Placement(tab="Multi Issuer", group="Issuers", order = 2)
+	private int issuerIdleTimeout;
+
+	public int getIssuerIdleTimeout() {
+		return issuerIdleTimeout;
+	}
+
+	public void setIssuerIdleTimeout(int issuerIdleTimeout) {
+		this.issuerIdleTimeout = issuerIdleTimeout;
+	}
+
+	/**
+	 * Comma separated list of base64 encoded 256 bit AES keys. If set, the relying party keeps the token set in an
+	 * encrypted cookie instead of the token cookie store. The first key encrypts new cookies, all keys are accepted
+	 * for decryption, so new keys have to be prepended and old keys are removed once their cookies are expired
+	 */
+	@Configurable
+	@Optional
+	@Password
+	@FriendlyName("Session cookie keys")
+	@Placement(tab="Relying Party", group="Stateless Sessions", order = 0)
+	private String sessionCookieKeys;
+
+	public String getSessionCookieKeys() {
+		return sessionCookieKeys;
+	}
+
+	public void setSessionCookieKeys(String sessionCookieKeys) {
+		this.sessionCookieKeys = sessionCookieKeys;
+	}
+
+	/**
+	 * Time in seconds after which an encrypted session cookie is not accepted anymore, counted from the last login or
+	 * refresh. Limits how long a copied cookie can be replayed
+	 */
+	@Configurable
+	@FriendlyName("Session cookie maximum age (seconds)")
+	@Default("86400")
+	@Placement(tab="Relying Party", group="Stateless Sessions", order = 1)
+	private int sessionCookieMaxAge;
+
+	public int getSessionCookieMaxAge() {
+		return sessionCookieMaxAge;
+	}
+
+	public void setSessionCookieMaxAge(int sessionCookieMaxAge) {
+		this.sessionCookieMaxAge = sessionCookieMaxAge;
+	}
+
+	/**
+	 * Time in seconds before the expiration of the access token at which the token set of a stored relying party
+	 * session is refreshed in background. 0 refreshes only on demand. Has no effect with stateless sessions
+	 */
+	@Configurable
+	@FriendlyName("Refresh ahead margin (seconds)")
+	@Default("0")
+	@Placement(tab="Relying Party", group="Refresh Ahead", order = 0)
+	private int refreshAheadMargin;
+
+	public int getRefreshAheadMargin() {
+		return refreshAheadMargin;
+	}
+
+	public void setRefreshAheadMargin(int refreshAheadMargin) {
+		this.refreshAheadMargin = refreshAheadMargin;
+	}
+
+	/**
+	 * Maximum number of sessions scheduled for refresh ahead of expiration. Further sessions are refreshed on demand
+	 */
+	@Configurable
+	@FriendlyName("Refresh ahead maximum sessions")
+	@Default("10000")
+	@Placement(tab="Relying Party", group="Refresh Ahead", order = 1)
+	private int refreshAheadMaxSessions;
+
+	public int getRefreshAheadMaxSessions() {
+		return refreshAheadMaxSessions;
+	}
+
+	public void setRefreshAheadMaxSessions(int refreshAheadMaxSessions) {
+		this.refreshAheadMaxSessions = refreshAheadMaxSessions;
+	}
+
+	/**
+	 * Time in seconds after which a stored relying party session expires, counted from the last login or refresh. 0
+	 * keeps sessions until logout. With refresh ahead of expiration, sessions without request for this time are not
+	 * refreshed in background anymore, so an unused session expires at most two times this time after its last
+	 * request. Sessions expired or evicted from the store stay visible in the session cache for at most the session
+	 * cache time to live. At most 2147483 seconds (about 24 days)
+	 */
+	@Configurable
+	@FriendlyName("Token store time to live (seconds)")
+	@Default("0")
+	@Placement(tab="Relying Party", group="Session Stores", order = 0)
+	private int tokenStoreTtl;
+
+	public int getTokenStoreTtl() {
+		return tokenStoreTtl;
+	}
+
+	public void setTokenStoreTtl(int tokenStoreTtl) {
+		this.tokenStoreTtl = tokenStoreTtl;
+	}
+
+	/**
+	 * Maximum number of stored relying party sessions. The oldest sessions are evicted first. 0 for no limit.
+	 * Evicted sessions stay visible in the session cache for at most the session cache time to live
+	 */
+	@Configurable
+	@FriendlyName("Token store maximum entries")
+	@Default("0")
+	@Placement(tab="Relying Party", group="Session Stores", order = 1)
+	private int tokenStoreMaxEntries;
+
+	public int getTokenStoreMaxEntries() {
+		return tokenStoreMaxEntries;
+	}
+
+	public void setTokenStoreMaxEntries(int tokenStoreMaxEntries) {
+		this.tokenStoreMaxEntries = tokenStoreMaxEntries;
+	}
+
+	/**
+	 * Time in seconds after which the state of an unfinished login expires. 0 keeps it until the login is finished.
+	 * Without time to live and maximum entries the default object store is used. At most 2147483 seconds (about 24
+	 * days)
+	 */
+	@Configurable
+	@FriendlyName("Redirect store time to live (seconds)")
+	@Default("0")
+	@Placement(tab="Relying Party", group="Session Stores", order = 2)
+	private int redirectStoreTtl;
+
+	public int getRedirectStoreTtl() {
+		return redirectStoreTtl;
+	}
+
+	public void setRedirectStoreTtl(int redirectStoreTtl) {
+		this.redirectStoreTtl = redirectStoreTtl;
+	}
+
+	/**
+	 * Maximum number of stored unfinished logins. The oldest logins are evicted first. 0 for no limit
+	 */
+	@Configurable
+	@FriendlyName("Redirect store maximum entries")
+	@Default("0")
+	@Placement(tab="Relying Party", group="Session Stores", order = 3)
+	private int redirectStoreMaxEntries;
+
+	public int getRedirectStoreMaxEntries() {
+		return redirectStoreMaxEntries;
+	}
+
+	public void setRedirectStoreMaxEntries(int redirectStoreMaxEntries) {
+		this.redirectStoreMaxEntries = redirectStoreMaxEntries;
+	}
+
+	/**
+	 * Interval in seconds in which expired and exceeding entries are removed from the session stores. At most 2147483
+	 * seconds (about 24 days)
+	 */
+	@Configurable
+	@FriendlyName("Store expiration interval (seconds)")
+	@Default("60")
+	@Placement(tab="Relying Party", group="Session Stores", order = 4)
+	private int storeExpirationInterval;
+
+	public int getStoreExpirationInterval() {
+		return storeExpirationInterval;
+	}
+
+	public void setStoreExpirationInterval(int storeExpirationInterval) {
+		this.storeExpirationInterval = storeExpirationInterval;
+	}
 }
\ No newline at end of file
@@ -24,16 +24,13 @@ import com.nimbusds.openid.connect.sdk.SubjectType;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
+import org.mule.modules.openidconnect.client.HttpTransport;
+import org.mule.modules.openidconnect.client.JsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Invocation;
-import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.security.KeyFactory;
@@ -43,7 +40,11 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class is responsible to build and provide meta data of an OpenID Connect
@@ -57,29 +58,49 @@ import java.util.List;
  */
 public class MetaDataBuilder {
 	
-	private Client client;
+	private HttpTransport httpTransport;
 	private URI providerUri;
+	private final ConcurrentMap<URI, CachedDocument> documents = new ConcurrentHashMap<>();
+	private volatile URI currentMetadataUri;
+	private volatile URI currentJwkSetUri;
 
     private static final Logger logger = LoggerFactory.getLogger(MetaDataBuilder.class);
 
 
     public MetaDataBuilder(URI providerUri) {
+		this(providerUri, new HttpTransport());
+	}
+
+    public MetaDataBuilder(URI providerUri, HttpTransport httpTransport) {
 		this.providerUri = providerUri;
-		client = ClientBuilder.newClient();
+		this.httpTransport = httpTransport;
 	}
 
 
     /**
-     * Obtains the IdP configuration as JSON String via requestJsonString() to build and return the IdP-metadata
+     * Obtains the IdP configuration as JSON String via requestJsonDocument() to build and return the IdP-metadata.
+     * If the IdP answers the conditional request with 304, the metadata parsed before is returned
      *
      * @param configurationEndpoint Endpoint at the IdP to obtain configuration data
      * @return the IdP-metadata
      * @throws ParseException Thrown if the JSON from the response can not be parsed
+     * @throws IOException Thrown if the configuration can not be requested
      */
-	public OIDCProviderMetadata provideMetadataFromServer(String configurationEndpoint) throws ParseException {
+	public OIDCProviderMetadata provideMetadataFromServer(String configurationEndpoint) throws
+            ParseException, IOException {
         URI metadataURI = uriBuilder(providerUri, configurationEndpoint);
+        currentMetadataUri = replaceDocumentUri(currentMetadataUri, metadataURI);
         logger.debug("Sending HTTP request to retrieve metadata from identity provider");
-        return OIDCProviderMetadata.parse(requestJsonString(metadataURI));
+        CachedDocument cached = documents.get(metadataURI);
+        JsonDocument document = requestJsonDocument(metadataURI, cached != null ? cached.document : null);
+        if (document.isNotModified()) {
+            logger.debug("Metadata of identity provider not modified");
+            documents.put(metadataURI, new CachedDocument(document, cached.parsed));
+            return (OIDCProviderMetadata) cached.parsed;
+        }
+        OIDCProviderMetadata metadata = OIDCProviderMetadata.parse(document.getContent());
+        documents.put(metadataURI, new CachedDocument(document, metadata));
+        return metadata;
 	}
 
     /**
@@ -105,31 +126,59 @@ public class MetaDataBuilder {
 	}
 
     /**
-     * Parses a JSON string obtained from requestJsonString() to obtain the JSON Web Key configuration from the IdP
-     * and returns the RSAPublicKey
+     * Parses a JSON string obtained from requestJsonDocument() to obtain the JSON Web Key configuration from the IdP
+     * and returns all RSA public keys used for signatures, indexed by their key ID. If the IdP answers the
+     * conditional request with 304, the keys parsed before are returned
      *
      * @param providerMetadata IdP metadata
-     * @return The RSAPublicKey of the IdP
+     * @return The RSA public keys of the IdP
      * @throws ParseException
      * @throws JOSEException
      * @throws java.text.ParseException
+     * @throws IOException
      */
-	public RSAPublicKey providePublicKeyFromJwkSet(OIDCProviderMetadata providerMetadata) throws
-            ParseException, JOSEException, java.text.ParseException {
+	public PublicKeySet providePublicKeysFromJwkSet(OIDCProviderMetadata providerMetadata) throws
+            ParseException, JOSEException, java.text.ParseException, IOException {
 		URI jwkSetUri = providerMetadata.getJWKSetURI();
+        currentJwkSetUri = replaceDocumentUri(currentJwkSetUri, jwkSetUri);
         logger.debug("Sending HTTP request to retrieve JWK set from identity provider");
-        String metaDataResponse = requestJsonString(jwkSetUri);
-        JSONObject json = JSONObjectUtils.parse(metaDataResponse);
-        RSAPublicKey publicKey = null;
+        CachedDocument cached = documents.get(jwkSetUri);
+        JsonDocument document = requestJsonDocument(jwkSetUri, cached != null ? cached.document : null);
+        if (document.isNotModified()) {
+            logger.debug("JWK set of identity provider not modified");
+            documents.put(jwkSetUri, new CachedDocument(document, cached.parsed));
+            return (PublicKeySet) cached.parsed;
+        }
+        PublicKeySet publicKeys = parsePublicKeys(JSONObjectUtils.parse(document.getContent()));
+        documents.put(jwkSetUri, new CachedDocument(document, publicKeys));
+        return publicKeys;
+	}
+
+    /**
+     * Extracts the RSA public keys used for signatures from a JWK set, indexed by their key ID
+     *
+     * @param json The JWK set as JSON object
+     * @return The RSA public keys of the JWK set
+     * @throws JOSEException
+     * @throws java.text.ParseException
+     */
+	public static PublicKeySet parsePublicKeys(JSONObject json) throws JOSEException, java.text.ParseException {
+        Map<String, RSAPublicKey> keysById = new LinkedHashMap<>();
+        List<RSAPublicKey> keysWithoutId = new ArrayList<>();
         JSONArray keyList = (JSONArray) json.get("keys");
 
         for (Object key : keyList) {
             JSONObject k = (JSONObject) key;
-            if (k.get("use").equals("sig") && k.get("kty").equals("RSA")) {
-                publicKey = RSAKey.parse(k).toRSAPublicKey();
+            if ("RSA".equals(k.get("kty")) && (k.get("use") == null || "sig".equals(k.get("use")))) {
+                RSAKey rsaKey = RSAKey.parse(k);
+                if (rsaKey.getKeyID() != null) {
+                    keysById.put(rsaKey.getKeyID(), rsaKey.toRSAPublicKey());
+                } else {
+                    keysWithoutId.add(rsaKey.toRSAPublicKey());
+                }
             }
         }
-        return publicKey;
+        return new PublicKeySet(keysById, keysWithoutId);
 	}
 
     /**
@@ -163,15 +212,54 @@ public class MetaDataBuilder {
 	}
 
     /**
-     * Requests JSON from given endpoint via HTTP and returns it as string
+     * Requests JSON from given endpoint via the shared HTTP transport, conditionally if a previous document is given
      *
      * @param uri Endpoint to obtain JSON from
-     * @return JSON content as string
+     * @param previous The document fetched before or null
+     * @return The fetched or revalidated document
+     * @throws IOException if the request fails
+     */
+	public JsonDocument requestJsonDocument(URI uri, JsonDocument previous) throws IOException {
+		return httpTransport.requestJsonDocument(uri, previous);
+	}
+
+    /**
+     * Earliest point in time at which the current metadata or JWK set document becomes stale according to its HTTP
+     * caching headers. A document which is stale immediately (no-cache) expires at the time it was fetched
+     *
+     * @return Epoch millis or 0 if no current document declared its freshness
      */
-	public String requestJsonString(URI uri) {
-		WebTarget webTarget = client.target(uri);
-        Invocation.Builder invocationBuilder = webTarget.request(MediaType.APPLICATION_JSON_TYPE);
-        Response response = invocationBuilder.get();
-        return response.readEntity(String.class);
+	public long getExpiresAt() {
+		long metadataExpiresAt = documentExpiresAt(currentMetadataUri);
+		long jwkSetExpiresAt = documentExpiresAt(currentJwkSetUri);
+		if (metadataExpiresAt <= 0) return jwkSetExpiresAt;
+		if (jwkSetExpiresAt <= 0) return metadataExpiresAt;
+		return Math.min(metadataExpiresAt, jwkSetExpiresAt);
+	}
+
+    /**
+     * Forgets the cached document of the previous URI if the URI changed, e.g. if the metadata points to a new JWK
+     * set endpoint, so the old document neither grows the cache nor determines the freshness anymore
+     *
+     * @return The current URI
+     */
+	private URI replaceDocumentUri(URI previous, URI current) {
+		if (previous != null && !previous.equals(current)) documents.remove(previous);
+		return current;
+	}
+
+	private long documentExpiresAt(URI uri) {
+		CachedDocument cached = uri != null ? documents.get(uri) : null;
+		return cached != null ? cached.document.getExpiresAt() : 0;
+	}
+
+	private static final class CachedDocument {
+		private final JsonDocument document;
+		private final Object parsed;
+
+		private CachedDocument(JsonDocument document, Object parsed) {
+			this.document = document;
+			this.parsed = parsed;
+		}
 	}
 }
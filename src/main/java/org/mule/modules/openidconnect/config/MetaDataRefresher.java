@@ -0,0 +1,154 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.config;
+
+import org.mule.modules.openidconnect.exception.MetaDataInitializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the identity provider metadata and keys of a SingleSignOnConfig periodically in a background thread, so
+ * request threads never have to wait for HTTP calls to the identity provider. Every run is delayed by a random jitter
+ * to spread the requests of many nodes. Failed runs are retried with exponential backoff. Other background tasks
+ * like key refreshes can be executed on the same thread.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class MetaDataRefresher implements Executor {
+
+    static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long MIN_REFRESH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final SingleSignOnConfig ssoConfig;
+    private final long periodMillis;
+    private final long jitterMillis;
+    private final long maxBackoffMillis;
+    private ScheduledExecutorService executor;
+    private volatile int consecutiveFailures;
+
+    private static final Logger logger = LoggerFactory.getLogger(MetaDataRefresher.class);
+
+    /**
+     * @param ssoConfig Config whose metadata is refreshed
+     * @param periodMillis Time between two successful refreshes
+     * @param jitterMillis Maximum random delay added to every run
+     * @param maxBackoffMillis Maximum delay between retries of failed refreshes
+     */
+    public MetaDataRefresher(SingleSignOnConfig ssoConfig, long periodMillis, long jitterMillis,
+                             long maxBackoffMillis) {
+        this.ssoConfig = ssoConfig;
+        this.periodMillis = periodMillis;
+        this.jitterMillis = jitterMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Starts the background thread. The first run is scheduled after one period if the metadata is already
+     * initialized, otherwise immediately. Metadata restored from a snapshot file is revalidated immediately as well
+     */
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "oidc-metadata-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schedule(ssoConfig.isInitialized() && !ssoConfig.isRevalidationPending() ? nextDelay() : 0);
+    }
+
+    /**
+     * Stops the background thread. Running refreshes are not interrupted
+     */
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdown();
+        executor = null;
+    }
+
+    /**
+     * Executes the given task on the refresher thread. Tasks submitted after stop() are dropped
+     *
+     * @param task Background task
+     */
+    @Override
+    public synchronized void execute(Runnable task) {
+        if (executor != null) executor.execute(task);
+    }
+
+    /**
+     * Delay until the next run. If the identity provider declared how long its metadata and keys are fresh
+     * (Cache-Control max-age or Expires), the next run is scheduled when they become stale, but never later than
+     * one period, otherwise after one period. Documents which are stale immediately (no-cache) are revalidated
+     * after the minimum delay of 30 seconds, never more often. After failures the delay grows exponentially up to
+     * the maximum backoff
+     *
+     * @return The delay in milliseconds
+     */
+    long nextDelay() {
+        long delay = consecutiveFailures > 0 ? backoff(consecutiveFailures, maxBackoffMillis) : refreshDelay();
+        return delay + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0);
+    }
+
+    /**
+     * Exponential backoff after failures, starting with five seconds
+     *
+     * @param consecutiveFailures Number of failures in a row, at least one
+     * @param maxBackoffMillis Maximum delay
+     * @return The delay in milliseconds
+     */
+    static long backoff(int consecutiveFailures, long maxBackoffMillis) {
+        int exponent = Math.min(consecutiveFailures - 1, 30);
+        return Math.min(maxBackoffMillis, INITIAL_BACKOFF_MILLIS << exponent);
+    }
+
+    private long refreshDelay() {
+        MetaDataSnapshot snapshot = ssoConfig.getSnapshot();
+        if (snapshot == null || snapshot.getExpiresAt() <= 0) return periodMillis;
+        return Math.min(periodMillis,
+                Math.max(MIN_REFRESH_DELAY_MILLIS, snapshot.getExpiresAt() - System.currentTimeMillis()));
+    }
+
+    private void refresh() {
+        try {
+            logger.debug("Refreshing identity provider metadata in background");
+            ssoConfig.buildProviderMetadata();
+            consecutiveFailures = 0;
+        } catch (MetaDataInitializationException e) {
+            consecutiveFailures++;
+            logger.error("Background refresh of identity provider metadata failed {} time(s). Reason: {}",
+                    consecutiveFailures, e.getMessage());
+        } catch (RuntimeException e) {
+            consecutiveFailures++;
+            logger.error("Unexpected error during background refresh of identity provider metadata", e);
+        }
+        schedule(nextDelay());
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (executor != null) executor.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.config;
+
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+
+/**
+ * Immutable snapshot of the identity provider metadata and the public keys which belong to it. A snapshot is always
+ * published as a whole, so readers never see metadata and keys of different fetches.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public final class MetaDataSnapshot {
+
+    private final OIDCProviderMetadata providerMetadata;
+    private final PublicKeySet publicKeys;
+    private final long fetchedAt;
+    private final long expiresAt;
+
+    public MetaDataSnapshot(OIDCProviderMetadata providerMetadata, PublicKeySet publicKeys, long fetchedAt) {
+        this(providerMetadata, publicKeys, fetchedAt, 0);
+    }
+
+    /**
+     * @param providerMetadata The identity provider metadata
+     * @param publicKeys The public keys of the identity provider
+     * @param fetchedAt Point in time (epoch millis) at which the snapshot was fetched
+     * @param expiresAt Point in time (epoch millis) until which the identity provider declared the snapshot fresh,
+     *                  0 if unknown
+     */
+    public MetaDataSnapshot(OIDCProviderMetadata providerMetadata, PublicKeySet publicKeys, long fetchedAt,
+                            long expiresAt) {
+        this.providerMetadata = providerMetadata;
+        this.publicKeys = publicKeys;
+        this.fetchedAt = fetchedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param refreshedKeys The refreshed public keys
+     * @return A new snapshot with the metadata of this one and the given keys
+     */
+    public MetaDataSnapshot withPublicKeys(PublicKeySet refreshedKeys) {
+        return new MetaDataSnapshot(providerMetadata, refreshedKeys, System.currentTimeMillis(), expiresAt);
+    }
+
+    public OIDCProviderMetadata getProviderMetadata() {
+        return providerMetadata;
+    }
+
+    public PublicKeySet getPublicKeys() {
+        return publicKeys;
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.config;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.util.JSONObjectUtils;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the last good metadata snapshot, the provider metadata and the JWK set, in a local file. The first line
+ * of the file holds the SHA-256 checksum of the second line, which contains the snapshot as JSON. The file is
+ * replaced atomically, so a crash while saving never leaves a partial snapshot behind. Snapshots older than the
+ * maximum age are rejected on load, their keys may have been rotated in the meantime.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class MetaDataSnapshotStore {
+
+    private final Path file;
+    private final long maxAgeMillis;
+
+    /**
+     * @param file Location of the snapshot file
+     */
+    public MetaDataSnapshotStore(Path file) {
+        this(file, 0);
+    }
+
+    /**
+     * @param file Location of the snapshot file
+     * @param maxAgeMillis Maximum age of a loaded snapshot in milliseconds, 0 accepts snapshots of any age
+     */
+    public MetaDataSnapshotStore(Path file, long maxAgeMillis) {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Writes the given snapshot to the file, replacing the previous one
+     *
+     * @param snapshot The snapshot to persist
+     * @throws IOException if the file can't be written
+     */
+    public void save(MetaDataSnapshot snapshot) throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("fetched_at", snapshot.getFetchedAt());
+        json.put("metadata", snapshot.getProviderMetadata().toJSONObject());
+        json.put("jwks", toJwkSet(snapshot.getPublicKeys()));
+        String payload = json.toJSONString();
+        String content = checksum(payload) + "\n" + payload + "\n";
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tempFile, content.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Reads the snapshot from the file
+     *
+     * @return The persisted snapshot or null if there is no snapshot file
+     * @throws IOException if the file can't be read, its checksum doesn't match or the snapshot is too old
+     * @throws ParseException if the persisted metadata or keys can't be parsed
+     */
+    public MetaDataSnapshot load() throws IOException, ParseException {
+        String content;
+        try {
+            content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String[] lines = content.split("\n");
+        if (lines.length < 2 || !checksum(lines[1]).equals(lines[0])) {
+            throw new IOException("Checksum of metadata snapshot " + file + " doesn't match");
+        }
+        JSONObject json = JSONObjectUtils.parse(lines[1]);
+        long fetchedAt = JSONObjectUtils.getLong(json, "fetched_at");
+        if (maxAgeMillis > 0 && System.currentTimeMillis() - fetchedAt > maxAgeMillis) {
+            throw new IOException(String.format("Metadata snapshot %s is older than %d seconds", file,
+                    TimeUnit.MILLISECONDS.toSeconds(maxAgeMillis)));
+        }
+        try {
+            return new MetaDataSnapshot(
+                    OIDCProviderMetadata.parse(JSONObjectUtils.getJSONObject(json, "metadata")),
+                    MetaDataBuilder.parsePublicKeys(JSONObjectUtils.getJSONObject(json, "jwks")),
+                    fetchedAt
+            );
+        } catch (JOSEException | java.text.ParseException e) {
+            throw new ParseException("Invalid JWK set in metadata snapshot: " + e.getMessage(), e);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private static JSONObject toJwkSet(PublicKeySet publicKeys) {
+        JSONArray keys = new JSONArray();
+        for (Map.Entry<String, RSAPublicKey> key : publicKeys.getKeysById().entrySet()) {
+            keys.add(new RSAKey.Builder(key.getValue()).keyID(key.getKey()).keyUse(KeyUse.SIGNATURE).build()
+                    .toJSONObject());
+        }
+        for (RSAPublicKey key : publicKeys.getKeysWithoutId()) {
+            keys.add(new RSAKey.Builder(key).keyUse(KeyUse.SIGNATURE).build().toJSONObject());
+        }
+        JSONObject jwkSet = new JSONObject();
+        jwkSet.put("keys", keys);
+        return jwkSet;
+    }
+
+    private static String checksum(String payload) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(payload.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+}
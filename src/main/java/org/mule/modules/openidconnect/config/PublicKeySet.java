@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.config;
+
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of the RSA public keys of an identity provider. Keys with a key ID (kid) are indexed by it, keys
+ * without one are only available through getKeysWithoutId() and getKeys().
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public final class PublicKeySet {
+
+    private final Map<String, RSAPublicKey> keysById;
+    private final List<RSAPublicKey> keysWithoutId;
+    private final List<RSAPublicKey> keys;
+
+    public PublicKeySet(Map<String, RSAPublicKey> keysById, List<RSAPublicKey> keysWithoutId) {
+        this.keysById = Collections.unmodifiableMap(new LinkedHashMap<>(keysById));
+        this.keysWithoutId = Collections.unmodifiableList(new ArrayList<>(keysWithoutId));
+        List<RSAPublicKey> allKeys = new ArrayList<>(keysById.values());
+        allKeys.addAll(keysWithoutId);
+        this.keys = Collections.unmodifiableList(allKeys);
+    }
+
+    /**
+     * Creates a key set with one key without key ID, e.g. a manually configured public key
+     *
+     * @param publicKey The public key
+     * @return The key set
+     */
+    public static PublicKeySet of(RSAPublicKey publicKey) {
+        return new PublicKeySet(
+                Collections.<String, RSAPublicKey>emptyMap(), Collections.singletonList(publicKey)
+        );
+    }
+
+    /**
+     * @param keyId The key ID (kid)
+     * @return The key with the given key ID or null
+     */
+    public RSAPublicKey get(String keyId) {
+        return keysById.get(keyId);
+    }
+
+    public Map<String, RSAPublicKey> getKeysById() {
+        return keysById;
+    }
+
+    public List<RSAPublicKey> getKeysWithoutId() {
+        return keysWithoutId;
+    }
+
+    public List<RSAPublicKey> getKeys() {
+        return keys;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+}
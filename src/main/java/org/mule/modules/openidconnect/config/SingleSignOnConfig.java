@@ -15,17 +15,25 @@
  */
 package org.mule.modules.openidconnect.config;
 
-import com.nimbusds.jose.JOSEException;
-import com.nimbusds.oauth2.sdk.ParseException;
 import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import org.mule.modules.openidconnect.client.HttpTransport;
+import org.mule.modules.openidconnect.client.SingleFlight;
+import org.mule.modules.openidconnect.client.tokenvalidation.SignatureVerifierRegistry;
 import org.mule.modules.openidconnect.exception.MetaDataInitializationException;
+import org.mule.modules.openidconnect.exception.MetaDataUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.UriBuilder;
 import java.net.URI;
-import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This config extends the ConnectorConfig with several fields and parameters which
@@ -35,31 +43,60 @@ import java.security.interfaces.RSAPublicKey;
  *
  */
 public class SingleSignOnConfig {
-	private OIDCProviderMetadata providerMetadata;
-	private RSAPublicKey rsaPublicKey;
+	private final AtomicReference<MetaDataSnapshot> snapshot = new AtomicReference<>();
+	private final SingleFlight<String, MetaDataSnapshot> metaDataFlight = new SingleFlight<>();
+	private volatile MetaDataUnavailableException failure;
+	private volatile int consecutiveFailures;
+	private ScheduledExecutorService recoveryScheduler;
+	private MetaDataSnapshotStore snapshotStore;
+	private volatile boolean revalidationPending;
 	private ClientSecretBasic clientSecretBasic;
 	private String clientId;
 	private String clientSecret;
 	private URI redirectUri;
-	private URI introspectionUri;
 	private URI ssoUri;
-	private boolean isInitialized = false;
 	
 	private ConnectorConfig config;
 	
 	private MetaDataBuilder metaDataBuilder;
+	private final HttpTransport httpTransport;
+
+	private final SignatureVerifierRegistry verifierRegistry;
+	private Executor keyRefreshExecutor;
+
+	private static final String METADATA_FLIGHT_KEY = "metadata";
 
 	private static final Logger logger = LoggerFactory.getLogger(SingleSignOnConfig.class);
 
 
 	public SingleSignOnConfig(ConnectorConfig config) {
+		this(
+				config,
+				UriBuilder.fromUri(config.getSsoServerUrl())
+						.port(config.getSsoPort())
+						.path(config.getSsoIssuerEndpoint())
+						.build(),
+				new HttpTransport(
+						config.getHttpConnectTimeout(),
+						config.getHttpReadTimeout(),
+						config.getHttpMaxConnectionsPerRoute()
+				)
+		);
+	}
+
+	/**
+	 * @param config The connector config
+	 * @param ssoUri Issuer URI of the identity provider, e.g. the URI of one Keycloak realm
+	 * @param httpTransport Transport for all requests to the identity provider
+	 */
+	public SingleSignOnConfig(ConnectorConfig config, URI ssoUri, HttpTransport httpTransport) {
 		this.config = config;
-		UriBuilder builder = UriBuilder
-				.fromUri(config.getSsoServerUrl())
-				.port(config.getSsoPort())
-				.path(config.getSsoIssuerEndpoint());
-		this.ssoUri = builder.build();
-		this.metaDataBuilder = new MetaDataBuilder(ssoUri);
+		this.ssoUri = ssoUri;
+		this.httpTransport = httpTransport;
+		this.metaDataBuilder = new MetaDataBuilder(ssoUri, httpTransport);
+		this.verifierRegistry = new SignatureVerifierRegistry(
+				this::refreshPublicKeys, TimeUnit.SECONDS.toMillis(config.getJwkSetRefreshRateLimit())
+		);
 	}
 
 	/**
@@ -69,47 +106,276 @@ public class SingleSignOnConfig {
      * the information out of the ConnectorConfig.
      * If one of the exceptions occurs, the mule flow is intercepted because the
      * connector can not work correctly without the IdP meta data.
+     * Concurrent calls are coalesced, exactly one thread fetches the meta data and
+     * the others wait for its snapshot or fail with the same exception.
      *
-	 * @throws ParseException
-	 * @throws JOSEException
-	 * @throws java.text.ParseException
+	 * @throws MetaDataInitializationException if the meta data can't be built
      */
 	public void buildProviderMetadata() throws MetaDataInitializationException {
+		buildProviderMetadata(this::fetchProviderMetadata);
+	}
+
+	private MetaDataSnapshot buildProviderMetadata(Callable<MetaDataSnapshot> fetch)
+			throws MetaDataInitializationException {
+		try {
+			return metaDataFlight.execute(METADATA_FLIGHT_KEY, fetch);
+		} catch (MetaDataInitializationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new MetaDataInitializationException(
+					String.format("Error during metadata initialization. Reason: %s", e.getMessage())
+			);
+		}
+	}
+
+	/**
+	 * Publishes the snapshot persisted by a previous run, so local token validation works without waiting for the
+	 * identity provider. The restored snapshot is revalidated against the identity provider in the background, by
+	 * the recovery scheduler or the MetaDataRefresher. Nothing is restored if meta data was already published
+	 *
+	 * @return true if a snapshot was restored
+	 */
+	public boolean restoreSnapshot() {
+		if (snapshotStore == null) return false;
 		try {
+			MetaDataSnapshot restored = snapshotStore.load();
+			if (restored == null) return false;
+			revalidationPending = true;
+			if (!publishIfUnchanged(null, restored)) {
+				revalidationPending = false;
+				return false;
+			}
+			logger.info("Restored identity provider meta data fetched at {} from {}",
+					new Date(restored.getFetchedAt()), snapshotStore.getFile());
+			scheduleRecovery(0);
+			return true;
+		} catch (Exception e) {
+			logger.warn("Ignoring identity provider meta data snapshot {}. Reason: {}",
+					snapshotStore.getFile(), e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Makes sure the meta data is available. Returns the published snapshot without any locking, only the first
+	 * callers fetch the meta data, see buildProviderMetadata(). After a failed fetch the cached failure is thrown
+	 * immediately until the backoff has elapsed. With a recovery scheduler the retries happen in the background
+	 * only and requests never fetch the meta data again themselves
+	 *
+	 * @return The current meta data snapshot
+	 * @throws MetaDataUnavailableException during the backoff after a failed fetch
+	 * @throws MetaDataInitializationException if the meta data can't be built
+	 */
+	public MetaDataSnapshot initialize() throws MetaDataInitializationException {
+		MetaDataSnapshot current = publishedOrFailure();
+		if (current != null) return current;
+		// The flight of a concurrent caller may have completed since the check, so it is repeated inside the flight
+		return buildProviderMetadata(() -> {
+			MetaDataSnapshot published = publishedOrFailure();
+			return published != null ? published : fetchProviderMetadata();
+		});
+	}
+
+    /**
+     * @return The published snapshot or null if the meta data has to be fetched
+     * @throws MetaDataUnavailableException during the backoff after a failed fetch
+     */
+	private MetaDataSnapshot publishedOrFailure() throws MetaDataUnavailableException {
+		MetaDataSnapshot current = snapshot.get();
+		if (current != null) return current;
+		MetaDataUnavailableException cachedFailure = failure;
+		if (cachedFailure != null
+				&& (recoveryScheduler != null || System.currentTimeMillis() < cachedFailure.getRetryAt())) {
+			throw cachedFailure;
+		}
+		return null;
+	}
+
+	private MetaDataSnapshot fetchProviderMetadata() throws MetaDataInitializationException {
+		try {
+			OIDCProviderMetadata providerMetadata;
+			PublicKeySet publicKeys;
 			if(config.isConfigDiscovery()) {
                 providerMetadata = metaDataBuilder.provideMetadataFromServer(config.getConfigDiscoveryEndpoint());
-				rsaPublicKey = metaDataBuilder.providePublicKeyFromJwkSet(providerMetadata);
+				publicKeys = metaDataBuilder.providePublicKeysFromJwkSet(providerMetadata);
             } else {
 				providerMetadata = metaDataBuilder.provideMetadataManually(
 						config.getAuthEndpoint(), config.getTokenEndpoint(), config.getJwkSetEndpoint()
 				);
-				rsaPublicKey = metaDataBuilder.providePublicKeyFromString(config.getPublicKey());
+				publicKeys = PublicKeySet.of(metaDataBuilder.providePublicKeyFromString(config.getPublicKey()));
 			}
-
-            isInitialized = true;
+			MetaDataSnapshot previous = snapshot.get();
+			MetaDataSnapshot fetched = new MetaDataSnapshot(
+					providerMetadata, publicKeys, System.currentTimeMillis(), metaDataBuilder.getExpiresAt()
+			);
+			publish(fetched);
+			consecutiveFailures = 0;
+			failure = null;
+			revalidationPending = false;
+			if (previous == null || previous.getProviderMetadata() != providerMetadata
+					|| previous.getPublicKeys() != publicKeys) {
+				persist(fetched);
+			}
+			return fetched;
         } catch (Exception e) {
 			logger.debug("Error occurred while building identity provider meta data. Exception: {}, Message: {}",
 					e.getCause(), e.getMessage());
-			throw new MetaDataInitializationException(
-					String.format("Error during metadata initialization. Reason: %s", e.getMessage())
-            );
+			throw recordFailure(e.getMessage());
         }
     }
 
+    /**
+     * Remembers a failed fetch for an exponentially growing backoff and schedules the background retry. Only called
+     * by the thread which performs the fetch, see buildProviderMetadata()
+     *
+     * @param reason Message of the exception which caused the failure
+     * @return The failure which is thrown until the backoff has elapsed
+     */
+	private MetaDataUnavailableException recordFailure(String reason) {
+		consecutiveFailures++;
+		long backoffMillis = MetaDataRefresher.backoff(
+				consecutiveFailures, TimeUnit.SECONDS.toMillis(config.getMetaDataRefreshMaxBackoff())
+		);
+		MetaDataUnavailableException unavailable = new MetaDataUnavailableException(
+				String.format("Error during metadata initialization. Reason: %s", reason),
+				System.currentTimeMillis() + backoffMillis
+		);
+		failure = unavailable;
+		if (snapshot.get() == null || revalidationPending) {
+			scheduleRecovery(backoffMillis);
+		}
+		return unavailable;
+	}
+
+	private void scheduleRecovery(long delayMillis) {
+		if (recoveryScheduler == null) return;
+		try {
+			recoveryScheduler.schedule(this::recover, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			logger.debug("Recovery of identity provider meta data is stopped");
+		}
+	}
+
+	private void recover() {
+		if (snapshot.get() != null && !revalidationPending) return;
+		int failedAttempts = consecutiveFailures;
+		try {
+			logger.debug("Retrying initialization of identity provider meta data in background");
+			buildProviderMetadata();
+			logger.info("Identity provider meta data initialized after {} failed attempt(s)", failedAttempts);
+		} catch (MetaDataInitializationException e) {
+			logger.error("Initialization of identity provider meta data failed again. Reason: {}", e.getMessage());
+		}
+	}
+
+    /**
+     * Fetches the JWK set of the identity provider again and updates the signature verifiers. Called by the
+     * SignatureVerifierRegistry if a token is signed with an unknown key ID. Only possible with config discovery,
+     * manually configured keys can't change at runtime. If a key refresh executor is configured, the keys are
+     * fetched in the background and the calling thread returns immediately
+     */
+	public void refreshPublicKeys() {
+		if (!config.isConfigDiscovery() || snapshot.get() == null) return;
+		if (keyRefreshExecutor != null) {
+			keyRefreshExecutor.execute(this::fetchPublicKeys);
+		} else {
+			fetchPublicKeys();
+		}
+	}
+
+	private void fetchPublicKeys() {
+		try {
+			logger.debug("Refreshing JWK set of identity provider");
+			MetaDataSnapshot current = snapshot.get();
+			PublicKeySet refreshedKeys = metaDataBuilder.providePublicKeysFromJwkSet(current.getProviderMetadata());
+			MetaDataSnapshot refreshed = current.withPublicKeys(refreshedKeys);
+			if (publishIfUnchanged(current, refreshed)) {
+				persist(refreshed);
+			} else {
+				logger.debug("Discarding refreshed JWK set, newer identity provider meta data was published meanwhile");
+			}
+		} catch (Exception e) {
+			logger.error("Error while refreshing JWK set of identity provider. Reason: {}", e.getMessage());
+		}
+	}
+
+    /**
+     * Publishes a new metadata snapshot and updates the signature verifiers with its keys. Only writers synchronize,
+     * readers get the snapshot from the atomic reference without locking
+     *
+     * @param newSnapshot The snapshot to publish
+     */
+	private synchronized void publish(MetaDataSnapshot newSnapshot) {
+		verifierRegistry.update(newSnapshot.getPublicKeys());
+		snapshot.set(newSnapshot);
+	}
+
+    /**
+     * Publishes a new metadata snapshot only if the expected one is still published, so a slow key refresh can't
+     * overwrite meta data which was fetched later
+     *
+     * @param expected The snapshot the new one is based on
+     * @param newSnapshot The snapshot to publish
+     * @return false if another snapshot was published meanwhile
+     */
+	private synchronized boolean publishIfUnchanged(MetaDataSnapshot expected, MetaDataSnapshot newSnapshot) {
+		if (snapshot.get() != expected) return false;
+		publish(newSnapshot);
+		return true;
+	}
+
+    /**
+     * Writes the snapshot to the snapshot file if one is configured. Failures are only logged, the snapshot is
+     * already published and a missing file only slows down the next start
+     *
+     * @param fetched The snapshot fetched from the identity provider
+     */
+	private void persist(MetaDataSnapshot fetched) {
+		if (snapshotStore == null) return;
+		try {
+			snapshotStore.save(fetched);
+		} catch (Exception e) {
+			logger.warn("Could not save identity provider meta data snapshot {}. Reason: {}",
+					snapshotStore.getFile(), e.getMessage());
+		}
+	}
+
 	public OIDCProviderMetadata getProviderMetadata() {
-		return providerMetadata;
+		MetaDataSnapshot current = snapshot.get();
+		return current != null ? current.getProviderMetadata() : null;
+	}
+
+	public PublicKeySet getPublicKeys() {
+		MetaDataSnapshot current = snapshot.get();
+		return current != null ? current.getPublicKeys() : null;
+	}
+
+	public MetaDataSnapshot getSnapshot() {
+		return snapshot.get();
 	}
 
-	public RSAPublicKey getRsaPublicKey() {
-		return rsaPublicKey;
+	public void setRecoveryScheduler(ScheduledExecutorService recoveryScheduler) {
+		this.recoveryScheduler = recoveryScheduler;
 	}
 
-	public URI getIntrospectionUri() {
-		return introspectionUri;
+	public void setSnapshotStore(MetaDataSnapshotStore snapshotStore) {
+		this.snapshotStore = snapshotStore;
 	}
 
-	public void setIntrospectionUri(URI introspectionUri) {
-		this.introspectionUri = introspectionUri;
+	public boolean isRevalidationPending() {
+		return revalidationPending;
+	}
+
+	public void setKeyRefreshExecutor(Executor keyRefreshExecutor) {
+		this.keyRefreshExecutor = keyRefreshExecutor;
+	}
+
+	public SignatureVerifierRegistry getVerifierRegistry() {
+		return verifierRegistry;
+	}
+
+	public HttpTransport getHttpTransport() {
+		return httpTransport;
 	}
 
 	public ClientSecretBasic getClientSecretBasic() {
@@ -153,10 +419,6 @@ public class SingleSignOnConfig {
 	}
 
 	public boolean isInitialized() {
-		return isInitialized;
-	}
-
-	public void setInitialized(boolean initialized) {
-		isInitialized = initialized;
+		return snapshot.get() != null;
 	}
 }
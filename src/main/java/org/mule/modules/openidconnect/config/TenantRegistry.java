@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.config;
+
+import org.mule.modules.openidconnect.client.HttpTransport;
+import org.mule.modules.openidconnect.exception.MetaDataInitializationException;
+import org.mule.modules.openidconnect.exception.TokenValidationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the identity provider configs of many issuers, e.g. the realms of one Keycloak server. Tokens are
+ * routed to the config of their (not yet verified) issuer with one map lookup, the key ID is resolved by the
+ * signature verifiers of that config. Only whitelisted issuers are accepted. The metadata and keys of an issuer are
+ * loaded on its first token with config discovery and issuers without tokens for the idle timeout are evicted.
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+public class TenantRegistry {
+
+    private final ConnectorConfig config;
+    private final HttpTransport httpTransport;
+    private final Set<String> trustedIssuers;
+    private final int maxTenants;
+    private final long idleTimeoutMillis;
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private volatile long nextSweep;
+
+    private static final Logger logger = LoggerFactory.getLogger(TenantRegistry.class);
+
+    /**
+     * @param config Connector config whose discovery endpoint and caches are used for every issuer
+     * @param httpTransport Transport shared by all issuers
+     * @param trustedIssuers Issuers whose tokens are accepted, exactly as in the iss claim
+     * @param maxTenants Maximum number of issuers whose metadata is held at the same time
+     * @param idleTimeoutMillis Time without tokens after which an issuer is evicted
+     * @throws IllegalArgumentException if config discovery is disabled, as the manually configured endpoints and key
+     * belong to a single issuer
+     */
+    public TenantRegistry(ConnectorConfig config, HttpTransport httpTransport, Collection<String> trustedIssuers,
+                          int maxTenants, long idleTimeoutMillis) {
+        if (!config.isConfigDiscovery()) {
+            throw new IllegalArgumentException("Trusted issuers require config discovery");
+        }
+        this.config = config;
+        this.httpTransport = httpTransport;
+        this.trustedIssuers = new LinkedHashSet<>(trustedIssuers);
+        this.maxTenants = Math.max(1, maxTenants);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Returns the initialized config of the given issuer. The metadata of an issuer is loaded by the first request,
+     * concurrent requests for the same issuer wait for it
+     *
+     * @param issuer The unverified iss claim of the token
+     * @return The config of the issuer
+     * @throws TokenValidationException if the issuer is not trusted
+     * @throws MetaDataInitializationException if the metadata of the issuer is not available
+     */
+    public SingleSignOnConfig resolve(String issuer) throws TokenValidationException, MetaDataInitializationException {
+        if (issuer == null || !trustedIssuers.contains(issuer)) {
+            throw new TokenValidationException(String.format("Issuer %s is not trusted", issuer));
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) evictIdle(now);
+        Tenant tenant = tenants.get(issuer);
+        if (tenant == null) tenant = addTenant(issuer);
+        tenant.lastAccess = now;
+        tenant.ssoConfig.initialize();
+        return tenant.ssoConfig;
+    }
+
+    public Set<String> getTrustedIssuers() {
+        return trustedIssuers;
+    }
+
+    /**
+     * @return Number of issuers whose config is currently held
+     */
+    public int size() {
+        return tenants.size();
+    }
+
+    /**
+     * Adds the config of a new issuer. Eviction and insertion happen under one lock, so concurrent new issuers can't
+     * grow the registry beyond the maximum. The metadata is loaded afterwards, outside of the lock
+     */
+    private synchronized Tenant addTenant(String issuer) {
+        Tenant tenant = tenants.get(issuer);
+        if (tenant != null) return tenant;
+        if (tenants.size() >= maxTenants) evictLeastRecentlyUsed();
+        logger.debug("Loading identity provider metadata of issuer {}", issuer);
+        tenant = new Tenant(new SingleSignOnConfig(config, URI.create(issuer), httpTransport));
+        tenants.put(issuer, tenant);
+        return tenant;
+    }
+
+    private void evictIdle(long now) {
+        nextSweep = now + Math.max(1000, idleTimeoutMillis / 2);
+        Iterator<Map.Entry<String, Tenant>> iterator = tenants.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Tenant> entry = iterator.next();
+            if (now - entry.getValue().lastAccess > idleTimeoutMillis) {
+                logger.debug("Evicting idle issuer {}", entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Map.Entry<String, Tenant> leastRecentlyUsed = null;
+        for (Map.Entry<String, Tenant> entry : tenants.entrySet()) {
+            if (leastRecentlyUsed == null || entry.getValue().lastAccess < leastRecentlyUsed.getValue().lastAccess) {
+                leastRecentlyUsed = entry;
+            }
+        }
+        if (leastRecentlyUsed != null) {
+            logger.debug("Evicting least recently used issuer {}", leastRecentlyUsed.getKey());
+            tenants.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+        }
+    }
+
+    private static final class Tenant {
+        private final SingleSignOnConfig ssoConfig;
+        private volatile long lastAccess;
+
+        private Tenant(SingleSignOnConfig ssoConfig) {
+            this.ssoConfig = ssoConfig;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+}
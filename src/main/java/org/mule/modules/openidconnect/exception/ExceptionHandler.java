@@ -37,6 +37,8 @@ public class ExceptionHandler {
             logger.debug("Token validation failed. Reason: {}", e.getMessage());
         } else if (e instanceof HTTPConnectException) {
             logger.error("Error while sending HTTP request to identity provider. Reason: {}", e.getMessage());
+        } else if (e instanceof MetaDataUnavailableException) {
+            logger.debug("Identity provider metadata is unavailable. Reason: {}", e.getMessage());
         } else if (e instanceof MetaDataInitializationException) {
             logger.error("Error while initializing identity provider metadata. Reason: {}", e.getMessage());
         } else {
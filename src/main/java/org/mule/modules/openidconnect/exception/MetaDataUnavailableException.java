@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.exception;
+
+public class MetaDataUnavailableException extends MetaDataInitializationException {
+
+	private final long retryAt;
+
+	public MetaDataUnavailableException(String message, long retryAt) {
+		super(message);
+		this.retryAt = retryAt;
+	}
+
+	public long getRetryAt() {
+		return retryAt;
+	}
+
+	public long getRetryAfterSeconds() {
+		return Math.max(1, (retryAt - System.currentTimeMillis() + 999) / 1000);
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.benchmark
+
+import com.nimbusds.jose.JWSAlgorithm
+import com.nimbusds.jose.JWSHeader
+import com.nimbusds.jose.crypto.RSASSASigner
+import com.nimbusds.jose.crypto.RSASSAVerifier
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.SignedJWT
+import org.mule.modules.openidconnect.client.tokenvalidation.SignatureVerifierRegistry
+
+import java.security.KeyPairGenerator
+import java.security.interfaces.RSAPrivateKey
+import java.security.interfaces.RSAPublicKey
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the throughput of a new RSASSAVerifier per verification with the shared SignatureVerifierRegistry.
+ * Not part of the unit tests. Run it with the test classpath, e.g.
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=org.mule.modules.openidconnect.automation.benchmark.SignatureVerificationBenchmark
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class SignatureVerificationBenchmark {
+
+    static final int THREADS = Runtime.runtime.availableProcessors()
+    static final long DURATION_MILLIS = 5000
+
+    static void main(String[] args) {
+        def keyGen = KeyPairGenerator.getInstance("RSA")
+        keyGen.initialize(2048)
+        def keyPair = keyGen.genKeyPair()
+        def publicKey = (RSAPublicKey) keyPair.public
+        def claims = new JWTClaimsSet.Builder().issuer("http://localhost:8080").subject("user").build()
+        def jwt = new SignedJWT(new JWSHeader(JWSAlgorithm.RS256), claims)
+        jwt.sign(new RSASSASigner((RSAPrivateKey) keyPair.private))
+        def token = jwt.serialize()
+
+        def registry = new SignatureVerifierRegistry()
+        registry.update(publicKey)
+
+        println "Threads: $THREADS"
+        // warm up both variants before measuring
+        run({ SignedJWT.parse(token).verify(new RSASSAVerifier(publicKey)) }, 2000)
+        run({ registry.verify(SignedJWT.parse(token)) }, 2000)
+        printf("new RSASSAVerifier per call: %,d verifications/s%n",
+                run({ SignedJWT.parse(token).verify(new RSASSAVerifier(publicKey)) }, DURATION_MILLIS))
+        printf("SignatureVerifierRegistry:   %,d verifications/s%n",
+                run({ registry.verify(SignedJWT.parse(token)) }, DURATION_MILLIS))
+    }
+
+    static long run(Closure<Boolean> verification, long durationMillis) {
+        def executor = Executors.newFixedThreadPool(THREADS)
+        long end = System.currentTimeMillis() + durationMillis
+        def tasks = (1..THREADS).collect {
+            { ->
+                long count = 0
+                while (System.currentTimeMillis() < end) {
+                    if (!verification.call()) throw new IllegalStateException("Verification failed")
+                    count++
+                }
+                count
+            } as Callable<Long>
+        }
+        long total = executor.invokeAll(tasks).sum { it.get() } as long
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+        (total * 1000 / durationMillis) as long
+    }
+}
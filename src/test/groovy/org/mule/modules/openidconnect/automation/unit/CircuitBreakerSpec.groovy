@@ -0,0 +1,125 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.modules.openidconnect.client.CircuitBreaker
+import spock.lang.Specification
+
+
+/**
+ * Test specification for the CircuitBreaker
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class CircuitBreakerSpec extends Specification {
+
+    def "circuit opens when the failure rate of a full window reaches the threshold"() {
+        given:
+        def circuitBreaker = new CircuitBreaker(4, 50, 0, 60000, 1)
+
+        when:
+        [false, true, false, true].each {
+            circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, it)
+        }
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.OPEN
+        !circuitBreaker.tryAcquirePermission()
+        circuitBreaker.statistics.rejectedCalls == 1
+    }
+
+    def "slow calls count as failures"() {
+        given:
+        def circuitBreaker = new CircuitBreaker(2, 100, 1000, 60000, 1)
+
+        when:
+        2.times {
+            circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 1500, false)
+        }
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.OPEN
+        circuitBreaker.statistics.slowCalls == 2
+    }
+
+    def "circuit stays closed below the threshold"() {
+        given:
+        def circuitBreaker = new CircuitBreaker(4, 50, 0, 60000, 1)
+
+        when:
+        [false, true, false, false].each {
+            circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, it)
+        }
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.CLOSED
+        circuitBreaker.tryAcquirePermission()
+    }
+
+    def "half open circuit closes after successful probes"() {
+        given:
+        def circuitBreaker = new CircuitBreaker(1, 100, 0, 0, 2)
+        circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, true)
+
+        when:
+        def firstProbe = circuitBreaker.tryAcquirePermission()
+        def secondProbe = circuitBreaker.tryAcquirePermission()
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.HALF_OPEN
+        firstProbe.probe
+        secondProbe.probe
+        !circuitBreaker.tryAcquirePermission()
+
+        when:
+        circuitBreaker.onResult(firstProbe, 10, false)
+        circuitBreaker.onResult(secondProbe, 10, false)
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.CLOSED
+
+        when:
+        circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, true)
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.OPEN
+        circuitBreaker.statistics.opened == 2
+    }
+
+    def "late results of calls admitted before the circuit opened don't count as probes"() {
+        given:
+        def circuitBreaker = new CircuitBreaker(1, 100, 0, 0, 1)
+        def lateCall = circuitBreaker.tryAcquirePermission()
+        circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, true)
+        def probe = circuitBreaker.tryAcquirePermission()
+
+        when:
+        circuitBreaker.onResult(lateCall, 10, false)
+
+        then:
+        !lateCall.probe
+        circuitBreaker.state == CircuitBreaker.State.HALF_OPEN
+        !circuitBreaker.tryAcquirePermission()
+
+        when:
+        circuitBreaker.onResult(probe, 10, false)
+
+        then:
+        circuitBreaker.state == CircuitBreaker.State.CLOSED
+        circuitBreaker.statistics.successfulCalls == 2
+    }
+}
@@ -16,6 +16,7 @@
 package org.mule.modules.openidconnect.automation.unit
 
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata
+import org.mule.modules.openidconnect.client.JsonDocument
 import org.mule.modules.openidconnect.config.MetaDataBuilder
 import spock.lang.Specification
 
@@ -30,14 +31,58 @@ class MetaDataBuilderSpec extends Specification {
     def uri = new URI("http://localhost")
     def metaDataBuilder = Spy(MetaDataBuilder, constructorArgs: [uri])
 
-    def "provide public key from json string"() {
+    def "provide public keys indexed by key id from json string"() {
         setup:
         def metaData = Mock(OIDCProviderMetadata)
         metaData.getJWKSetURI() >> new URI("http:localhost:8080/certs")
-        metaDataBuilder.requestJsonString(_) >> new File(this.getClass().getResource('testkey.json').file).text
+        metaDataBuilder.requestJsonDocument(_, _) >> new JsonDocument(
+                new File(this.getClass().getResource('testkey.json').file).text, null, null, 0
+        )
 
         expect:
-        metaDataBuilder.providePublicKeyFromJwkSet(metaData) != null
-        metaDataBuilder.providePublicKeyFromJwkSet(metaData).algorithm == "RSA"
+        def keys = metaDataBuilder.providePublicKeysFromJwkSet(metaData)
+        keys.keys.size() == 1
+        keys.get("SgCMMXR0y_SO-NtIdpmH1h9rx9frChN3Qcf0IXcTzKA").algorithm == "RSA"
+        keys.keysWithoutId.empty
+    }
+
+    def "not modified jwk set is not parsed again"() {
+        given:
+        def metaData = Mock(OIDCProviderMetadata)
+        metaData.getJWKSetURI() >> new URI("http:localhost:8080/certs")
+        def document = new JsonDocument(
+                new File(this.getClass().getResource('testkey.json').file).text, '"v1"', null, 42
+        )
+        def notModified = document.notModified(4200)
+
+        when:
+        def first = metaDataBuilder.providePublicKeysFromJwkSet(metaData)
+        def second = metaDataBuilder.providePublicKeysFromJwkSet(metaData)
+
+        then:
+        1 * metaDataBuilder.requestJsonDocument(_, null) >> document
+        1 * metaDataBuilder.requestJsonDocument(_, document) >> notModified
+        second.is(first)
+        metaDataBuilder.expiresAt == 4200
+    }
+
+    def "freshness is taken from the current jwk set only"() {
+        given:
+        def jwkSet = new File(this.getClass().getResource('testkey.json').file).text
+        def oldMetaData = Mock(OIDCProviderMetadata)
+        oldMetaData.getJWKSetURI() >> new URI("http:localhost:8080/old-certs")
+        def newMetaData = Mock(OIDCProviderMetadata)
+        newMetaData.getJWKSetURI() >> new URI("http:localhost:8080/certs")
+        metaDataBuilder.requestJsonDocument(new URI("http:localhost:8080/old-certs"), _) >>
+                new JsonDocument(jwkSet, null, null, 1000)
+        metaDataBuilder.requestJsonDocument(new URI("http:localhost:8080/certs"), _) >>
+                new JsonDocument(jwkSet, null, null, 5000)
+
+        when:
+        metaDataBuilder.providePublicKeysFromJwkSet(oldMetaData)
+        metaDataBuilder.providePublicKeysFromJwkSet(newMetaData)
+
+        then:
+        metaDataBuilder.expiresAt == 5000
     }
 }
\ No newline at end of file
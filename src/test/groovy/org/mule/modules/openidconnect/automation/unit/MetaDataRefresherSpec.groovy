@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.modules.openidconnect.config.MetaDataRefresher
+import org.mule.modules.openidconnect.config.MetaDataSnapshot
+import org.mule.modules.openidconnect.config.SingleSignOnConfig
+import org.mule.modules.openidconnect.exception.MetaDataInitializationException
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+
+/**
+ * Test specification for the MetaDataRefresher
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class MetaDataRefresherSpec extends Specification {
+    def ssoConfig = Mock(SingleSignOnConfig)
+    def conditions = new PollingConditions(timeout: 5)
+
+    def "uninitialized metadata is built in background"() {
+        given:
+        def refresher = new MetaDataRefresher(ssoConfig, 60000, 0, 60000)
+        def builds = 0
+        ssoConfig.isInitialized() >> false
+        ssoConfig.buildProviderMetadata() >> { builds++ }
+
+        when:
+        refresher.start()
+
+        then:
+        conditions.eventually {
+            assert builds == 1
+        }
+
+        cleanup:
+        refresher.stop()
+    }
+
+    def "failed refresh is retried in background"() {
+        given:
+        def refresher = new MetaDataRefresher(ssoConfig, 60000, 0, 10)
+        def attempts = 0
+        ssoConfig.isInitialized() >> false
+        ssoConfig.buildProviderMetadata() >> {
+            attempts++
+            if (attempts < 3) throw new MetaDataInitializationException("IdP unavailable")
+        }
+
+        when:
+        refresher.start()
+
+        then:
+        conditions.eventually {
+            assert attempts == 3
+            assert refresher.consecutiveFailures == 0
+        }
+
+        cleanup:
+        refresher.stop()
+    }
+
+    def "backoff grows exponentially up to the maximum"() {
+        given:
+        def refresher = new MetaDataRefresher(ssoConfig, 60000, 0, 30000)
+        refresher.@consecutiveFailures = failures
+
+        expect:
+        refresher.nextDelay() == delay
+
+        where:
+        failures | delay
+        0        | 60000
+        1        | 5000
+        2        | 10000
+        10       | 30000
+    }
+
+    def "metadata which is stale immediately is revalidated after the minimum delay"() {
+        given:
+        def refresher = new MetaDataRefresher(ssoConfig, 600000, 0, 60000)
+        ssoConfig.getSnapshot() >> new MetaDataSnapshot(null, null, 0, System.currentTimeMillis())
+
+        expect:
+        refresher.nextDelay() == 30000
+    }
+
+    def "metadata which is fresh for longer than the period is refreshed after one period"() {
+        given:
+        def refresher = new MetaDataRefresher(ssoConfig, 600000, 0, 60000)
+        ssoConfig.getSnapshot() >> new MetaDataSnapshot(null, null, 0, System.currentTimeMillis() + 86400000)
+
+        expect:
+        refresher.nextDelay() == 600000
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.modules.openidconnect.config.MetaDataBuilder
+import org.mule.modules.openidconnect.config.MetaDataSnapshot
+import org.mule.modules.openidconnect.config.MetaDataSnapshotStore
+import org.mule.modules.openidconnect.config.PublicKeySet
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.security.KeyPairGenerator
+
+
+/**
+ * Test specification for the MetaDataSnapshotStore
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class MetaDataSnapshotStoreSpec extends Specification {
+    def directory = Files.createTempDirectory("oidc-snapshot")
+    def file = directory.resolve("metadata.snapshot")
+    def store = new MetaDataSnapshotStore(file)
+    def snapshot
+
+    def setup() {
+        def generator = KeyPairGenerator.getInstance("RSA")
+        generator.initialize(1024)
+        def metadata = new MetaDataBuilder(new URI("http://localhost:8080/auth/realms/master"))
+                .provideMetadataManually("auth", "token", "certs")
+        def publicKeys = new PublicKeySet(
+                ["kid-1": generator.generateKeyPair().public], [generator.generateKeyPair().public]
+        )
+        snapshot = new MetaDataSnapshot(metadata, publicKeys, 1234567890L)
+    }
+
+    def cleanup() {
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(directory)
+    }
+
+    def "saved snapshot is loaded with metadata, keys and fetch timestamp"() {
+        when:
+        store.save(snapshot)
+        def loaded = store.load()
+
+        then:
+        loaded.fetchedAt == 1234567890L
+        loaded.providerMetadata.issuer == snapshot.providerMetadata.issuer
+        loaded.providerMetadata.tokenEndpointURI == snapshot.providerMetadata.tokenEndpointURI
+        loaded.publicKeys.get("kid-1") == snapshot.publicKeys.get("kid-1")
+        loaded.publicKeys.keysWithoutId == snapshot.publicKeys.keysWithoutId
+    }
+
+    def "missing snapshot file loads nothing"() {
+        expect:
+        store.load() == null
+    }
+
+    def "snapshot with wrong checksum is rejected"() {
+        given:
+        store.save(snapshot)
+        def lines = Files.readAllLines(file)
+        Files.write(file, [lines[0], lines[1].replace("1234567890", "1234567891")])
+
+        when:
+        store.load()
+
+        then:
+        thrown(IOException)
+    }
+
+    def "snapshot older than the maximum age is rejected"() {
+        given:
+        def limitedStore = new MetaDataSnapshotStore(file, 60000)
+        limitedStore.save(new MetaDataSnapshot(
+                snapshot.providerMetadata, snapshot.publicKeys, System.currentTimeMillis() - 120000
+        ))
+
+        when:
+        limitedStore.load()
+
+        then:
+        IOException e = thrown()
+        e.message.contains("older than 60 seconds")
+    }
+
+    def "snapshot within the maximum age is loaded"() {
+        given:
+        def limitedStore = new MetaDataSnapshotStore(file, 60000)
+        def fetchedAt = System.currentTimeMillis() - 30000
+        limitedStore.save(new MetaDataSnapshot(snapshot.providerMetadata, snapshot.publicKeys, fetchedAt))
+
+        expect:
+        limitedStore.load().fetchedAt == fetchedAt
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.api.MuleContext
+import org.mule.api.store.ObjectStoreManager
+import org.mule.modules.openidconnect.OpenIDConnectConnector
+import org.mule.modules.openidconnect.client.relyingparty.storage.Storage
+import org.mule.modules.openidconnect.config.ConnectorConfig
+import org.mule.util.store.MonitoredObjectStoreWrapper
+import org.mule.util.store.SimpleMemoryObjectStore
+import spock.lang.Specification
+
+
+/**
+ * Test specification for the relying party object stores of the OpenIDConnectConnector
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class OpenIDConnectConnectorSpec extends Specification {
+    def objectStoreManager = Mock(ObjectStoreManager)
+    def connector = new OpenIDConnectConnector()
+
+    def setup() {
+        def muleContext = Mock(MuleContext)
+        muleContext.objectStoreManager >> objectStoreManager
+        connector.muleContext = muleContext
+        connector.config = new ConnectorConfig()
+        connector.config.storeExpirationInterval = 60
+    }
+
+    def "stores without time to live and maximum entries are the default object store"() {
+        when:
+        connector.objectStore("redirect-cookie-store", "Redirect store", 0, 0)
+
+        then:
+        1 * objectStoreManager.getObjectStore("redirect-cookie-store")
+        0 * objectStoreManager.getObjectStore(_, _, _, _, _)
+    }
+
+    def "stores with time to live or maximum entries are monitored in-memory stores"() {
+        when:
+        connector.objectStore("token-cookie-store", "Token store", ttl, maxEntries)
+
+        then:
+        1 * objectStoreManager.getObjectStore("token-cookie-store", false, maxEntries, ttl * 1000, 60000)
+        0 * objectStoreManager.getObjectStore(_)
+
+        where:
+        ttl | maxEntries
+        600 | 0
+        0   | 100
+        600 | 100
+    }
+
+    def "store times which don't fit into int milliseconds are rejected"() {
+        when:
+        connector.config.storeExpirationInterval = interval
+        connector.objectStore("token-cookie-store", "Token store", ttl, 0)
+
+        then:
+        IllegalArgumentException e = thrown()
+        e.message == message
+        0 * objectStoreManager._
+
+        where:
+        ttl     | interval | message
+        2147484 | 60       | "Token store time to live must be at most 2147483 seconds"
+        600     | 2147484  | "Store expiration interval must be at most 2147483 seconds"
+    }
+
+    def "monitored store evicts the oldest entries beyond the maximum and expired entries"() {
+        given:
+        def store = new MonitoredObjectStoreWrapper(new SimpleMemoryObjectStore(), 2, 200, 60000)
+        def storage = new Storage(store)
+
+        when:
+        storage.storeData("a", "first")
+        sleep(10)
+        storage.storeData("b", "second")
+        sleep(10)
+        storage.storeData("c", "third")
+        store.expire()
+
+        then:
+        storage.getData("a") == null
+        storage.getData("b") == "second"
+        storage.getData("c") == "third"
+
+        when:
+        sleep(300)
+        store.expire()
+
+        then:
+        storage.getData("b") == null
+        storage.getData("c") == null
+        storage.statistics == [size: 0, stored: 3L, removed: 0L]
+    }
+}
@@ -17,6 +17,8 @@ package org.mule.modules.openidconnect.automation.unit
 
 import org.mule.modules.openidconnect.client.OpenIdConnectClient
 import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyHandler
+import org.mule.modules.openidconnect.client.relyingparty.storage.RedirectData
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenValidator
 import org.mule.modules.openidconnect.config.SingleSignOnConfig
 import spock.lang.Specification
@@ -36,30 +38,32 @@ class OpenIdConnectClientSpec extends Specification {
     def "act as relying party with existing and stored token cookie"() {
         given:
         def handler = Mock(RelyingPartyHandler)
+        def tokenData = Mock(TokenData)
 
         when:
         client.actAsRelyingParty(handler)
 
         then:
-        1 * handler.hasCookieAndExistsInStore(RelyingPartyHandler.TOKEN_COOKIE_NAME) >> true
-        1 * handler.handleResourceRequest()
-        0 * handler.hasCookieAndExistsInStore(RelyingPartyHandler.REDIRECT_COOKIE_NAME)
-        0 * handler.handleTokenRequest()
+        1 * handler.findTokenData() >> tokenData
+        1 * handler.handleResourceRequest(tokenData)
+        0 * handler.findRedirectData()
+        0 * handler.handleTokenRequest(_)
         0 * handler.handleRedirect()
     }
 
     def "act as relying party with existing and stored request cookie"() {
         given:
         def handler = Mock(RelyingPartyHandler)
+        def redirectData = Mock(RedirectData)
 
         when:
         client.actAsRelyingParty(handler)
 
         then:
-        1 * handler.hasCookieAndExistsInStore(RelyingPartyHandler.TOKEN_COOKIE_NAME) >> false
-        0 * handler.handleResourceRequest()
-        1 * handler.hasCookieAndExistsInStore(RelyingPartyHandler.REDIRECT_COOKIE_NAME) >> true
-        1 * handler.handleTokenRequest()
+        1 * handler.findTokenData() >> null
+        0 * handler.handleResourceRequest(_)
+        1 * handler.findRedirectData() >> redirectData
+        1 * handler.handleTokenRequest(redirectData)
         0 * handler.handleRedirect()
     }
 
@@ -71,10 +75,10 @@ class OpenIdConnectClientSpec extends Specification {
         client.actAsRelyingParty(handler)
 
         then:
-        1 * handler.hasCookieAndExistsInStore(RelyingPartyHandler.TOKEN_COOKIE_NAME) >> false
-        0 * handler.handleResourceRequest()
-        1 * handler.hasCookieAndExistsInStore(RelyingPartyHandler.REDIRECT_COOKIE_NAME) >> false
-        0 * handler.handleTokenRequest()
+        1 * handler.findTokenData() >> null
+        0 * handler.handleResourceRequest(_)
+        1 * handler.findRedirectData() >> null
+        0 * handler.handleTokenRequest(_)
         1 * handler.handleRedirect()
     }
 }
\ No newline at end of file
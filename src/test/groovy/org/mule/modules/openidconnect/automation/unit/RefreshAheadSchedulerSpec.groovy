@@ -0,0 +1,281 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.PlainJWT
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic
+import com.nimbusds.oauth2.sdk.auth.Secret
+import com.nimbusds.oauth2.sdk.id.ClientID
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken
+import com.nimbusds.oauth2.sdk.token.RefreshToken
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens
+import org.mule.modules.openidconnect.client.relyingparty.RefreshAheadScheduler
+import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyProfile
+import org.mule.modules.openidconnect.client.relyingparty.TokenRequester
+import org.mule.modules.openidconnect.client.relyingparty.storage.Storage
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenVerifier
+import org.mule.modules.openidconnect.config.SingleSignOnConfig
+import org.mule.modules.openidconnect.exception.RequestTokenFromSsoException
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+
+/**
+ * Test specification for the RefreshAheadScheduler
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class RefreshAheadSchedulerSpec extends Specification {
+    def tokenRequester = Mock(TokenRequester)
+    def tokenVerifier = Mock(TokenVerifier)
+    def ssoConfig = Mock(SingleSignOnConfig)
+    def storage = Mock(Storage)
+    def profile = new RelyingPartyProfile(
+            new URI("http://localhost"), new ClientSecretBasic(new ClientID("client"), new Secret("secret"))
+    )
+    def scheduler = new RefreshAheadScheduler(tokenRequester, tokenVerifier, ssoConfig, 1000, 2, 0)
+    def conditions = new PollingConditions(timeout: 5)
+
+    def setup() {
+        scheduler.start()
+    }
+
+    def cleanup() {
+        scheduler.stop()
+    }
+
+    def "session is refreshed ahead of expiration and written back"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis() + 1200)
+        def refreshed = tokenData("cookieId", System.currentTimeMillis() + 60000)
+        def stored = new CountDownLatch(1)
+        storage.getData("cookieId") >> current
+        tokenRequester.refreshTokenSet(current, ssoConfig, profile) >> refreshed
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        def refreshedInTime = stored.await(5, TimeUnit.SECONDS)
+
+        then:
+        1 * storage.storeData("cookieId", refreshed) >> { stored.countDown() }
+        refreshedInTime
+        conditions.eventually {
+            assert scheduler.size() == 1
+        }
+    }
+
+    def "removed session is not refreshed"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis())
+        def read = new CountDownLatch(1)
+        storage.getData("cookieId") >> { read.countDown(); null }
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        read.await(5, TimeUnit.SECONDS)
+
+        then:
+        0 * tokenRequester.refreshTokenSet(_, _, _)
+        conditions.eventually {
+            assert scheduler.size() == 0
+        }
+    }
+
+    def "session refreshed by a resource request in the meantime is rescheduled"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis())
+        def refreshedMeanwhile = tokenData("cookieId", System.currentTimeMillis() + 60000)
+        def read = new CountDownLatch(1)
+        storage.getData("cookieId") >> { read.countDown(); refreshedMeanwhile }
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        read.await(5, TimeUnit.SECONDS)
+        sleep(100)
+
+        then:
+        0 * tokenRequester.refreshTokenSet(_, _, _)
+        scheduler.size() == 1
+    }
+
+    def "failed refresh leaves the session to resource requests"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis())
+        def failed = new CountDownLatch(1)
+        storage.getData("cookieId") >> current
+        tokenRequester.refreshTokenSet(current, ssoConfig, profile) >> {
+            failed.countDown()
+            throw new RequestTokenFromSsoException("Refresh tokens from SSO failed")
+        }
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        failed.await(5, TimeUnit.SECONDS)
+
+        then:
+        0 * storage.storeData(_, _)
+        conditions.eventually {
+            assert scheduler.size() == 0
+        }
+    }
+
+    def "sessions without refresh token or expiration are not scheduled"() {
+        given:
+        def withoutRefreshToken = new TokenData(new OIDCTokens(
+                idToken(), accessToken(System.currentTimeMillis() + 60000), null
+        ), "cookieId")
+        def withoutExpiration = new TokenData(new OIDCTokens(
+                idToken(), new BearerAccessToken("opaque"), new RefreshToken("refreshToken")
+        ), "cookieId")
+
+        when:
+        scheduler.schedule(withoutRefreshToken, storage, profile)
+        scheduler.schedule(withoutExpiration, storage, profile)
+
+        then:
+        scheduler.size() == 0
+    }
+
+    def "number of scheduled sessions is bounded"() {
+        when:
+        (1..3).each { scheduler.schedule(tokenData("cookie$it", System.currentTimeMillis() + 60000), storage, profile) }
+
+        then:
+        scheduler.size() == 2
+    }
+
+    def "session without resource requests since its previous refresh is not refreshed again"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis())
+        def stored = new CountDownLatch(1)
+        storage.getData("cookieId") >> current
+        tokenRequester.refreshTokenSet(current, ssoConfig, profile) >> {
+            tokenData("cookieId", System.currentTimeMillis() + 1100)
+        }
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        stored.await(5, TimeUnit.SECONDS)
+        sleep(500)
+
+        then:
+        1 * storage.storeData("cookieId", _) >> { stored.countDown() }
+        scheduler.size() == 0
+    }
+
+    def "session used since its previous refresh is refreshed again"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis())
+        def stored = new CountDownLatch(1)
+        def storedAgain = new CountDownLatch(2)
+        storage.getData("cookieId") >> current
+        tokenRequester.refreshTokenSet(current, ssoConfig, profile) >> {
+            tokenData("cookieId", System.currentTimeMillis() + 1500)
+        }
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        stored.await(5, TimeUnit.SECONDS)
+        sleep(100)
+        scheduler.recordAccess(current, storage, profile)
+        def refreshedAgain = storedAgain.await(5, TimeUnit.SECONDS)
+
+        then:
+        (2.._) * storage.storeData("cookieId", _) >> { stored.countDown(); storedAgain.countDown() }
+        refreshedAgain
+    }
+
+    def "session without resource requests for the maximum idle time is not refreshed"() {
+        given:
+        def idleScheduler = new RefreshAheadScheduler(tokenRequester, tokenVerifier, ssoConfig, 1000, 2, 200)
+        def current = tokenData("cookieId", System.currentTimeMillis() + 1500)
+        def read = new CountDownLatch(1)
+        storage.getData("cookieId") >> { read.countDown(); current }
+        idleScheduler.start()
+
+        when:
+        idleScheduler.schedule(current, storage, profile)
+        read.await(5, TimeUnit.SECONDS)
+        sleep(100)
+
+        then:
+        0 * tokenRequester.refreshTokenSet(_, _, _)
+        0 * storage.storeData(_, _)
+        idleScheduler.size() == 0
+
+        cleanup:
+        idleScheduler.stop()
+    }
+
+    def "slow refresh doesn't delay the refresh of other sessions"() {
+        given:
+        def slow = tokenData("slow", System.currentTimeMillis())
+        def fast = tokenData("fast", System.currentTimeMillis() + 1100)
+        def release = new CountDownLatch(1)
+        def fastStored = new CountDownLatch(1)
+        storage.getData("slow") >> slow
+        storage.getData("fast") >> fast
+        tokenRequester.refreshTokenSet(slow, ssoConfig, profile) >> {
+            release.await(5, TimeUnit.SECONDS)
+            throw new RequestTokenFromSsoException("Refresh tokens from SSO failed")
+        }
+        tokenRequester.refreshTokenSet(fast, ssoConfig, profile) >>
+                tokenData("fast", System.currentTimeMillis() + 60000)
+        storage.storeData("fast", _) >> { fastStored.countDown() }
+
+        when:
+        scheduler.schedule(slow, storage, profile)
+        scheduler.schedule(fast, storage, profile)
+        def refreshedInTime = fastStored.await(3, TimeUnit.SECONDS)
+        release.countDown()
+
+        then:
+        refreshedInTime
+    }
+
+    def "cancelled session is not refreshed"() {
+        given:
+        def current = tokenData("cookieId", System.currentTimeMillis() + 1100)
+
+        when:
+        scheduler.schedule(current, storage, profile)
+        scheduler.cancel("cookieId")
+        sleep(300)
+
+        then:
+        scheduler.size() == 0
+        0 * storage.getData(_)
+    }
+
+    private static TokenData tokenData(String cookieId, long expiresAt) {
+        new TokenData(new OIDCTokens(idToken(), accessToken(expiresAt), new RefreshToken("refreshToken")), cookieId)
+    }
+
+    private static PlainJWT idToken() {
+        new PlainJWT(new JWTClaimsSet.Builder().subject("user").build())
+    }
+
+    private static BearerAccessToken accessToken(long expiresAt) {
+        new BearerAccessToken(new PlainJWT(new JWTClaimsSet.Builder().expirationTime(new Date(expiresAt)).build())
+                .serialize())
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.PlainJWT
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens
+import org.mule.modules.openidconnect.client.relyingparty.refresh.AlwaysRefreshPolicy
+import org.mule.modules.openidconnect.client.relyingparty.refresh.ExpiredRefreshPolicy
+import org.mule.modules.openidconnect.client.relyingparty.refresh.LifetimeRefreshPolicy
+import org.mule.modules.openidconnect.client.relyingparty.refresh.RateLimitedRefreshPolicy
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
+import spock.lang.Specification
+
+
+/**
+ * Test specification for the refresh policies
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class RefreshPolicySpec extends Specification {
+    def now = System.currentTimeMillis()
+
+    def "always policy refreshes on every request"() {
+        given:
+        def policy = new AlwaysRefreshPolicy()
+
+        when:
+        def refresh = policy.shouldRefresh(tokenData(now - 1000, now + 60000))
+
+        then:
+        refresh
+        policy.refreshCount == 0
+        policy.avoidedCount == 0
+    }
+
+    def "refreshes are counted once they succeeded"() {
+        given:
+        def policy = new AlwaysRefreshPolicy()
+        def session = tokenData(now - 1000, now + 60000)
+
+        when:
+        policy.shouldRefresh(session)
+        policy.shouldRefresh(session)
+        policy.onRefreshed(session)
+
+        then:
+        policy.refreshCount == 1
+        policy.avoidedCount == 0
+    }
+
+    def "expired policy refreshes inactive access tokens only"() {
+        given:
+        def policy = new ExpiredRefreshPolicy()
+
+        def expired = tokenData(now - 60000, now - 1000)
+
+        expect:
+        !policy.shouldRefresh(tokenData(now - 1000, now + 60000))
+        policy.shouldRefresh(expired)
+        policy.onRefreshed(expired)
+        policy.statistics == [refreshes: 1L, avoided: 1L]
+    }
+
+    def "lifetime policy refreshes once less than the given part of the lifetime remains"() {
+        given:
+        def policy = new LifetimeRefreshPolicy(20)
+
+        expect:
+        policy.shouldRefresh(tokenData(issuedAgo > 0 ? now - issuedAgo : 0, now + expiresIn)) == refresh
+
+        where:
+        issuedAgo | expiresIn | refresh
+        10000     | 90000     | false
+        90000     | 10000     | true
+        100000    | -1000     | true
+        0         | 10000     | false
+    }
+
+    def "lifetime policy rejects percentages outside of 1 to 99"() {
+        when:
+        new LifetimeRefreshPolicy(remainingPercentage)
+
+        then:
+        IllegalArgumentException e = thrown()
+        e.message.contains("between 1 and 99 percent")
+
+        where:
+        remainingPercentage << [-1, 0, 100, 150]
+    }
+
+    def "rate limited policy refreshes a session at most once per interval"() {
+        given:
+        def policy = new RateLimitedRefreshPolicy(new AlwaysRefreshPolicy(), 60000, 10)
+        def session = tokenData(now - 1000, now + 60000, "cookieId")
+        def otherSession = tokenData(now - 1000, now + 60000, "otherCookieId")
+
+        expect:
+        policy.shouldRefresh(session)
+        policy.onRefreshed(session)
+        !policy.shouldRefresh(session)
+        policy.shouldRefresh(otherSession)
+        policy.refreshCount == 1
+        policy.avoidedCount == 1
+    }
+
+    def "rate limited policy does not count the decisions of its delegate"() {
+        given:
+        def delegate = new ExpiredRefreshPolicy()
+        def policy = new RateLimitedRefreshPolicy(delegate, 60000, 10)
+        def session = tokenData(now - 1000, now + 60000, "cookieId")
+
+        when:
+        policy.shouldRefresh(session)
+        policy.onRefreshed(session)
+
+        then:
+        policy.avoidedCount == 1
+        policy.refreshCount == 1
+        delegate.statistics == [refreshes: 0L, avoided: 0L]
+    }
+
+    def "rate limited policy retries failed refreshes"() {
+        given:
+        def policy = new RateLimitedRefreshPolicy(new AlwaysRefreshPolicy(), 60000, 10)
+        def session = tokenData(now - 1000, now + 60000, "cookieId")
+
+        expect:
+        policy.shouldRefresh(session)
+        policy.shouldRefresh(session)
+        policy.onRefreshed(session)
+        !policy.shouldRefresh(session)
+    }
+
+    def "rate limited policy always refreshes expired access tokens"() {
+        given:
+        def policy = new RateLimitedRefreshPolicy(new AlwaysRefreshPolicy(), 60000, 10)
+        def session = tokenData(now - 60000, now - 1000, "cookieId")
+
+        expect:
+        policy.shouldRefresh(session)
+        policy.shouldRefresh(session)
+    }
+
+    def "policy names contain their parameters"() {
+        expect:
+        new LifetimeRefreshPolicy(20).name == "lifetime(20%)"
+        new RateLimitedRefreshPolicy(new AlwaysRefreshPolicy(), 30000, 10).name == "always at most every 30s"
+    }
+
+    private static TokenData tokenData(long issuedAt, long expiresAt, String cookieId = "cookieId") {
+        def claims = new JWTClaimsSet.Builder().expirationTime(new Date(expiresAt))
+        if (issuedAt > 0) claims.issueTime(new Date(issuedAt))
+        def idToken = new PlainJWT(new JWTClaimsSet.Builder().subject("user").build())
+        def accessToken = new BearerAccessToken(new PlainJWT(claims.build()).serialize())
+        new TokenData(new OIDCTokens(idToken, accessToken, null), cookieId)
+    }
+}
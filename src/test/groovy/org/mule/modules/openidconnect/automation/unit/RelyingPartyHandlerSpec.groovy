@@ -16,13 +16,25 @@
 package org.mule.modules.openidconnect.automation.unit
 
 import com.nimbusds.jwt.JWT
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.PlainJWT
+import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic
+import com.nimbusds.oauth2.sdk.auth.Secret
+import com.nimbusds.oauth2.sdk.id.ClientID
 import com.nimbusds.oauth2.sdk.id.State
 import com.nimbusds.oauth2.sdk.token.AccessToken
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken
 import com.nimbusds.openid.connect.sdk.AuthenticationRequest
 import com.nimbusds.openid.connect.sdk.Nonce
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens
 import org.mule.api.MuleMessage
+import org.mule.modules.openidconnect.client.relyingparty.RefreshAheadScheduler
 import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyHandler
+import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyProfile
+import org.mule.modules.openidconnect.client.relyingparty.SessionCookieCodec
 import org.mule.modules.openidconnect.client.relyingparty.TokenRequester
+import org.mule.modules.openidconnect.client.relyingparty.refresh.AlwaysRefreshPolicy
+import org.mule.modules.openidconnect.client.relyingparty.refresh.ExpiredRefreshPolicy
 import org.mule.modules.openidconnect.client.relyingparty.storage.RedirectData
 import org.mule.modules.openidconnect.client.relyingparty.storage.Storage
 import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
@@ -45,6 +57,10 @@ class RelyingPartyHandlerSpec extends Specification {
     def muleMessage = Mock(MuleMessage)
     def tokenVerifier = Mock(TokenVerifier)
     def ssoConfig = Mock(SingleSignOnConfig)
+    def clientId = new ClientID("clientId")
+    def profile = new RelyingPartyProfile(
+            new URI("http://localhost"), new ClientSecretBasic(clientId, new Secret("secret"))
+    )
 
     String cookieHeader = "$RelyingPartyHandler.TOKEN_COOKIE_NAME=tokenCookie; $RelyingPartyHandler.REDIRECT_COOKIE_NAME=redirectCookie"
 
@@ -54,8 +70,9 @@ class RelyingPartyHandlerSpec extends Specification {
             tokenStorage,
             redirectDataStorage,
             ssoConfig,
+            profile,
             tokenVerifier,
-            true
+            new AlwaysRefreshPolicy()
     ])
 
     def props = new Properties()
@@ -65,72 +82,112 @@ class RelyingPartyHandlerSpec extends Specification {
         props.load(new FileReader(new File(this.getClass().getResource("unittest.properties").getPath())))
     }
 
-    def "token cookie from mule message exists in storage"() {
-        setup:
-        tokenStorage.containsData(_) >> true
+    def "token data of token cookie is read with a single store operation"() {
+        given:
+        def tokenData = Mock(TokenData)
 
-        expect:
-        relyingPartyHandler.hasCookieAndExistsInStore(RelyingPartyHandler.TOKEN_COOKIE_NAME)
+        when:
+        def result = relyingPartyHandler.findTokenData()
+
+        then:
+        1 * tokenStorage.getData("tokenCookie") >> tokenData
+        0 * tokenStorage._
+        result == tokenData
     }
 
     def "token cookie from mule message does not exist in storage"() {
         setup:
-        tokenStorage.containsData(_) >> false
+        tokenStorage.getData(_) >> null
 
         expect:
-        !relyingPartyHandler.hasCookieAndExistsInStore(RelyingPartyHandler.TOKEN_COOKIE_NAME)
+        relyingPartyHandler.findTokenData() == null
     }
 
-    def "redirect cookie from mule message exists in storage"() {
-        setup:
-        redirectDataStorage.containsData(_) >> true
+    def "redirect data of redirect cookie is read with a single store operation"() {
+        given:
+        def redirectData = Mock(RedirectData)
 
-        expect:
-        relyingPartyHandler.hasCookieAndExistsInStore(RelyingPartyHandler.REDIRECT_COOKIE_NAME)
+        when:
+        def result = relyingPartyHandler.findRedirectData()
+
+        then:
+        1 * redirectDataStorage.getData("redirectCookie") >> redirectData
+        0 * redirectDataStorage._
+        result == redirectData
     }
 
     def "redirect cookie from mule message does not exist in storage"() {
         setup:
-        redirectDataStorage.containsData(_) >> false
+        redirectDataStorage.getData(_) >> null
 
         expect:
-        !relyingPartyHandler.hasCookieAndExistsInStore(RelyingPartyHandler.REDIRECT_COOKIE_NAME)
+        relyingPartyHandler.findRedirectData() == null
     }
 
     def "handle request with instant refresh"() {
         given:
-        def tokenStorageId = relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.TOKEN_COOKIE_NAME)
         def tokenData = Mock(TokenData)
         def accessToken = Mock(AccessToken)
         accessToken.value >> "tokenString"
         tokenData.accessToken >> accessToken
 
         when:
-        relyingPartyHandler.setInstantRefresh(true)
-        relyingPartyHandler.handleResourceRequest()
+        relyingPartyHandler.setRefreshPolicy(new AlwaysRefreshPolicy())
+        relyingPartyHandler.handleResourceRequest(tokenData)
 
         then:
-        1 * tokenStorage.getData(tokenStorageId) >> tokenData
-        1 * relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> "tokenCookie"
+        0 * tokenStorage.getData(_)
         1 * relyingPartyHandler.refreshTokens(tokenData) >> tokenData
         1 * relyingPartyHandler.storeAndSetCookie(tokenData, tokenStorage, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> null
         1 * muleMessage.setOutboundProperty("Authorization", "Bearer tokenString")
     }
 
+    def "successful refreshes are reported to the refresh policy"() {
+        given:
+        def tokenData = Mock(TokenData)
+        def refreshed = Mock(TokenData)
+        def refreshPolicy = Spy(AlwaysRefreshPolicy)
+        refreshed.accessToken >> new BearerAccessToken("tokenString")
+
+        when:
+        relyingPartyHandler.setRefreshPolicy(refreshPolicy)
+        relyingPartyHandler.handleResourceRequest(tokenData)
+
+        then:
+        1 * relyingPartyHandler.refreshTokens(tokenData) >> refreshed
+        1 * relyingPartyHandler.storeAndSetCookie(refreshed, tokenStorage, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> null
+        1 * refreshPolicy.onRefreshed(refreshed)
+    }
+
+    def "failed refreshes are not reported to the refresh policy"() {
+        given:
+        def tokenData = Mock(TokenData)
+        def refreshPolicy = Spy(AlwaysRefreshPolicy)
+
+        when:
+        relyingPartyHandler.setRefreshPolicy(refreshPolicy)
+        relyingPartyHandler.handleResourceRequest(tokenData)
+
+        then:
+        1 * relyingPartyHandler.refreshTokens(tokenData) >> {
+            throw new RequestTokenFromSsoException("Refresh tokens from SSO failed")
+        }
+        1 * relyingPartyHandler.handleRedirect() >> null
+        0 * refreshPolicy.onRefreshed(_)
+    }
+
     def "handle request without instant refresh with inactive access token"() {
         given:
-        def tokenStorageId = relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.TOKEN_COOKIE_NAME)
         def tokenData = Mock(TokenData)
         def accessToken = AccessToken.parse(props.getProperty("bearer-auth-header"))
         tokenData.accessToken >> accessToken
 
         when:
-        relyingPartyHandler.setInstantRefresh(false)
-        relyingPartyHandler.handleResourceRequest()
+        relyingPartyHandler.setRefreshPolicy(new ExpiredRefreshPolicy())
+        relyingPartyHandler.handleResourceRequest(tokenData)
 
         then:
-        1 * tokenStorage.getData(tokenStorageId) >> tokenData
-        1 * relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> "tokenCookie"
+        0 * tokenStorage.getData(_)
         1 * relyingPartyHandler.refreshTokens(tokenData) >> tokenData
         1 * relyingPartyHandler.storeAndSetCookie(tokenData, tokenStorage, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> null
         1 * muleMessage.setOutboundProperty("Authorization", "Bearer $accessToken.value")
@@ -138,26 +195,24 @@ class RelyingPartyHandlerSpec extends Specification {
 
     def "handle request without instant refresh with active access token"() {
         given:
-        def tokenStorageId = relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.TOKEN_COOKIE_NAME)
         def tokenData = Mock(TokenData)
         def accessToken = AccessToken.parse(props.getProperty("bearer-auth-header"))
         tokenData.accessToken >> accessToken
 
         when:
-        relyingPartyHandler.setInstantRefresh(false)
-        relyingPartyHandler.handleResourceRequest()
+        relyingPartyHandler.setRefreshPolicy(new ExpiredRefreshPolicy())
+        relyingPartyHandler.handleResourceRequest(tokenData)
 
         then:
-        1 * tokenStorage.getData(tokenStorageId) >> tokenData
-        1 * relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> "tokenCookie"
-        1 * tokenVerifier.isActive(accessToken) >> true
+        0 * tokenStorage.getData(_)
+        1 * tokenData.isAccessTokenActive(_) >> true
+        0 * tokenVerifier.isActive(_)
         1 * muleMessage.setOutboundProperty("Authorization", "Bearer $accessToken.value")
     }
 
 
     def "handle token request with valid state and auth code"() {
         given:
-        def redirectStorageId = relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.REDIRECT_COOKIE_NAME)
         def queryStringMap = [state: 'queryState', code: 'queryCode']
         def redirectData = Mock(RedirectData)
         def nonce = new Nonce('nonce')
@@ -171,30 +226,28 @@ class RelyingPartyHandlerSpec extends Specification {
         redirectData.nonce >> nonce
 
         when:
-        relyingPartyHandler.handleTokenRequest()
+        relyingPartyHandler.handleTokenRequest(redirectData)
 
         then:
-        1 * relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.REDIRECT_COOKIE_NAME) >> "redirectCookie"
-        1 * redirectDataStorage.getData(redirectStorageId) >> redirectData
+        0 * redirectDataStorage.getData(_)
         1 * muleMessage.getInboundProperty("http.query.params") >> queryStringMap
         1 * redirectData.state >> state
-        1 * tokenRequester.requestTokensFromSso('queryCode', ssoConfig) >> tokenData
-        1 * tokenVerifier.verifyIdToken(idtoken, ssoConfig, nonce)
+        1 * tokenRequester.requestTokensFromSso('queryCode', ssoConfig, profile) >> tokenData
+        1 * tokenVerifier.verifyIdToken(idtoken, ssoConfig, clientId, nonce)
         1 * relyingPartyHandler.storeAndSetCookie(tokenData, tokenStorage, RelyingPartyHandler.TOKEN_COOKIE_NAME) >> null
     }
 
     def "handle token request with invalid state and auth code"() {
         given:
-        def redirectStorageId = relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.REDIRECT_COOKIE_NAME)
         def queryStringMap = [state: 'queryState', code: null]
         def redirectData = Mock(RedirectData)
         def state = new State('queryState1')
 
         when:
-        relyingPartyHandler.handleTokenRequest()
+        relyingPartyHandler.handleTokenRequest(redirectData)
 
         then:
-        1 * redirectDataStorage.getData(redirectStorageId) >> redirectData
+        0 * redirectDataStorage.getData(_)
         1 * muleMessage.getInboundProperty("http.query.params") >> queryStringMap
         1 * redirectData.state >> state
         1 * relyingPartyHandler.handleRedirect() >> null
@@ -202,23 +255,21 @@ class RelyingPartyHandlerSpec extends Specification {
 
     def "handle token request fails with RequestTokenFromSsoException"() {
         given:
-        def redirectStorageId = relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.REDIRECT_COOKIE_NAME)
         def queryStringMap = [state: 'queryState', code: 'queryCode']
         def redirectData = Mock(RedirectData)
         def state = new State('queryState')
 
         when:
-        relyingPartyHandler.handleTokenRequest()
+        relyingPartyHandler.handleTokenRequest(redirectData)
 
         then:
-        1 * relyingPartyHandler.cookieExtractor(cookieHeader, RelyingPartyHandler.REDIRECT_COOKIE_NAME) >> "redirectCookie"
-        1 * redirectDataStorage.getData(redirectStorageId) >> redirectData
+        0 * redirectDataStorage.getData(_)
         1 * muleMessage.getInboundProperty("http.query.params") >> queryStringMap
         1 * redirectData.state >> state
-        1 * tokenRequester.requestTokensFromSso('queryCode', ssoConfig) >> {
+        1 * tokenRequester.requestTokensFromSso('queryCode', ssoConfig, profile) >> {
             throw new RequestTokenFromSsoException("Token request failed")
         }
-        0 * tokenVerifier.verifyIdToken(_, _, _)
+        0 * tokenVerifier.verifyIdToken(_, _, _, _)
         0 * relyingPartyHandler.storeAndSetTokenCookie(_)
         1 * relyingPartyHandler.handleRedirect() >> null
     }
@@ -232,7 +283,7 @@ class RelyingPartyHandlerSpec extends Specification {
         relyingPartyHandler.handleRedirect()
 
         then:
-        1 * tokenRequester.buildAuthenticationRequest(ssoConfig) >> authRequest
+        1 * tokenRequester.buildAuthenticationRequest(ssoConfig, profile) >> authRequest
         1 * authRequest.nonce >> new Nonce("nonce")
         1 * authRequest.state >> new State("state")
         1 * relyingPartyHandler.storeAndSetCookie(_, redirectDataStorage, RelyingPartyHandler.REDIRECT_COOKIE_NAME) >> null
@@ -247,7 +298,7 @@ class RelyingPartyHandlerSpec extends Specification {
         def idToken = Mock(JWT)
         refreshedTokenData.idToken >> idToken
         tokenData.idToken >> idToken
-        tokenRequester.refreshTokenSet(tokenData, ssoConfig) >> refreshedTokenData
+        tokenRequester.refreshTokenSet(tokenData, ssoConfig, profile) >> refreshedTokenData
 
         expect:
         relyingPartyHandler.refreshTokens(tokenData) == refreshedTokenData
@@ -258,7 +309,7 @@ class RelyingPartyHandlerSpec extends Specification {
     def "refresh tokens fails with RequestTokenFromSsoException and returns null"() {
         given:
         def tokenData = Mock(TokenData)
-        tokenRequester.refreshTokenSet(tokenData, ssoConfig) >> {
+        tokenRequester.refreshTokenSet(tokenData, ssoConfig, profile) >> {
             throw new RequestTokenFromSsoException("Token request failed")
         }
 
@@ -280,7 +331,6 @@ class RelyingPartyHandlerSpec extends Specification {
         then:
         2 * redirectData.cookieId >> "cookieId"
         1 * redirectDataStorage.storeData("cookieId", redirectData)
-        1 * ssoConfig.redirectUri >> new URI("http://localhost")
         1 * muleMessage.setOutboundProperty(_, _)
     }
 
@@ -294,10 +344,102 @@ class RelyingPartyHandlerSpec extends Specification {
         then:
         2 * tokenData.cookieId >> "cookieId"
         1 * tokenStorage.storeData("cookieId", tokenData)
-        1 * ssoConfig.redirectUri >> new URI("http://localhost")
         1 * muleMessage.setOutboundProperty(_, _)
     }
 
+    def "stored token data is scheduled for refresh ahead of expiration"() {
+        given:
+        def tokenData = Mock(TokenData)
+        def refreshScheduler = Mock(RefreshAheadScheduler)
+        relyingPartyHandler.setRefreshScheduler(refreshScheduler)
+
+        when:
+        relyingPartyHandler.storeAndSetCookie(tokenData, tokenStorage, RelyingPartyHandler.TOKEN_COOKIE_NAME)
+
+        then:
+        _ * tokenData.cookieId >> "newCookie"
+        1 * tokenStorage.storeData("newCookie", tokenData)
+        1 * refreshScheduler.cancel("tokenCookie")
+        1 * refreshScheduler.schedule(tokenData, tokenStorage, profile)
+    }
+
+    def "resource requests are recorded by the refresh scheduler"() {
+        given:
+        def tokenData = Mock(TokenData)
+        def refreshScheduler = Mock(RefreshAheadScheduler)
+        tokenData.accessToken >> AccessToken.parse(props.getProperty("bearer-auth-header"))
+        tokenData.isAccessTokenActive(_) >> true
+        relyingPartyHandler.setRefreshScheduler(refreshScheduler)
+        relyingPartyHandler.setRefreshPolicy(new ExpiredRefreshPolicy())
+
+        when:
+        relyingPartyHandler.handleResourceRequest(tokenData)
+
+        then:
+        1 * refreshScheduler.recordAccess(tokenData, tokenStorage, profile)
+        0 * refreshScheduler.schedule(_, _, _)
+    }
+
+    def "stateless session token data is decrypted from chunked cookies without accessing the store"() {
+        given:
+        def codec = new SessionCookieCodec([(1..32).collect { it as byte } as byte[]], 60000)
+        def tokenData = new TokenData(new OIDCTokens(
+                new PlainJWT(new JWTClaimsSet.Builder().subject("user").build()),
+                new BearerAccessToken("a" * 5000),
+                null
+        ), "cookieId")
+        def value = codec.encode(tokenData)
+        def message = Mock(MuleMessage)
+        message.getInboundProperty('cookie') >> "$RelyingPartyHandler.TOKEN_COOKIE_NAME=${value.substring(0, 10)}; " +
+                "$RelyingPartyHandler.TOKEN_COOKIE_NAME-1=${value.substring(10)}"
+        def handler = new RelyingPartyHandler(
+                message, tokenRequester, tokenStorage, redirectDataStorage, ssoConfig, profile, tokenVerifier,
+                new ExpiredRefreshPolicy()
+        )
+        handler.setSessionCodec(codec)
+
+        when:
+        def result = handler.findTokenData()
+
+        then:
+        0 * tokenStorage._
+        result.accessToken.value == "a" * 5000
+    }
+
+    def "stateless session token data is encrypted into chunked cookies"() {
+        given:
+        def codec = new SessionCookieCodec([(1..32).collect { it as byte } as byte[]], 60000)
+        def tokenData = new TokenData(new OIDCTokens(
+                new PlainJWT(new JWTClaimsSet.Builder().subject("user").build()),
+                new BearerAccessToken((1..300).collect { UUID.randomUUID().toString() }.join()),
+                null
+        ), "cookieId")
+        def message = Mock(MuleMessage)
+        def setCookies = []
+        message.getInboundProperty('cookie') >> "$RelyingPartyHandler.TOKEN_COOKIE_NAME=old; " +
+                "$RelyingPartyHandler.TOKEN_COOKIE_NAME-1=old; $RelyingPartyHandler.TOKEN_COOKIE_NAME-2=old; " +
+                "$RelyingPartyHandler.TOKEN_COOKIE_NAME-3=old; $RelyingPartyHandler.TOKEN_COOKIE_NAME-4=old"
+        message.getOutboundProperty('Set-Cookie') >> { setCookies.isEmpty() ? null : setCookies.last() }
+        message.setOutboundProperty('Set-Cookie', _) >> { String name, value -> setCookies << value }
+        def handler = new RelyingPartyHandler(
+                message, tokenRequester, tokenStorage, redirectDataStorage, ssoConfig, profile, tokenVerifier,
+                new ExpiredRefreshPolicy()
+        )
+        handler.setSessionCodec(codec)
+
+        when:
+        handler.storeAndSetCookie(tokenData, tokenStorage, RelyingPartyHandler.TOKEN_COOKIE_NAME)
+
+        then:
+        0 * tokenStorage._
+        def cookies = setCookies.last() as List
+        def chunks = cookies.findAll { !it.contains("Max-Age=0") }
+        chunks.size() > 1
+        chunks.every { it.length() < 4000 }
+        cookies.findAll { it.contains("Max-Age=0") }.size() == 5 - chunks.size()
+        codec.decode(chunks.collect { it.substring(it.indexOf("=") + 1, it.indexOf(";")) }.join("")) != null
+    }
+
     def "configure http redirection in mule message"() {
         given:
         def uri = new URI("http://localhost")
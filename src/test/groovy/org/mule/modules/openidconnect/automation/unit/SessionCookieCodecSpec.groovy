@@ -0,0 +1,153 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import com.nimbusds.jose.JWEObject
+import com.nimbusds.jose.Payload
+import com.nimbusds.jose.crypto.DirectDecrypter
+import com.nimbusds.jose.crypto.DirectEncrypter
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.PlainJWT
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken
+import com.nimbusds.oauth2.sdk.token.RefreshToken
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens
+import org.mule.modules.openidconnect.client.relyingparty.SessionCookieCodec
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
+import spock.lang.Specification
+
+import javax.crypto.spec.SecretKeySpec
+
+
+/**
+ * Test specification for the SessionCookieCodec
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class SessionCookieCodecSpec extends Specification {
+    def oldKey = (1..32).collect { it as byte } as byte[]
+    def newKey = (33..64).collect { it as byte } as byte[]
+    def maxAge = 60000
+    def idToken = new PlainJWT(new JWTClaimsSet.Builder().subject("user").build())
+    def tokenData = new TokenData(
+            new OIDCTokens(idToken, new BearerAccessToken("accessToken"), new RefreshToken("refreshToken")),
+            "cookieId"
+    )
+
+    def "encoded token data is decoded again"() {
+        given:
+        def codec = new SessionCookieCodec([newKey], maxAge)
+
+        when:
+        def decoded = codec.decode(codec.encode(tokenData))
+
+        then:
+        decoded.cookieId == "cookieId"
+        decoded.idToken.JWTClaimsSet.subject == "user"
+        decoded.accessToken.value == "accessToken"
+        decoded.refreshToken.value == "refreshToken"
+    }
+
+    def "encoded token data does not contain the tokens in plain text"() {
+        given:
+        def codec = new SessionCookieCodec([newKey], maxAge)
+
+        expect:
+        !codec.encode(tokenData).contains("accessToken")
+    }
+
+    def "token data encoded with a rotated key is still decoded"() {
+        given:
+        def oldCodec = new SessionCookieCodec([oldKey], maxAge)
+        def rotatedCodec = new SessionCookieCodec([newKey, oldKey], maxAge)
+
+        expect:
+        rotatedCodec.decode(oldCodec.encode(tokenData)).accessToken.value == "accessToken"
+    }
+
+    def "token data encoded with an unknown key is treated as missing"() {
+        given:
+        def oldCodec = new SessionCookieCodec([oldKey], maxAge)
+        def newCodec = new SessionCookieCodec([newKey], maxAge)
+
+        expect:
+        newCodec.decode(oldCodec.encode(tokenData)) == null
+    }
+
+    def "tampered token data is treated as missing"() {
+        given:
+        def codec = new SessionCookieCodec([newKey], maxAge)
+        def parts = codec.encode(tokenData).split("\\.")
+        parts[3] = parts[3].reverse()
+
+        expect:
+        codec.decode(parts.join(".")) == null
+        codec.decode("invalid") == null
+        codec.decode(null) == null
+    }
+
+    def "token data is not decoded after the maximum age"() {
+        given:
+        def codec = new SessionCookieCodec([newKey], 1000)
+        def value = codec.encode(tokenData)
+
+        when:
+        Thread.sleep(2100)
+
+        then:
+        codec.decode(value) == null
+    }
+
+    def "token data without issue and expiration time is treated as missing"() {
+        given:
+        def codec = new SessionCookieCodec([newKey], maxAge)
+        def jwe = JWEObject.parse(codec.encode(tokenData))
+        jwe.decrypt(new DirectDecrypter(new SecretKeySpec(newKey, "AES")))
+        def payload = jwe.payload.toJSONObject()
+        payload.remove("iat")
+        payload.remove("exp")
+        def unbounded = new JWEObject(jwe.header, new Payload(payload))
+        unbounded.encrypt(new DirectEncrypter(new SecretKeySpec(newKey, "AES")))
+
+        expect:
+        codec.decode(unbounded.serialize()) == null
+    }
+
+    def "keys are parsed from base64"() {
+        given:
+        def keys = [newKey, oldKey].collect { Base64.encoder.encodeToString(it) }.join(", ")
+        def value = new SessionCookieCodec([oldKey], maxAge).encode(tokenData)
+
+        expect:
+        SessionCookieCodec.fromBase64(keys, maxAge).decode(value) != null
+    }
+
+    def "maximum age must be positive"() {
+        when:
+        new SessionCookieCodec([newKey], 0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "keys with wrong length are rejected"() {
+        when:
+        new SessionCookieCodec([new byte[16]], maxAge)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
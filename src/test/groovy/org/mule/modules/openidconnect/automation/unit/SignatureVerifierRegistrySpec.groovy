@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import com.nimbusds.jose.JWSAlgorithm
+import com.nimbusds.jose.JWSHeader
+import com.nimbusds.jose.crypto.RSASSASigner
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.SignedJWT
+import org.mule.modules.openidconnect.client.tokenvalidation.SignatureVerifierRegistry
+import org.mule.modules.openidconnect.config.PublicKeySet
+import org.mule.modules.openidconnect.exception.TokenValidationException
+import spock.lang.Specification
+
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.interfaces.RSAPrivateKey
+import java.security.interfaces.RSAPublicKey
+
+
+/**
+ * Test specification for the SignatureVerifierRegistry
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class SignatureVerifierRegistrySpec extends Specification {
+    def registry = new SignatureVerifierRegistry()
+    def keyPair = generateKeyPair()
+    def otherKeyPair = generateKeyPair()
+
+    def "verify token signed with current key"() {
+        setup:
+        registry.update(PublicKeySet.of((RSAPublicKey) keyPair.public))
+
+        expect:
+        registry.verify(signedJWT(keyPair, JWSAlgorithm.RS256, null))
+        registry.verify(signedJWT(keyPair, JWSAlgorithm.RS256, null))
+        registry.verify(signedJWT(keyPair, JWSAlgorithm.RS512, null))
+    }
+
+    def "verify token signed with other key fails"() {
+        setup:
+        registry.update(PublicKeySet.of((RSAPublicKey) keyPair.public))
+
+        expect:
+        !registry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, null))
+    }
+
+    def "verifier is swapped if the key changes"() {
+        given:
+        registry.update(PublicKeySet.of((RSAPublicKey) keyPair.public))
+        def verifier = registry.verifiers[0]
+
+        when:
+        registry.update(PublicKeySet.of((RSAPublicKey) keyPair.public))
+
+        then:
+        registry.verifiers[0].is(verifier)
+
+        when:
+        registry.update(PublicKeySet.of((RSAPublicKey) otherKeyPair.public))
+
+        then:
+        !registry.verifiers[0].is(verifier)
+        registry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, null))
+    }
+
+    def "verify token with key id uses the matching key"() {
+        setup:
+        registry.update(new PublicKeySet([
+                "kid-1": (RSAPublicKey) keyPair.public, "kid-2": (RSAPublicKey) otherKeyPair.public
+        ], []))
+
+        expect:
+        registry.verify(signedJWT(keyPair, JWSAlgorithm.RS256, "kid-1"))
+        registry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, "kid-2"))
+        !registry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, "kid-1"))
+        registry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, null))
+    }
+
+    def "unknown key id triggers one rate limited key refresh"() {
+        given:
+        def refreshes = 0
+        def refreshingRegistry
+        refreshingRegistry = new SignatureVerifierRegistry({
+            refreshes++
+            refreshingRegistry.update(new PublicKeySet([
+                    "kid-1": (RSAPublicKey) keyPair.public, "kid-2": (RSAPublicKey) otherKeyPair.public
+            ], []))
+        }, 60000)
+        refreshingRegistry.update(new PublicKeySet(["kid-1": (RSAPublicKey) keyPair.public], []))
+
+        when:
+        def rotatedKeyValid = refreshingRegistry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, "kid-2"))
+        refreshingRegistry.verify(signedJWT(otherKeyPair, JWSAlgorithm.RS256, "kid-3"))
+
+        then:
+        rotatedKeyValid
+        refreshes == 1
+        TokenValidationException e = thrown()
+        e.message == "Unknown key ID kid-3"
+    }
+
+    def "verify without public key throws TokenValidationException"() {
+        when:
+        registry.verify(signedJWT(keyPair, JWSAlgorithm.RS256, null))
+
+        then:
+        TokenValidationException e = thrown()
+        e.message == "RSA public key is null"
+    }
+
+    static KeyPair generateKeyPair() {
+        def keyGen = KeyPairGenerator.getInstance("RSA")
+        keyGen.initialize(2048)
+        keyGen.genKeyPair()
+    }
+
+    static SignedJWT signedJWT(KeyPair keyPair, JWSAlgorithm algorithm, String keyId) {
+        def claims = new JWTClaimsSet.Builder().issuer("http://localhost:8080").subject("user").build()
+        def jwt = new SignedJWT(new JWSHeader.Builder(algorithm).keyID(keyId).build(), claims)
+        jwt.sign(new RSASSASigner((RSAPrivateKey) keyPair.private))
+        SignedJWT.parse(jwt.serialize())
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.modules.openidconnect.client.SingleFlight
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+
+/**
+ * Test specification for the SingleFlight
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class SingleFlightSpec extends Specification {
+    def singleFlight = new SingleFlight<String, String>()
+    def executor = Executors.newFixedThreadPool(10)
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "concurrent calls with the same key are executed once"() {
+        given:
+        def calls = new AtomicInteger()
+        def release = new CountDownLatch(1)
+        def call = {
+            calls.incrementAndGet()
+            release.await(5, TimeUnit.SECONDS)
+            return "result"
+        }
+
+        when:
+        def futures = (1..10).collect { executor.submit({ singleFlight.execute("key", call) } as Callable) }
+        while (singleFlight.size() == 0) Thread.sleep(1)
+        Thread.sleep(100)
+        release.countDown()
+
+        then:
+        futures.collect { it.get(5, TimeUnit.SECONDS) } == ["result"] * 10
+        calls.get() == 1
+        singleFlight.size() == 0
+    }
+
+    def "exception of the call is thrown to every waiting caller"() {
+        given:
+        def release = new CountDownLatch(1)
+        def call = {
+            release.await(5, TimeUnit.SECONDS)
+            throw new IOException("IdP unavailable")
+        }
+
+        when:
+        def futures = (1..3).collect { executor.submit({ singleFlight.execute("key", call) } as Callable) }
+        while (singleFlight.size() == 0) Thread.sleep(1)
+        Thread.sleep(100)
+        release.countDown()
+        def causes = futures.collect {
+            try {
+                it.get(5, TimeUnit.SECONDS)
+                null
+            } catch (ExecutionException e) {
+                e.cause
+            }
+        }
+
+        then:
+        causes.every { it instanceof IOException && it.message == "IdP unavailable" }
+    }
+
+    def "calls are not coalesced after completion"() {
+        given:
+        def calls = 0
+
+        when:
+        singleFlight.execute("key", { "first-" + (++calls) })
+        def result = singleFlight.execute("key", { "second-" + (++calls) })
+
+        then:
+        result == "second-2"
+    }
+}
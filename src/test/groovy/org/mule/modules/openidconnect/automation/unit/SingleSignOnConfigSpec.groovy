@@ -0,0 +1,229 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.modules.openidconnect.config.ConnectorConfig
+import org.mule.modules.openidconnect.config.MetaDataBuilder
+import org.mule.modules.openidconnect.config.MetaDataSnapshot
+import org.mule.modules.openidconnect.config.MetaDataSnapshotStore
+import org.mule.modules.openidconnect.config.PublicKeySet
+import org.mule.modules.openidconnect.config.SingleSignOnConfig
+import org.mule.modules.openidconnect.exception.MetaDataInitializationException
+import org.mule.modules.openidconnect.exception.MetaDataUnavailableException
+import spock.lang.Specification
+
+import java.security.KeyPairGenerator
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.atomic.AtomicInteger
+
+
+/**
+ * Test specification for the SingleSignOnConfig
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class SingleSignOnConfigSpec extends Specification {
+    def metaDataBuilder = Mock(MetaDataBuilder)
+    def config = new ConnectorConfig()
+    def ssoConfig
+    def publicKey
+
+    def setup() {
+        config.setSsoServerUrl("http://localhost")
+        config.setSsoPort(8080)
+        config.setSsoIssuerEndpoint("auth/realms/master")
+        config.setConfigDiscovery(false)
+        config.setMetaDataRefreshMaxBackoff(300)
+        ssoConfig = new SingleSignOnConfig(config)
+        ssoConfig.setMetaDataBuilder(metaDataBuilder)
+        def generator = KeyPairGenerator.getInstance("RSA")
+        generator.initialize(1024)
+        publicKey = generator.generateKeyPair().public
+    }
+
+    def "concurrent initialization fetches the metadata once"() {
+        given:
+        def executor = Executors.newFixedThreadPool(8)
+        def start = new CountDownLatch(1)
+        metaDataBuilder.providePublicKeyFromString(_) >> publicKey
+        def tasks = (1..8).collect {
+            { -> start.await(); ssoConfig.initialize() } as Callable
+        }
+
+        when:
+        def futures = tasks.collect { executor.submit(it) }
+        start.countDown()
+        def snapshots = futures.collect { it.get() }
+
+        then:
+        1 * metaDataBuilder.provideMetadataManually(_, _, _) >> { sleep(200); null }
+        snapshots.unique().size() == 1
+        ssoConfig.initialized
+        ssoConfig.publicKeys.keys.size() == 1
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "callers arriving after a completed fetch don't fetch again"() {
+        given:
+        def executor = Executors.newFixedThreadPool(8)
+        def fetches = new AtomicInteger()
+        def builder = Stub(MetaDataBuilder)
+        builder.providePublicKeyFromString(_) >> publicKey
+        builder.provideMetadataManually(_, _, _) >> { fetches.incrementAndGet(); null }
+
+        when:
+        def fetchesPerRound = (1..20).collect {
+            fetches.set(0)
+            def roundConfig = new SingleSignOnConfig(config)
+            roundConfig.setMetaDataBuilder(builder)
+            def start = new CountDownLatch(1)
+            def futures = (1..8).collect {
+                executor.submit({ -> start.await(); roundConfig.initialize() } as Callable)
+            }
+            start.countDown()
+            futures.each { it.get() }
+            fetches.get()
+        }
+
+        then:
+        fetchesPerRound.every { it == 1 }
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "waiting threads fail with the exception of the initializing thread"() {
+        given:
+        def executor = Executors.newFixedThreadPool(4)
+        def start = new CountDownLatch(1)
+        def tasks = (1..4).collect {
+            { -> start.await(); ssoConfig.initialize() } as Callable
+        }
+
+        when:
+        def futures = tasks.collect { executor.submit(it) }
+        start.countDown()
+        def failures = futures.findAll {
+            try {
+                it.get()
+                false
+            } catch (ExecutionException e) {
+                e.cause instanceof MetaDataInitializationException
+            }
+        }
+
+        then:
+        1 * metaDataBuilder.provideMetadataManually(_, _, _) >> { sleep(200); throw new IOException("IdP down") }
+        failures.size() == 4
+        !ssoConfig.initialized
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "initialized metadata is returned without fetching again"() {
+        given:
+        metaDataBuilder.providePublicKeyFromString(_) >> publicKey
+        def snapshot = ssoConfig.initialize()
+
+        when:
+        def current = ssoConfig.initialize()
+
+        then:
+        0 * metaDataBuilder.provideMetadataManually(_, _, _)
+        current.is(snapshot)
+    }
+
+    def "failed initialization fails fast during the backoff"() {
+        when:
+        ssoConfig.initialize()
+
+        then:
+        1 * metaDataBuilder.provideMetadataManually(_, _, _) >> { throw new IOException("IdP down") }
+        thrown(MetaDataUnavailableException)
+
+        when:
+        ssoConfig.initialize()
+
+        then:
+        0 * metaDataBuilder.provideMetadataManually(_, _, _)
+        MetaDataUnavailableException e = thrown()
+        e.retryAfterSeconds == 5
+    }
+
+    def "background retry restores the metadata after a failure"() {
+        given:
+        def recoveryScheduler = Mock(ScheduledExecutorService)
+        def retries = []
+        ssoConfig.setRecoveryScheduler(recoveryScheduler)
+        metaDataBuilder.providePublicKeyFromString(_) >> publicKey
+
+        when:
+        ssoConfig.initialize()
+
+        then:
+        1 * metaDataBuilder.provideMetadataManually(_, _, _) >> { throw new IOException("IdP down") }
+        1 * recoveryScheduler.schedule(_, 5000, _) >> { args -> retries << args[0]; null }
+        thrown(MetaDataUnavailableException)
+
+        when:
+        retries[0].run()
+
+        then:
+        1 * metaDataBuilder.provideMetadataManually(_, _, _) >> null
+        ssoConfig.initialized
+        ssoConfig.initialize() != null
+    }
+
+    def "restored snapshot is published and revalidated in background"() {
+        given:
+        def recoveryScheduler = Mock(ScheduledExecutorService)
+        def snapshotStore = Mock(MetaDataSnapshotStore)
+        def restored = new MetaDataSnapshot(null, PublicKeySet.of(publicKey), 0)
+        def revalidations = []
+        ssoConfig.setRecoveryScheduler(recoveryScheduler)
+        ssoConfig.setSnapshotStore(snapshotStore)
+        snapshotStore.load() >> restored
+        metaDataBuilder.providePublicKeyFromString(_) >> publicKey
+
+        when:
+        def published = ssoConfig.restoreSnapshot()
+
+        then:
+        1 * recoveryScheduler.schedule(_, 0, _) >> { args -> revalidations << args[0]; null }
+        0 * metaDataBuilder.provideMetadataManually(_, _, _)
+        published
+        ssoConfig.initialize().is(restored)
+        ssoConfig.revalidationPending
+
+        when:
+        revalidations[0].run()
+
+        then:
+        1 * metaDataBuilder.provideMetadataManually(_, _, _) >> null
+        1 * snapshotStore.save({ it != restored })
+        !ssoConfig.revalidationPending
+        !ssoConfig.snapshot.is(restored)
+    }
+}
@@ -15,10 +15,24 @@
  */
 package org.mule.modules.openidconnect.automation.unit
 
+import org.mule.api.store.ListableObjectStore
+import org.mule.api.store.ObjectAlreadyExistsException
+import org.mule.api.store.ObjectDoesNotExistException
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.PlainJWT
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens
 import org.mule.api.store.ObjectStore
+import org.mule.api.store.ObjectStoreException
 import org.mule.modules.openidconnect.client.relyingparty.storage.Storage
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenCache
 import spock.lang.Specification
 
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.function.ToLongFunction
+
 
 /**
  * Test specification for the Storage
@@ -38,9 +52,10 @@ class StorageSpec extends Specification {
         storage.storeData(key, entry)
 
         then:
-        1 * store.contains(key) >> true
+        1 * store.store(key, entry) >> { throw new ObjectAlreadyExistsException() }
         1 * store.remove(key)
         1 * store.store(key, entry)
+        0 * store.contains(_)
     }
 
     def "store new data in storage"() {
@@ -48,44 +63,70 @@ class StorageSpec extends Specification {
         storage.storeData(key, entry)
 
         then:
-        1 * store.contains(key) >> false
-        0 * store.remove(key)
         1 * store.store(key, entry)
+        0 * store.remove(key)
+        0 * store.contains(_)
     }
 
     def "read existing data"() {
-        setup:
-        store.contains(key) >> true
-        store.retrieve(key) >> entry
+        when:
+        def data = storage.getData(key)
 
-        expect:
-        storage.getData(key) == entry
+        then:
+        1 * store.retrieve(key) >> entry
+        0 * store.contains(_)
+        data == entry
     }
 
     def "read non existing data"() {
         when:
-        storage.getData(key)
+        def data = storage.getData(key)
 
         then:
-        1 * store.contains(key) >> false
-        0 * store.retrieve(key)
-        storage.getData(key) == null
+        1 * store.retrieve(key) >> { throw new ObjectDoesNotExistException() }
+        0 * store.contains(_)
+        data == null
     }
 
-    def "check if storage contains existing data"() {
-        setup:
-        store.contains(key) >> true
+    def "entry written in a previous format is removed and treated as missing"() {
+        given:
+        def tokenData = new TokenData(new OIDCTokens(
+                new PlainJWT(new JWTClaimsSet.Builder().subject("user").build()), new BearerAccessToken("token"), null
+        ), key)
+        def oldEntry = withSerialVersionUID(serialize(tokenData), TokenData.name, 42L)
 
-        expect:
-        storage.containsData(key)
+        when:
+        def data = storage.getData(key)
+
+        then:
+        1 * store.retrieve(key) >> {
+            try {
+                deserialize(oldEntry)
+            } catch (IOException e) {
+                throw new ObjectStoreException(e)
+            }
+        }
+        1 * store.remove(key)
+        data == null
     }
 
-    def "check if storage contains non existing data"() {
-        setup:
-        store.contains(key) >> false
+    def "other store failures are not treated as missing entries"() {
+        when:
+        storage.getData(key)
+
+        then:
+        1 * store.retrieve(key) >> { throw new ObjectStoreException(new IllegalStateException("store unavailable")) }
+        0 * store.remove(_)
+        thrown(ObjectStoreException)
+    }
+
+    def "read data without id"() {
+        when:
+        def data = storage.getData(null)
 
-        expect:
-        !storage.containsData(key)
+        then:
+        0 * store._
+        data == null
     }
 
     def "remove existing data"() {
@@ -93,8 +134,8 @@ class StorageSpec extends Specification {
         storage.removeData(key)
 
         then:
-        1 * store.contains(key) >> true
         1 * store.remove(key)
+        0 * store.contains(_)
     }
 
     def "remove non existing data"() {
@@ -102,7 +143,164 @@ class StorageSpec extends Specification {
         storage.removeData(key)
 
         then:
-        1 * store.contains(key) >> false
-        0 * store.remove(key)
+        1 * store.remove(key) >> { throw new ObjectDoesNotExistException() }
+        0 * store.contains(_)
+        noExceptionThrown()
+    }
+
+    def "read data from local cache without accessing the store"() {
+        given:
+        def cache = new TokenCache(10, 60000, false)
+        storage.setLocalCache(cache, { Long.MAX_VALUE } as ToLongFunction)
+
+        when:
+        def first = storage.getData(key)
+        def second = storage.getData(key)
+
+        then:
+        1 * store.retrieve(key) >> entry
+        first == entry
+        second == entry
+    }
+
+    def "store writes through to the local cache"() {
+        given:
+        def cache = new TokenCache(10, 60000, false)
+        storage.setLocalCache(cache, { Long.MAX_VALUE } as ToLongFunction)
+
+        when:
+        storage.storeData(key, entry)
+        def data = storage.getData(key)
+
+        then:
+        1 * store.store(key, entry)
+        0 * store.retrieve(_)
+        data == entry
+    }
+
+    def "overwritten data is read from the local cache while the store entry is replaced"() {
+        given:
+        def cache = new TokenCache(10, 60000, false)
+        storage.setLocalCache(cache, { Long.MAX_VALUE } as ToLongFunction)
+        cache.put(key, "old", Long.MAX_VALUE)
+        def readBetween = null
+
+        when:
+        storage.storeData(key, entry)
+        def readAfter = storage.getData(key)
+
+        then:
+        1 * store.store(key, entry) >> { throw new ObjectAlreadyExistsException() }
+        1 * store.remove(key) >> { readBetween = storage.getData(key) }
+        1 * store.store(key, entry)
+        0 * store.retrieve(_)
+        readBetween == entry
+        readAfter == entry
+    }
+
+    def "failed overwrite drops the local cache entry"() {
+        given:
+        def cache = new TokenCache(10, 60000, false)
+        storage.setLocalCache(cache, { Long.MAX_VALUE } as ToLongFunction)
+        cache.put(key, "old", Long.MAX_VALUE)
+
+        when:
+        storage.storeData(key, entry)
+
+        then:
+        1 * store.store(key, entry) >> { throw new ObjectAlreadyExistsException() }
+        1 * store.remove(key)
+        1 * store.store(key, entry) >> {
+            throw new ObjectStoreException(new IllegalStateException("store unavailable"))
+        }
+        thrown(ObjectStoreException)
+        cache.size() == 0
+    }
+
+    def "remove invalidates the local cache"() {
+        given:
+        def cache = new TokenCache(10, 60000, false)
+        storage.setLocalCache(cache, { Long.MAX_VALUE } as ToLongFunction)
+        cache.put(key, entry, Long.MAX_VALUE)
+
+        when:
+        storage.removeData(key)
+        def data = storage.getData(key)
+
+        then:
+        1 * store.remove(key)
+        1 * store.retrieve(key) >> { throw new ObjectDoesNotExistException() }
+        data == null
+        cache.size() == 0
+    }
+
+    def "expired data is not cached locally"() {
+        given:
+        def cache = new TokenCache(10, 60000, false)
+        storage.setLocalCache(cache, { 0L } as ToLongFunction)
+
+        when:
+        storage.getData(key)
+        storage.getData(key)
+
+        then:
+        2 * store.retrieve(key) >> entry
+        cache.size() == 0
+    }
+
+    def "statistics count stored and removed entries"() {
+        given:
+        def listableStore = Mock(ListableObjectStore)
+        def listableStorage = new Storage(listableStore)
+
+        when:
+        listableStorage.storeData("a", entry)
+        listableStorage.storeData("b", entry)
+        listableStorage.storeData("c", entry)
+        listableStorage.storeData("c", entry)
+        listableStorage.removeData("a")
+        listableStorage.removeData("d")
+        def statistics = listableStorage.getStatistics()
+
+        then:
+        listableStore.store("c", entry) >> null >> { throw new ObjectAlreadyExistsException() } >> null
+        listableStore.remove("d") >> { throw new ObjectDoesNotExistException() }
+        listableStore.allKeys() >> ["c"]
+        statistics == [size: 1, stored: 3L, removed: 1L]
+    }
+
+    def "statistics of a store which can't be listed"() {
+        when:
+        storage.storeData(key, entry)
+        def statistics = storage.getStatistics()
+
+        then:
+        statistics == [size: -1, stored: 1L, removed: 0L]
+    }
+
+    private static byte[] serialize(Object object) {
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withStream { it.writeObject(object) }
+        bytes.toByteArray()
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        new ObjectInputStream(new ByteArrayInputStream(bytes)).withStream { it.readObject() }
+    }
+
+    /**
+     * Replaces the serialVersionUID of the given class in a serialized stream, like an entry written by a previous
+     * version of the class
+     */
+    private static byte[] withSerialVersionUID(byte[] serialized, String className, long serialVersionUID) {
+        def name = className.getBytes(StandardCharsets.UTF_8)
+        def buffer = ByteBuffer.wrap(serialized)
+        for (int i = 0; i + name.length + 8 <= serialized.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(serialized, i, i + name.length), name)) {
+                buffer.putLong(i + name.length, serialVersionUID)
+                return serialized
+            }
+        }
+        throw new IllegalArgumentException("Class $className not found in stream")
     }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mule.modules.openidconnect.automation.unit
+
+import com.sun.net.httpserver.HttpServer
+import org.mule.modules.openidconnect.client.HttpTransport
+import org.mule.modules.openidconnect.config.ConnectorConfig
+import org.mule.modules.openidconnect.config.TenantRegistry
+import org.mule.modules.openidconnect.exception.TokenValidationException
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+
+/**
+ * Test specification for the TenantRegistry
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class TenantRegistrySpec extends Specification {
+    def server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+    def config = new ConnectorConfig()
+    def discoveries = [:].withDefault { 0 }
+    def keys = new File(this.getClass().getResource('testkey.json').file).text
+
+    def setup() {
+        ["a", "b", "c", "d"].each { realm ->
+            server.createContext("/realms/${realm}/.well-known/openid-configuration") { exchange ->
+                discoveries[realm]++
+                respond(exchange, """{
+                    "issuer": "${issuer(realm)}",
+                    "authorization_endpoint": "${issuer(realm)}/auth",
+                    "token_endpoint": "${issuer(realm)}/token",
+                    "jwks_uri": "${issuer(realm)}/certs",
+                    "response_types_supported": ["code"],
+                    "subject_types_supported": ["public"],
+                    "id_token_signing_alg_values_supported": ["RS256"]
+                }""")
+            }
+            server.createContext("/realms/${realm}/certs") { exchange -> respond(exchange, keys) }
+        }
+        server.start()
+        config.setConfigDiscovery(true)
+        config.setConfigDiscoveryEndpoint(".well-known/openid-configuration")
+        config.setMetaDataRefreshMaxBackoff(300)
+    }
+
+    def cleanup() {
+        server.stop(0)
+    }
+
+    def "tokens of untrusted issuers are rejected without loading metadata"() {
+        given:
+        def registry = new TenantRegistry(config, new HttpTransport(), [issuer("a")], 10, 60000)
+
+        when:
+        registry.resolve(issuer("b"))
+
+        then:
+        TokenValidationException e = thrown()
+        e.message.contains("not trusted")
+        registry.size() == 0
+        discoveries["b"] == 0
+    }
+
+    def "metadata of an issuer is loaded once on its first token"() {
+        given:
+        def registry = new TenantRegistry(config, new HttpTransport(), [issuer("a"), issuer("b")], 10, 60000)
+
+        when:
+        def first = registry.resolve(issuer("a"))
+        def second = registry.resolve(issuer("a"))
+
+        then:
+        first.is(second)
+        first.ssoUri.toString() == issuer("a")
+        first.publicKeys.keys.size() == 1
+        discoveries["a"] == 1
+        discoveries["b"] == 0
+        registry.size() == 1
+    }
+
+    def "least recently used issuer is evicted if the registry is full"() {
+        given:
+        def registry = new TenantRegistry(config, new HttpTransport(), [issuer("a"), issuer("b")], 1, 60000)
+
+        when:
+        def first = registry.resolve(issuer("a"))
+        registry.resolve(issuer("b"))
+        def reloaded = registry.resolve(issuer("a"))
+
+        then:
+        registry.size() == 1
+        !reloaded.is(first)
+        discoveries["a"] == 2
+    }
+
+    def "trusted issuers are rejected without config discovery"() {
+        given:
+        config.setConfigDiscovery(false)
+
+        when:
+        new TenantRegistry(config, new HttpTransport(), [issuer("a")], 10, 60000)
+
+        then:
+        IllegalArgumentException e = thrown()
+        e.message.contains("config discovery")
+    }
+
+    def "concurrent tokens of new issuers don't grow the registry beyond the maximum"() {
+        given:
+        def realms = ["a", "b", "c", "d"]
+        def registry = new TenantRegistry(config, new HttpTransport(), realms.collect { issuer(it) }, 2, 60000)
+        def executor = Executors.newFixedThreadPool(8)
+        def start = new CountDownLatch(1)
+        def sizes = Collections.synchronizedList([])
+
+        when:
+        def futures = (0..<40).collect { i ->
+            executor.submit {
+                start.await()
+                registry.resolve(issuer(realms[i % realms.size()]))
+                sizes << registry.size()
+            }
+        }
+        start.countDown()
+        futures*.get(10, TimeUnit.SECONDS)
+
+        then:
+        sizes.size() == 40
+        sizes.every { it <= 2 }
+        registry.size() <= 2
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    private String issuer(String realm) {
+        "http://localhost:${server.address.port}/realms/${realm}"
+    }
+
+    private static void respond(exchange, String json) {
+        def response = json.getBytes(StandardCharsets.UTF_8)
+        exchange.responseHeaders.add("Content-Type", "application/json")
+        exchange.sendResponseHeaders(200, response.length)
+        exchange.responseBody.withStream { it.write(response) }
+    }
+}
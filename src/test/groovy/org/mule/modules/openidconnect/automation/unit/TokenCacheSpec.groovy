@@ -0,0 +1,78 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenCache
+import spock.lang.Specification
+
+
+/**
+ * Test specification for the TokenCache
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class TokenCacheSpec extends Specification {
+    def cache = new TokenCache<String>(10, 60000, true)
+    def key = TokenCache.digest("token")
+
+    def "cached value is returned until it expires"() {
+        when:
+        cache.put(key, "claims", System.currentTimeMillis() + 10000)
+
+        then:
+        cache.get(key) == "claims"
+        cache.hitCount == 1
+        cache.missCount == 0
+    }
+
+    def "expired value is not returned"() {
+        when:
+        cache.put(key, "claims", System.currentTimeMillis() - 1)
+
+        then:
+        cache.get(key) == null
+        cache.missCount == 1
+        cache.size() == 0
+    }
+
+    def "entries are capped by the time to live"() {
+        given:
+        def shortLivedCache = new TokenCache<String>(10, 0, true)
+
+        when:
+        shortLivedCache.put(key, "claims", System.currentTimeMillis() + 10000)
+
+        then:
+        shortLivedCache.get(key) == null
+    }
+
+    def "cache does not grow beyond its maximum size"() {
+        when:
+        20.times { cache.put(TokenCache.digest("token$it"), "claims$it", System.currentTimeMillis() + 10000) }
+
+        then:
+        cache.size() <= 10
+        cache.evictionCount > 0
+    }
+
+    def "digest does not contain the raw token"() {
+        expect:
+        TokenCache.digest("token") == TokenCache.digest("token")
+        TokenCache.digest("token") != TokenCache.digest("other-token")
+        !TokenCache.digest("token").contains("token")
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.unit
+
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.PlainJWT
+import com.nimbusds.oauth2.sdk.id.State
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken
+import com.nimbusds.oauth2.sdk.token.RefreshToken
+import com.nimbusds.openid.connect.sdk.Nonce
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens
+import org.mule.modules.openidconnect.client.relyingparty.storage.RedirectData
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
+import spock.lang.Specification
+
+
+/**
+ * Test specification for the TokenData
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+class TokenDataSpec extends Specification {
+    def now = (long) (System.currentTimeMillis() / 1000) * 1000
+    def idToken = new PlainJWT(new JWTClaimsSet.Builder().subject("user").build())
+
+    def "lifetime of the access token and subject are read when token data is created"() {
+        given:
+        def claims = new JWTClaimsSet.Builder()
+                .issueTime(new Date(now - 1000))
+                .notBeforeTime(new Date(now))
+                .expirationTime(new Date(now + 60000))
+                .build()
+
+        when:
+        def tokenData = new TokenData(new OIDCTokens(
+                idToken, new BearerAccessToken(new PlainJWT(claims).serialize()), null
+        ))
+
+        then:
+        tokenData.accessTokenIssuedAt == now - 1000
+        tokenData.accessTokenNotBefore == now
+        tokenData.accessTokenExpiry == now + 60000
+        tokenData.subject == "user"
+        !tokenData.isAccessTokenActive(now - 1)
+        tokenData.isAccessTokenActive(now)
+        !tokenData.isAccessTokenActive(now + 60000)
+    }
+
+    def "opaque access tokens are not active"() {
+        when:
+        def tokenData = new TokenData(new OIDCTokens(idToken, new BearerAccessToken("opaque"), null))
+
+        then:
+        tokenData.accessTokenExpiry == 0
+        !tokenData.isAccessTokenActive(now)
+    }
+
+    def "lifetime is read again when the access token is replaced"() {
+        given:
+        def tokenData = new TokenData(new OIDCTokens(idToken, new BearerAccessToken("opaque"), null))
+        def claims = new JWTClaimsSet.Builder().expirationTime(new Date(now + 60000)).build()
+
+        when:
+        tokenData.setAccessToken(new BearerAccessToken(new PlainJWT(claims).serialize()))
+
+        then:
+        tokenData.accessTokenExpiry == now + 60000
+        tokenData.isAccessTokenActive(now)
+    }
+
+    def "token data is written in the compact format and read again"() {
+        given:
+        def claims = new JWTClaimsSet.Builder().subject("user").expirationTime(new Date(now + 60000)).build()
+        def tokenData = new TokenData(new OIDCTokens(
+                idToken, new BearerAccessToken(new PlainJWT(claims).serialize()), new RefreshToken("refreshToken")
+        ), "cookieId")
+
+        when:
+        def read = deserialize(serialize(tokenData)) as TokenData
+
+        then:
+        read.cookieId == "cookieId"
+        read.accessTokenExpiry == now + 60000
+        read.subject == "user"
+        read.isAccessTokenActive(now)
+        read.accessToken instanceof BearerAccessToken
+        read.accessToken.value == tokenData.accessToken.value
+        read.refreshToken.value == "refreshToken"
+        read.idToken.JWTClaimsSet.subject == "user"
+    }
+
+    def "redirect data is written in the compact format and read again"() {
+        given:
+        def redirectData = new RedirectData(new Nonce("nonce"), new State("state"))
+
+        when:
+        def read = deserialize(serialize(redirectData)) as RedirectData
+
+        then:
+        read.cookieId == redirectData.cookieId
+        read.nonce == new Nonce("nonce")
+        read.state == new State("state")
+    }
+
+    def "data of an unknown format version is rejected"() {
+        given:
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withCloseable { it.writeByte(99) }
+
+        when:
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).withCloseable {
+            new TokenData().readExternal(it)
+        }
+
+        then:
+        thrown(InvalidClassException)
+    }
+
+    private static byte[] serialize(Object data) {
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withCloseable { it.writeObject(data) }
+        bytes.toByteArray()
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        new ObjectInputStream(new ByteArrayInputStream(bytes)).withCloseable { it.readObject() }
+    }
+}
@@ -25,7 +25,9 @@ import com.nimbusds.oauth2.sdk.http.HTTPResponse
 import com.nimbusds.oauth2.sdk.id.ClientID
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponse
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata
+import org.mule.modules.openidconnect.client.HttpTransport
 import org.mule.modules.openidconnect.client.NimbusParserUtil
+import org.mule.modules.openidconnect.client.relyingparty.RelyingPartyProfile
 import org.mule.modules.openidconnect.client.relyingparty.TokenRequestFactory
 import org.mule.modules.openidconnect.client.relyingparty.TokenRequester
 import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData
@@ -44,17 +46,18 @@ class TokenRequesterSpec extends Specification {
     def tokenRequestFactory = Mock(TokenRequestFactory)
     def ssoConfig = Mock(SingleSignOnConfig)
     def parser = Mock(NimbusParserUtil)
+    def httpTransport = Mock(HttpTransport)
     def tokenRequester = new TokenRequester()
     def clientSecretBasic = new ClientSecretBasic(new ClientID("client"), new Secret("secret"))
+    def profile = new RelyingPartyProfile(new URI("http://localhost:8081"), clientSecretBasic)
     def metaData = Mock(OIDCProviderMetadata)
 
     def setup(){
         tokenRequester.setTokenRequestFactory(tokenRequestFactory)
         tokenRequester.setParser(parser)
-        ssoConfig.redirectUri >> new URI("http://localhost:8081")
+        tokenRequester.setHttpTransport(httpTransport)
         ssoConfig.getProviderMetadata() >> metaData
         metaData.getTokenEndpointURI() >> new URI("localhost:8080")
-        ssoConfig.getClientSecretBasic() >> clientSecretBasic
     }
 
     def "build valid redirect request"() {
@@ -62,9 +65,10 @@ class TokenRequesterSpec extends Specification {
         metaData.authorizationEndpointURI >> new URI("http://localhost:8080/auth")
 
         expect:
-        tokenRequester.buildAuthenticationRequest(ssoConfig).clientID.value == "client"
-        tokenRequester.buildAuthenticationRequest(ssoConfig).redirectionURI.toString() == "http://localhost:8081"
-        tokenRequester.buildAuthenticationRequest(ssoConfig).toURI().toString().startsWith("http://localhost:8080/auth?response_type=code&client_id=client&redirect_uri=http%3A%2F%2Flocalhost%3A8081&scope=openid")
+        tokenRequester.buildAuthenticationRequest(ssoConfig, profile).clientID.value == "client"
+        tokenRequester.buildAuthenticationRequest(ssoConfig, profile).redirectionURI.toString() ==
+                "http://localhost:8081"
+        tokenRequester.buildAuthenticationRequest(ssoConfig, profile).toURI().toString().startsWith("http://localhost:8080/auth?response_type=code&client_id=client&redirect_uri=http%3A%2F%2Flocalhost%3A8081&scope=openid")
     }
 
     def "request tokens from sso"() {
@@ -79,11 +83,11 @@ class TokenRequesterSpec extends Specification {
         def tokenResponse = OIDCTokenResponse.parse(http)
         tokenRequestFactory.getTokenRequest(_, _, _) >> tokenRequest
         tokenRequest.toHTTPRequest() >> httpRequest
-        httpRequest.send() >> httpResponse
+        httpTransport.send(httpRequest) >> httpResponse
         parser.parseTokenResponse(httpResponse) >> tokenResponse
 
         expect:
-        def tokenData = tokenRequester.requestTokensFromSso("authCode123", ssoConfig)
+        def tokenData = tokenRequester.requestTokensFromSso("authCode123", ssoConfig, profile)
         tokenData.accessToken != null
         tokenData.idToken != null
         tokenData.refreshToken != null
@@ -97,11 +101,11 @@ class TokenRequesterSpec extends Specification {
         def tokenErrorResponse = Mock(TokenErrorResponse)
         tokenRequestFactory.getTokenRequest(_, _, _) >> tokenRequest
         tokenRequest.toHTTPRequest() >> httpRequest
-        httpRequest.send() >> httpResponse
+        httpTransport.send(httpRequest) >> httpResponse
         parser.parseTokenResponse(httpResponse) >> tokenErrorResponse
 
         when:
-        tokenRequester.requestTokensFromSso("authCode123", ssoConfig)
+        tokenRequester.requestTokensFromSso("authCode123", ssoConfig, profile)
 
         then:
         RequestTokenFromSsoException e = thrown()
@@ -124,12 +128,12 @@ class TokenRequesterSpec extends Specification {
         def httpRequest = Mock(HTTPRequest)
         def tokenRequest = Mock(TokenRequest)
         tokenRequest.toHTTPRequest() >> httpRequest
-        httpRequest.send() >> httpResponse
+        httpTransport.send(httpRequest) >> httpResponse
         tokenRequestFactory.getTokenRequest(_, _, _) >> tokenRequest
         parser.parseTokenResponse(httpResponse) >> tokenResponse
 
         expect:
-        def refreshedTokenData = tokenRequester.refreshTokenSet(tokenData, ssoConfig)
+        def refreshedTokenData = tokenRequester.refreshTokenSet(tokenData, ssoConfig, profile)
         refreshedTokenData.accessToken != null
         refreshedTokenData.idToken != null
         refreshedTokenData.refreshToken != null
@@ -151,12 +155,12 @@ class TokenRequesterSpec extends Specification {
         tokenRequestFactory.getTokenRequest(_, _, _) >> tokenRequest
         tokenRequest.toHTTPRequest() >> httpRequest
         def httpResponse = Mock(HTTPResponse)
-        httpRequest.send() >> httpResponse
+        httpTransport.send(httpRequest) >> httpResponse
         def tokenErrorResponse = Mock(TokenErrorResponse)
         parser.parseTokenResponse(httpResponse) >> tokenErrorResponse
 
         when:
-        tokenRequester.refreshTokenSet(tokenData, ssoConfig)
+        tokenRequester.refreshTokenSet(tokenData, ssoConfig, profile)
 
         then:
         RequestTokenFromSsoException e = thrown()
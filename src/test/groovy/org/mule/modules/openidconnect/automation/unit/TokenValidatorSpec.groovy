@@ -17,7 +17,6 @@ package org.mule.modules.openidconnect.automation.unit
 
 import com.nimbusds.jwt.JWTClaimsSet
 import com.nimbusds.oauth2.sdk.TokenIntrospectionErrorResponse
-import com.nimbusds.oauth2.sdk.TokenIntrospectionRequest
 import com.nimbusds.oauth2.sdk.TokenIntrospectionSuccessResponse
 import com.nimbusds.oauth2.sdk.auth.ClientSecretBasic
 import com.nimbusds.oauth2.sdk.auth.Secret
@@ -26,16 +25,22 @@ import com.nimbusds.oauth2.sdk.http.HTTPResponse
 import com.nimbusds.oauth2.sdk.id.ClientID
 import com.nimbusds.oauth2.sdk.token.AccessToken
 import net.minidev.json.JSONObject
-import org.mule.modules.openidconnect.automation.unit.util.RSAKeyGenerator
+import org.mule.modules.openidconnect.client.CircuitBreaker
+import org.mule.modules.openidconnect.client.HttpTransport
 import org.mule.modules.openidconnect.client.NimbusParserUtil
+import org.mule.modules.openidconnect.client.tokenvalidation.IntrospectionProfile
+import org.mule.modules.openidconnect.client.tokenvalidation.ParsedToken
+import org.mule.modules.openidconnect.client.tokenvalidation.SignatureVerifierRegistry
+import org.mule.modules.openidconnect.client.tokenvalidation.TokenCache
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenValidator
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenVerifier
 import org.mule.modules.openidconnect.config.SingleSignOnConfig
+import org.mule.modules.openidconnect.config.TenantRegistry
+import org.mule.modules.openidconnect.exception.CircuitOpenException
+import org.mule.modules.openidconnect.exception.HTTPConnectException
 import org.mule.modules.openidconnect.exception.TokenValidationException
 import spock.lang.Specification
 
-import java.security.interfaces.RSAPublicKey
-
 
 /**
  * Test specification for the TokenValidator
@@ -49,6 +54,11 @@ class TokenValidatorSpec extends Specification {
     def tokenVerifier = Mock(TokenVerifier)
     def tokenValidator = new TokenValidator(tokenVerifier)
     def ssoConfig = Mock(SingleSignOnConfig)
+    def httpTransport = Mock(HttpTransport)
+    def profile = new IntrospectionProfile(
+            new URI("http://localhost:8080/introspect"),
+            new ClientSecretBasic(new ClientID("clientId"), new Secret("clientSecret"))
+    )
 
 
     def setup(){
@@ -63,7 +73,7 @@ class TokenValidatorSpec extends Specification {
         json.put("exp", System.currentTimeMillis() + 10000)
         json.put("nbf", 0)
         def claims = JWTClaimsSet.parse(json)
-        ssoConfig.rsaPublicKey >> (RSAPublicKey)RSAKeyGenerator.keyPairGenerator().public
+        ssoConfig.verifierRegistry >> Mock(SignatureVerifierRegistry)
         ssoConfig.ssoUri >> new URI("http://localhost:8080")
         tokenVerifier.verifyAccessToken(_, _, _) >> claims
 
@@ -75,7 +85,7 @@ class TokenValidatorSpec extends Specification {
     def "local token validation throws TokenValidationException"() {
         given:
         def authHeader = props.getProperty("bearer-auth-header")
-        ssoConfig.rsaPublicKey >> (RSAPublicKey)RSAKeyGenerator.keyPairGenerator().public
+        ssoConfig.verifierRegistry >> Mock(SignatureVerifierRegistry)
         ssoConfig.ssoUri >> new URI("http://localhost:8080")
         tokenVerifier.verifyAccessToken(_, _, _) >> {
             throw new TokenValidationException("Token validation failed")
@@ -89,35 +99,144 @@ class TokenValidatorSpec extends Specification {
         exception.message == "Token validation failed"
     }
 
-    def "create token introspection request"() {
+    def "local token validation serves verified tokens from cache"() {
+        given:
+        def authHeader = props.getProperty("bearer-auth-header")
+        def json = new JSONObject()
+        json.put("iss", props.getProperty("sso-url"))
+        json.put("exp", System.currentTimeSeconds() + 60)
+        def claims = JWTClaimsSet.parse(json)
+        ssoConfig.verifierRegistry >> Mock(SignatureVerifierRegistry)
+        ssoConfig.ssoUri >> new URI(props.getProperty("sso-url"))
+        tokenValidator.setVerifiedTokenCache(new TokenCache<JWTClaimsSet>(10, 60000, true))
+
+        when:
+        def firstClaims = tokenValidator.localTokenValidation(authHeader, ssoConfig)
+        def secondClaims = tokenValidator.localTokenValidation(authHeader, ssoConfig)
+
+        then:
+        1 * tokenVerifier.verifyAccessToken(_, _, _) >> claims
+        firstClaims == claims
+        secondClaims == claims
+        tokenValidator.verifiedTokenCache.hitCount == 1
+    }
+
+    def "multi issuer token validation verifies with the config of the token issuer"() {
+        given:
+        def tenants = Mock(TenantRegistry)
+        def parser = Mock(NimbusParserUtil)
+        tokenValidator.setParser(parser)
+        def accessToken = Mock(AccessToken)
+        accessToken.value >> "token"
+        parser.parseAccessToken("header") >> accessToken
+        def json = new JSONObject()
+        json.put("iss", "http://localhost:8080/realms/a")
+        def claims = JWTClaimsSet.parse(json)
+        parser.parseToken(accessToken) >> new ParsedToken(accessToken, null, claims)
+        def registry = Mock(SignatureVerifierRegistry)
+        ssoConfig.verifierRegistry >> registry
+        ssoConfig.ssoUri >> new URI("http://localhost:8080/realms/a")
+
+        when:
+        def result = tokenValidator.multiIssuerTokenValidation("header", tenants)
+
+        then:
+        1 * tenants.resolve("http://localhost:8080/realms/a") >> ssoConfig
+        1 * tokenVerifier.verifyAccessToken(_, registry, "http://localhost:8080/realms/a") >> claims
+        result == claims
+    }
+
+    def "tokens of other issuers cached by multi issuer validation are verified again by single issuer processors"() {
+        given:
+        def tenants = Mock(TenantRegistry)
+        def parser = Mock(NimbusParserUtil)
+        tokenValidator.setParser(parser)
+        tokenValidator.setHttpTransport(httpTransport)
+        tokenValidator.setVerifiedTokenCache(new TokenCache<JWTClaimsSet>(10, 60000, true))
+        tokenValidator.setIntrospectionSchedule(new TokenCache<Long>(10, Long.MAX_VALUE, false))
+        def accessToken = Mock(AccessToken)
+        accessToken.value >> "token"
+        parser.parseAccessToken("header") >> accessToken
+        def json = new JSONObject()
+        json.put("iss", "http://localhost:8080/realms/b")
+        json.put("exp", System.currentTimeSeconds() + 60)
+        def claims = JWTClaimsSet.parse(json)
+        parser.parseToken(accessToken) >> new ParsedToken(accessToken, null, claims)
+        def realmB = Mock(SingleSignOnConfig)
+        realmB.ssoUri >> new URI("http://localhost:8080/realms/b")
+        tenants.trustedIssuers >> (["http://localhost:8080/realms/a", "http://localhost:8080/realms/b"] as Set)
+        tenants.resolve("http://localhost:8080/realms/b") >> realmB
+        ssoConfig.ssoUri >> new URI("http://localhost:8080/realms/a")
+        tokenVerifier.verifyAccessToken(_, _, "http://localhost:8080/realms/b") >> claims
+        tokenVerifier.verifyAccessToken(_, _, "http://localhost:8080/realms/a") >> {
+            throw new TokenValidationException("Invalid issuer")
+        }
+        tokenValidator.multiIssuerTokenValidation("header", tenants)
+
+        when:
+        tokenValidator.localTokenValidation("header", ssoConfig)
+
+        then:
+        TokenValidationException localFailure = thrown()
+        localFailure.message == "Invalid issuer"
+
+        when:
+        tokenValidator.hybridTokenValidation("header", ssoConfig, profile, 60000, 0, false)
+
+        then:
+        TokenValidationException hybridFailure = thrown()
+        hybridFailure.message == "Invalid issuer"
+        0 * httpTransport.send(_)
+    }
+
+    def "multi issuer token validation rejects untrusted issuers"() {
+        given:
+        def tenants = Mock(TenantRegistry)
+        def parser = Mock(NimbusParserUtil)
+        tokenValidator.setParser(parser)
+        def accessToken = Mock(AccessToken)
+        parser.parseAccessToken("header") >> accessToken
+        def json = new JSONObject()
+        json.put("iss", "http://evil")
+        parser.parseToken(accessToken) >> new ParsedToken(accessToken, null, JWTClaimsSet.parse(json))
+        tenants.resolve("http://evil") >> { throw new TokenValidationException("Issuer http://evil is not trusted") }
+
+        when:
+        tokenValidator.multiIssuerTokenValidation("header", tenants)
+
+        then:
+        0 * tokenVerifier.verifyAccessToken(_, _, _)
+        TokenValidationException e = thrown()
+        e.message.contains("not trusted")
+    }
+
+    def "introspection profile builds token introspection request"() {
         setup:
         def accessToken = Mock(AccessToken)
-        ssoConfig.introspectionUri >> new URI("http://localhost:8080/introspect")
-        ssoConfig.clientSecretBasic >> new ClientSecretBasic(new ClientID("clientId"), new Secret("clientSecret"))
+        accessToken.value >> "token+value"
 
-        expect:
-        assert tokenValidator.createTokenIntrospectionRequest(accessToken, ssoConfig) instanceof TokenIntrospectionRequest
-        tokenValidator
-                .createTokenIntrospectionRequest(accessToken, ssoConfig).token == accessToken
-        tokenValidator
-                .createTokenIntrospectionRequest(accessToken, ssoConfig)
-                .endpointURI == new URI("http://localhost:8080/introspect")
+        when:
+        def httpRequest = profile.toHTTPRequest(accessToken)
+
+        then:
+        httpRequest.method == HTTPRequest.Method.POST
+        httpRequest.URL == new URL("http://localhost:8080/introspect")
+        httpRequest.authorization == profile.clientSecretBasic.toHTTPAuthorizationHeader()
+        httpRequest.query == "token=token%2Bvalue"
     }
 
     def "token introspection returns valid jsonobject"(){
         setup:
-        def validator = Spy(TokenValidator)
+        def validator = Spy(TokenValidator, constructorArgs: [tokenVerifier])
         def header = "header"
         def parser = Mock(NimbusParserUtil)
         validator.setParser(parser)
+        validator.setHttpTransport(httpTransport)
         def accessToken = Mock(AccessToken)
+        accessToken.value >> "token"
         parser.parseAccessToken(header) >> accessToken
-        def introspectionRequest = Mock(TokenIntrospectionRequest)
-        validator.createTokenIntrospectionRequest(_, _) >> introspectionRequest
-        def httpRequest = Mock(HTTPRequest)
         def httpResponse = new HTTPResponse(200)
-        introspectionRequest.toHTTPRequest() >> httpRequest
-        httpRequest.send() >> httpResponse
+        httpTransport.send(_) >> httpResponse
         def introspectionResponse = Mock(TokenIntrospectionSuccessResponse)
         parser.parseIntrospectionResponse(httpResponse) >> introspectionResponse
         def json = new JSONObject()
@@ -125,32 +244,309 @@ class TokenValidatorSpec extends Specification {
         introspectionResponse.toJSONObject() >> json
 
         expect:
-        validator.introspectionTokenValidation(header, ssoConfig).get("active") == true
+        validator.introspectionTokenValidation(header, ssoConfig, profile).get("active") == true
     }
 
     def "token introspection throws TokenValidationException"() {
         given:
-        def validator = Spy(TokenValidator)
+        def validator = Spy(TokenValidator, constructorArgs: [tokenVerifier])
         def header = "header"
         def parser = Mock(NimbusParserUtil)
         validator.setParser(parser)
+        validator.setHttpTransport(httpTransport)
         def accessToken = Mock(AccessToken)
+        accessToken.value >> "token"
         parser.parseAccessToken(header) >> accessToken
-        def introspectionRequest = Mock(TokenIntrospectionRequest)
-        validator.createTokenIntrospectionRequest(_, _) >> introspectionRequest
-        def httpRequest = Mock(HTTPRequest)
         def httpResponse = new HTTPResponse(200)
-        introspectionRequest.toHTTPRequest() >> httpRequest
-        httpRequest.send() >> httpResponse
+        httpTransport.send(_) >> httpResponse
         def introspectionResponse = Mock(TokenIntrospectionErrorResponse)
         parser.parseIntrospectionResponse(httpResponse) >> introspectionResponse
 
         when:
-        validator.introspectionTokenValidation(header, ssoConfig).get("active") == true
+        validator.introspectionTokenValidation(header, ssoConfig, profile).get("active") == true
 
         then:
         TokenValidationException e = thrown()
         assert e instanceof  TokenValidationException
     }
 
+    def "token introspection serves active results from cache until token expires"() {
+        given:
+        def validator = introspectionValidator(new JSONObject([active: true, exp: System.currentTimeSeconds() + 60]))
+        validator.setIntrospectionCache(new TokenCache<JSONObject>(10, 60000, true), 5000)
+
+        when:
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+        def claims = validator.introspectionTokenValidation("header", ssoConfig, profile)
+
+        then:
+        1 * httpTransport.send(_) >> new HTTPResponse(200)
+        claims.get("active") == true
+        validator.introspectionCache.hitCount == 1
+        validator.introspectionCache.missCount == 1
+    }
+
+    def "token introspection doesn't share cached results between clients"() {
+        given:
+        def validator = introspectionValidator(new JSONObject([active: true, exp: System.currentTimeSeconds() + 60]))
+        validator.setIntrospectionCache(new TokenCache<JSONObject>(10, 60000, true), 5000)
+        def otherProfile = new IntrospectionProfile(
+                new URI("http://localhost:8080/introspect"),
+                new ClientSecretBasic(new ClientID("otherClientId"), new Secret("otherClientSecret"))
+        )
+
+        when:
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+        validator.introspectionTokenValidation("header", ssoConfig, otherProfile)
+        validator.introspectionTokenValidation("header", ssoConfig, otherProfile)
+
+        then:
+        2 * httpTransport.send(_) >> new HTTPResponse(200)
+        validator.introspectionCache.hitCount == 1
+    }
+
+    def "token introspection caches inactive results with negative ttl"() {
+        given:
+        def validator = introspectionValidator(new JSONObject([active: false]))
+        validator.setIntrospectionCache(new TokenCache<JSONObject>(10, 60000, true), 5000)
+
+        when:
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+
+        then:
+        1 * httpTransport.send(_) >> new HTTPResponse(200)
+        thrown(TokenValidationException)
+
+        when:
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+
+        then:
+        0 * httpTransport.send(_)
+        TokenValidationException e = thrown()
+        e.message == "Token is not active"
+    }
+
+    def "token introspection fails fast if too many introspections are outstanding"() {
+        given:
+        def validator = new TokenValidator(tokenVerifier)
+        def parser = Mock(NimbusParserUtil)
+        validator.setParser(parser)
+        validator.setHttpTransport(httpTransport)
+        validator.setMaxOutstandingIntrospections(1)
+        def first = Mock(AccessToken)
+        first.value >> "first"
+        def second = Mock(AccessToken)
+        second.value >> "second"
+        parser.parseAccessToken("first") >> first
+        parser.parseAccessToken("second") >> second
+        def rejection = null
+
+        when:
+        validator.introspectionTokenValidation("first", ssoConfig, profile)
+
+        then:
+        1 * httpTransport.send(_) >> {
+            try {
+                validator.introspectionTokenValidation("second", ssoConfig, profile)
+            } catch (HTTPConnectException e) {
+                rejection = e
+            }
+            throw new IOException("Read timed out")
+        }
+        rejection.message.contains("Maximum number of outstanding introspection requests reached")
+        thrown(HTTPConnectException)
+    }
+
+    def "token introspection releases the outstanding request after the response"() {
+        given:
+        def validator = introspectionValidator(new JSONObject([active: true]))
+        validator.setMaxOutstandingIntrospections(1)
+
+        when:
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+
+        then:
+        2 * httpTransport.send(_) >> new HTTPResponse(200)
+    }
+
+    def "hybrid token validation introspects on first sight and after the interval"() {
+        given:
+        def validator = hybridValidator(true)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 60000, 0, false)
+        validator.hybridTokenValidation("header", ssoConfig, profile, 60000, 0, false)
+
+        then:
+        1 * httpTransport.send(_) >> new HTTPResponse(200)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 0, 0, false)
+
+        then:
+        1 * httpTransport.send(_) >> new HTTPResponse(200)
+    }
+
+    def "hybrid token validation rejects revoked tokens without introspecting again"() {
+        given:
+        def validator = hybridValidator(false)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 0, 0, false)
+
+        then:
+        1 * httpTransport.send(_) >> new HTTPResponse(200)
+        thrown(TokenValidationException)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 0, 0, false)
+
+        then:
+        0 * httpTransport.send(_)
+        TokenValidationException e = thrown()
+        e.message == "Token is not active"
+    }
+
+    def "hybrid token validation keeps the introspection schedule per client"() {
+        given:
+        def validator = hybridValidator(true)
+        def otherProfile = new IntrospectionProfile(
+                new URI("http://localhost:8080/introspect"),
+                new ClientSecretBasic(new ClientID("otherClientId"), new Secret("clientSecret"))
+        )
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 60000, 0, false)
+        validator.hybridTokenValidation("header", ssoConfig, otherProfile, 60000, 0, false)
+
+        then:
+        2 * httpTransport.send(_) >> new HTTPResponse(200)
+    }
+
+    def "hybrid token validation accepts sampled tokens within the interval if the identity provider is unreachable"() {
+        given:
+        def validator = hybridValidator(true)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 60000, 0, false)
+        def claims = validator.hybridTokenValidation("header", ssoConfig, profile, 60000, 1, false)
+
+        then:
+        2 * httpTransport.send(_) >> new HTTPResponse(200) >> { throw new IOException("Connection refused") }
+        claims != null
+    }
+
+    def "hybrid token validation fails closed after the interval if the identity provider is unreachable"() {
+        given:
+        def validator = hybridValidator(true)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 300, 0, false)
+        sleep(400)
+        validator.hybridTokenValidation("header", ssoConfig, profile, 300, 0, false)
+
+        then:
+        2 * httpTransport.send(_) >> new HTTPResponse(200) >> { throw new IOException("Connection refused") }
+        thrown(HTTPConnectException)
+    }
+
+    def "hybrid token validation fails open for one more interval only"() {
+        given:
+        def validator = hybridValidator(true)
+        httpTransport.send(_) >> new HTTPResponse(200) >> { throw new IOException("Connection refused") }
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 300, 0, true)
+        sleep(400)
+        def claims = validator.hybridTokenValidation("header", ssoConfig, profile, 300, 0, true)
+
+        then:
+        claims != null
+
+        when:
+        sleep(300)
+        validator.hybridTokenValidation("header", ssoConfig, profile, 300, 0, true)
+
+        then:
+        thrown(HTTPConnectException)
+    }
+
+    def "hybrid token validation is rejected without introspection schedule"() {
+        given:
+        def validator = hybridValidator(true)
+        validator.setIntrospectionSchedule(null)
+
+        when:
+        validator.hybridTokenValidation("header", ssoConfig, profile, 60000, 0, false)
+
+        then:
+        0 * httpTransport.send(_)
+        TokenValidationException e = thrown()
+        e.message == "Hybrid token validation is not enabled"
+    }
+
+    def "token introspection falls back to local validation while the circuit is open"() {
+        given:
+        def validator = hybridValidator(true)
+        def circuitBreaker = new CircuitBreaker(1, 100, 0, 60000, 1)
+        circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, true)
+        validator.setCircuitBreaker(circuitBreaker, true)
+        def parser = Mock(NimbusParserUtil)
+        validator.setParser(parser)
+        def accessToken = Mock(AccessToken)
+        accessToken.value >> "header.payload.signature"
+        parser.parseAccessToken("header") >> accessToken
+
+        when:
+        def claims = validator.introspectionTokenValidation("header", ssoConfig, profile)
+
+        then:
+        0 * httpTransport.send(_)
+        claims.get("active") == true
+        claims.get("exp") != null
+    }
+
+    def "token introspection throws CircuitOpenException without local fallback"() {
+        given:
+        def validator = hybridValidator(true)
+        def circuitBreaker = new CircuitBreaker(1, 100, 0, 60000, 1)
+        circuitBreaker.onResult(circuitBreaker.tryAcquirePermission(), 10, true)
+        validator.setCircuitBreaker(circuitBreaker, false)
+
+        when:
+        validator.introspectionTokenValidation("header", ssoConfig, profile)
+
+        then:
+        0 * httpTransport.send(_)
+        thrown(CircuitOpenException)
+    }
+
+    private TokenValidator hybridValidator(boolean active) {
+        def validator = introspectionValidator(new JSONObject([active: active]))
+        validator.setIntrospectionSchedule(new TokenCache<>(100, Long.MAX_VALUE, false))
+        ssoConfig.ssoUri >> new URI("http://localhost:8080")
+        def claimsJson = new JSONObject()
+        claimsJson.put("exp", System.currentTimeSeconds() + 60)
+        tokenVerifier.verifyAccessToken(_, _, _) >> JWTClaimsSet.parse(claimsJson)
+        validator
+    }
+
+    /**
+     * Creates a validator whose introspection of the header "header" responds with the given claims
+     */
+    private TokenValidator introspectionValidator(JSONObject introspectionClaims) {
+        def validator = Spy(TokenValidator, constructorArgs: [tokenVerifier])
+        def parser = Mock(NimbusParserUtil)
+        validator.setParser(parser)
+        validator.setHttpTransport(httpTransport)
+        def accessToken = Mock(AccessToken)
+        accessToken.value >> "token"
+        parser.parseAccessToken("header") >> accessToken
+        def introspectionResponse = Mock(TokenIntrospectionSuccessResponse)
+        parser.parseIntrospectionResponse(_) >> introspectionResponse
+        introspectionResponse.toJSONObject() >> introspectionClaims
+        validator
+    }
+
 }
\ No newline at end of file
@@ -21,12 +21,12 @@ import com.nimbusds.jwt.SignedJWT
 import com.nimbusds.oauth2.sdk.token.AccessToken
 import net.minidev.json.JSONObject
 import org.mule.modules.openidconnect.client.NimbusParserUtil
+import org.mule.modules.openidconnect.client.tokenvalidation.ParsedToken
+import org.mule.modules.openidconnect.client.tokenvalidation.SignatureVerifierRegistry
 import org.mule.modules.openidconnect.client.tokenvalidation.TokenVerifier
 import org.mule.modules.openidconnect.exception.TokenValidationException
 import spock.lang.Specification
 
-import java.security.interfaces.RSAPublicKey
-
 
 /**
  * Test specification for the TokenVerifier
@@ -38,55 +38,68 @@ class TokenVerifierSpec extends Specification {
 
     def props = new Properties()
     def tokenVerifier = new TokenVerifier()
-    def parser = Mock(NimbusParserUtil)
 
     def setup(){
         props.load(new FileReader(new File(this.getClass().getResource("unittest.properties").getPath())))
     }
 
-    def "verify access token returns claims set"() {
+    def "verify parsed access token returns claims set"() {
         setup:
-        def publicKey = Mock(RSAPublicKey)
-        def verifier = Spy(TokenVerifier)
-        verifier.setParser(parser)
-        def origin = "origin"
-        def accessToken = Mock(AccessToken)
-        accessToken.getValue() >> _
+        def registry = Mock(SignatureVerifierRegistry)
         def signedJWT = Mock(SignedJWT)
-        parser.parseSignedJWT(_) >> signedJWT
-        def claims = JWTClaimsSet.parse('{"iss": "origin"}')
-        signedJWT.getJWTClaimsSet() >> claims
-        claims.issuer >> origin
-        signedJWT.verify(_) >> true
-        verifier.isActive(_) >> true
+        def claims = JWTClaimsSet.parse(new JSONObject([iss: "origin", exp: System.currentTimeSeconds() + 60]))
+        def token = new ParsedToken(Mock(AccessToken), signedJWT, claims)
 
-        expect:
-        def claimsSet = verifier.verifyAccessToken(accessToken, publicKey, origin)
-        claimsSet.issuer == origin
+        when:
+        def claimsSet = tokenVerifier.verifyAccessToken(token, registry, "origin")
+
+        then:
+        1 * registry.verify(signedJWT) >> true
+        claimsSet == claims
     }
 
-    def "verify access token throws TokenValidationException"() {
+    def "parsed access token with wrong signature throws TokenValidationException"() {
         given:
-        def publicKey = Mock(RSAPublicKey)
-        def verifier = Spy(TokenVerifier)
-        verifier.setParser(parser)
-        def origin = "origin"
-        def accessToken = Mock(AccessToken)
-        accessToken.getValue() >> _
-        def signedJWT = Mock(SignedJWT)
-        parser.parseSignedJWT(_) >> signedJWT
-        def claims = JWTClaimsSet.parse('{"iss": "origin"}')
-        signedJWT.getJWTClaimsSet() >> claims
-        claims.issuer >> origin
-        signedJWT.verify(_) >> true
-        verifier.isActive(_) >> false
+        def registry = Mock(SignatureVerifierRegistry)
+        def claims = JWTClaimsSet.parse(new JSONObject([iss: "origin", exp: System.currentTimeSeconds() + 60]))
+        def token = new ParsedToken(Mock(AccessToken), Mock(SignedJWT), claims)
+
+        when:
+        tokenVerifier.verifyAccessToken(token, registry, "origin")
+
+        then:
+        1 * registry.verify(_) >> false
+        TokenValidationException e = thrown()
+        e.message == "Wrong token signature"
+    }
+
+    def "parsed access token of other issuer is rejected without signature verification"() {
+        given:
+        def registry = Mock(SignatureVerifierRegistry)
+        def claims = JWTClaimsSet.parse(new JSONObject([iss: "other", exp: System.currentTimeSeconds() + 60]))
+        def token = new ParsedToken(Mock(AccessToken), Mock(SignedJWT), claims)
+
+        when:
+        tokenVerifier.verifyAccessToken(token, registry, "origin")
+
+        then:
+        0 * registry.verify(_)
+        TokenValidationException e = thrown()
+        e.message == "Token has wrong issuer"
+    }
+
+    def "expired parsed access token is rejected without signature verification"() {
+        given:
+        def registry = Mock(SignatureVerifierRegistry)
+        def claims = JWTClaimsSet.parse(new JSONObject([iss: "origin", exp: System.currentTimeSeconds() - 60]))
+        def token = new ParsedToken(Mock(AccessToken), Mock(SignedJWT), claims)
 
         when:
-        verifier.verifyAccessToken(accessToken, publicKey, origin)
+        tokenVerifier.verifyAccessToken(token, registry, "origin")
 
         then:
+        0 * registry.verify(_)
         TokenValidationException e = thrown()
-        assert e instanceof TokenValidationException
         e.message == "Token isn't active"
     }
 
@@ -145,9 +158,9 @@ class TokenVerifierSpec extends Specification {
 
     def "ensure access token is not active"() {
         setup:
-        def accessToken = AccessToken.parse(props.getProperty('bearer-auth-header'))
+        def token = new NimbusParserUtil().parseToken(AccessToken.parse(props.getProperty('bearer-auth-header')))
 
         expect:
-        !tokenVerifier.isActive(accessToken)
+        !tokenVerifier.isActive(token.claimsSet)
     }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 Moritz Möller, AOE GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mule.modules.openidconnect.automation.benchmark;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
+import org.mule.modules.openidconnect.client.relyingparty.storage.TokenData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encode and decode time of the compact TokenData format with default Java serialization of the Nimbus
+ * token objects, which was used before. Not part of the unit tests. Run it with the test classpath, e.g.
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=org.mule.modules.openidconnect.automation.benchmark.StorageSerializationBenchmark
+ *
+ * @author Moritz Möller, AOE GmbH
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StorageSerializationBenchmark {
+
+    private TokenData tokenData;
+    private Object[] nimbusObjects;
+    private byte[] compact;
+    private byte[] nimbus;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException, JOSEException, ParseException, IOException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        RSASSASigner signer = new RSASSASigner((RSAPrivateKey) keyGen.genKeyPair().getPrivate());
+        long now = System.currentTimeMillis();
+        SignedJWT idToken = sign(signer, new JWTClaimsSet.Builder()
+                .issuer("http://localhost:8080/auth/realms/master").subject(UUID.randomUUID().toString())
+                .audience("client").issueTime(new Date(now)).expirationTime(new Date(now + 300000)).build());
+        SignedJWT accessToken = sign(signer, new JWTClaimsSet.Builder()
+                .issuer("http://localhost:8080/auth/realms/master").subject(UUID.randomUUID().toString())
+                .claim("scope", "openid profile email").issueTime(new Date(now))
+                .expirationTime(new Date(now + 300000)).build());
+        OIDCTokens tokens = new OIDCTokens(
+                SignedJWT.parse(idToken.serialize()),
+                new BearerAccessToken(accessToken.serialize()),
+                new RefreshToken(UUID.randomUUID().toString())
+        );
+        tokenData = new TokenData(tokens, UUID.randomUUID().toString());
+        // default serialization of the same objects the token data held before
+        nimbusObjects = new Object[] {
+                tokenData.getCookieId(), tokens.getIDToken(), tokens.getAccessToken(), tokens.getRefreshToken()
+        };
+        compact = serialize(tokenData);
+        nimbus = serialize(nimbusObjects);
+    }
+
+    @Benchmark
+    public byte[] encodeCompactFormat() throws IOException {
+        return serialize(tokenData);
+    }
+
+    @Benchmark
+    public byte[] encodeJavaSerialization() throws IOException {
+        return serialize(nimbusObjects);
+    }
+
+    @Benchmark
+    public Object decodeCompactFormat() throws IOException, ClassNotFoundException {
+        return deserialize(compact);
+    }
+
+    @Benchmark
+    public Object decodeJavaSerialization() throws IOException, ClassNotFoundException {
+        return deserialize(nimbus);
+    }
+
+    @Benchmark
+    public void decodeCompactFormatAndUseTokens(Blackhole blackhole) throws IOException, ClassNotFoundException {
+        TokenData read = (TokenData) deserialize(compact);
+        blackhole.consume(read.isAccessTokenActive(System.currentTimeMillis()));
+        blackhole.consume(read.getAccessToken().getValue());
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the sizes are printed once, the times are measured by JMH in a forked JVM
+        StorageSerializationBenchmark sizes = new StorageSerializationBenchmark();
+        sizes.setUp();
+        System.out.printf("Size compact format:            %,d bytes%n", sizes.compact.length);
+        System.out.printf("Size Java serialization:        %,d bytes%n", sizes.nimbus.length);
+        new Runner(new OptionsBuilder().include(StorageSerializationBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    private static SignedJWT sign(RSASSASigner signer, JWTClaimsSet claims) throws JOSEException {
+        SignedJWT jwt = new SignedJWT(new JWSHeader(JWSAlgorithm.RS256), claims);
+        jwt.sign(signer);
+        return jwt;
+    }
+
+    private static byte[] serialize(Object data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+}